@@ -0,0 +1,263 @@
+/**
+ * CompactImage.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A database in the compact format written by CompactImageConverter, read
+ * in place from a file mapping.
+ *
+ * All values are big-endian. The file starts with a header:
+ *
+ * <pre>
+ *  0  magic "GEOIPCMP"
+ *  8  int version
+ * 12  int database type
+ * 16  int segment of the original database
+ * 20  int record length of the original database
+ * 24  int number of ranges
+ * 28  int number of records
+ * 32  int ints per record: 0, ORG_RECORD_INTS or CITY_RECORD_INTS
+ * 36  int number of strings
+ * 40  int length of the database info string, followed by its bytes
+ * </pre>
+ *
+ * followed by these sections, each starting on a multiple of 4:
+ *
+ * <ul>
+ * <li>int range starts, with the sign bit flipped so signed order is
+ * address order;</li>
+ * <li>int range values, the value the trie lookup of the original database
+ * ends on;</li>
+ * <li>byte range netmasks;</li>
+ * <li>int record pointers of the original database, ascending;</li>
+ * <li>the records: for City, the country index, the string indexes of
+ * region, city and postal code (-1 if missing), latitude and longitude as
+ * float bits and metro code * 1000 + area code; for Org, the string index
+ * of the name;</li>
+ * <li>int string offsets, one more than the number of strings;</li>
+ * <li>the UTF-8 bytes of the strings.</li>
+ * </ul>
+ *
+ * Only IPv4 editions can be converted. Absolute reads leave the buffer
+ * untouched, so one image serves any number of threads.
+ */
+final class CompactImage {
+
+    static final byte[] MAGIC = {'G', 'E', 'O', 'I', 'P', 'C', 'M', 'P'};
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 44;
+    static final int ORG_RECORD_INTS = 1;
+    static final int CITY_RECORD_INTS = 7;
+    final int databaseType;
+    final int segment;
+    final int recordLength;
+    final String info;
+    private final ByteBuffer buf;
+    private final int ranges;
+    private final int records;
+    private final int recordInts;
+    private final int startsOffset;
+    private final int valuesOffset;
+    private final int netmaskOffset;
+    private final int pointersOffset;
+    private final int recordsOffset;
+    private final int stringOffsetsOffset;
+    private final int stringDataOffset;
+
+    private CompactImage(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.getInt(8) != VERSION) {
+            throw new IOException("Unsupported compact image version " + buf.getInt(8));
+        }
+        databaseType = buf.getInt(12);
+        segment = buf.getInt(16);
+        recordLength = buf.getInt(20);
+        ranges = buf.getInt(24);
+        records = buf.getInt(28);
+        recordInts = buf.getInt(32);
+        int strings = buf.getInt(36);
+        int infoLength = buf.getInt(40);
+        byte[] b = new byte[infoLength];
+        for (int i = 0; i < infoLength; i++) {
+            b[i] = buf.get(HEADER_LENGTH + i);
+        }
+        info = new String(b, "UTF-8");
+        startsOffset = align(HEADER_LENGTH + infoLength);
+        valuesOffset = startsOffset + 4 * ranges;
+        netmaskOffset = valuesOffset + 4 * ranges;
+        pointersOffset = align(netmaskOffset + ranges);
+        recordsOffset = pointersOffset + 4 * records;
+        stringOffsetsOffset = recordsOffset + 4 * records * recordInts;
+        stringDataOffset = stringOffsetsOffset + 4 * (strings + 1);
+    }
+
+    static int align(int offset) {
+        return (offset + 3) & ~3;
+    }
+
+    /**
+     * Tells whether a file is a compact image.
+     *
+     * @param file the opened file.
+     * @return true if the file starts with the compact image magic.
+     * @throws IOException if the file could not be read.
+     */
+    static boolean isCompact(RandomAccessFile file) throws IOException {
+        if (file.length() < HEADER_LENGTH) {
+            return false;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        file.seek(0);
+        file.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps a compact image. The mapping stays valid after the file is
+     * closed.
+     *
+     * @param file the opened file.
+     * @return the image.
+     * @throws IOException if the file could not be mapped or is not a
+     * supported image.
+     */
+    static CompactImage open(RandomAccessFile file) throws IOException {
+        FileChannel channel = file.getChannel();
+        return new CompactImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    /**
+     * Finds the range an IPv4 address is in.
+     *
+     * @param ipAddress the address; only the low 32 bits are used.
+     * @return the netmask and value of the range, see
+     * LookupService.seekResult.
+     */
+    long seek(long ipAddress) {
+        int key = (int) ipAddress ^ Integer.MIN_VALUE;
+        int lo = 0;
+        int hi = ranges - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (buf.getInt(startsOffset + 4 * mid) <= key) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return LookupService.seekResult(buf.get(netmaskOffset + lo), buf.getInt(valuesOffset + 4 * lo));
+    }
+
+    /**
+     * Returns the offset of the record that was at a record pointer of the
+     * original database, or -1 if there was none.
+     */
+    private int record(int record_pointer) {
+        int lo = 0;
+        int hi = records - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int p = buf.getInt(pointersOffset + 4 * mid);
+            if (p < record_pointer) {
+                lo = mid + 1;
+            } else if (p > record_pointer) {
+                hi = mid - 1;
+            } else {
+                return recordsOffset + 4 * recordInts * mid;
+            }
+        }
+        return -1;
+    }
+
+    private String string(int i) {
+        if (i < 0) {
+            return null;
+        }
+        int from = buf.getInt(stringOffsetsOffset + 4 * i);
+        int to = buf.getInt(stringOffsetsOffset + 4 * i + 4);
+        byte[] b = new byte[to - from];
+        for (int k = 0; k < b.length; k++) {
+            b[k] = buf.get(stringDataOffset + from + k);
+        }
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the country index of a City record.
+     *
+     * @param record_pointer the record pointer of the original database.
+     * @return the country index, 0 if there is no such record.
+     */
+    int country(int record_pointer) {
+        int r = record(record_pointer);
+        return r < 0 ? 0 : buf.getInt(r);
+    }
+
+    /**
+     * Decodes a City record into a Location.
+     *
+     * @param record_pointer the record pointer of the original database.
+     * @param record receives the fields of the record.
+     */
+    void decodeLocation(int record_pointer, Location record) {
+        int r = record(record_pointer);
+        if (r < 0) {
+            record.countryCode = LookupService.countryCode[0];
+            record.countryName = LookupService.countryName[0];
+            return;
+        }
+        int country = buf.getInt(r);
+        record.countryCode = LookupService.countryCode[country];
+        record.countryName = LookupService.countryName[country];
+        record.region = string(buf.getInt(r + 4));
+        record.city = string(buf.getInt(r + 8));
+        record.postalCode = string(buf.getInt(r + 12));
+        record.latitude = Float.intBitsToFloat(buf.getInt(r + 16));
+        record.longitude = Float.intBitsToFloat(buf.getInt(r + 20));
+        int metroarea_combo = buf.getInt(r + 24);
+        record.metro_code = record.dma_code = metroarea_combo / 1000;
+        record.area_code = metroarea_combo % 1000;
+    }
+
+    /**
+     * Returns the name of an Org record.
+     *
+     * @param record_pointer the record pointer of the original database.
+     * @return the name, or an empty string if there is no such record.
+     */
+    String org(int record_pointer) {
+        int r = record(record_pointer);
+        return r < 0 ? "" : string(buf.getInt(r));
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * CompactImageConverter.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Converts a legacy .dat database (Country, Region, City, Org, ISP and the
+ * other IPv4 editions) to the compact image format described in
+ * CompactImage. LookupService opens such an image like a .dat file and
+ * answers lookups from a file mapping without scanning or copying it.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java com.maxmind.geoip.CompactImageConverter input.dat output.img
+ * java com.maxmind.geoip.CompactImageConverter -verify input.dat output.img [addresses]
+ * </pre>
+ *
+ * The second form checks that the image answers exactly like the .dat file
+ * at every range boundary and at the given number of random addresses.
+ */
+public class CompactImageConverter {
+
+    private static final Logger LOG = Logger.getLogger(CompactImageConverter.class.getName());
+    private static final int DEFAULT_VERIFY_COUNT = 1000000;
+
+    /**
+     * Converts a database.
+     *
+     * @param in the .dat file.
+     * @param out the image to write.
+     * @throws IOException if the database could not be read or is an IPv6
+     * edition, or the image could not be written.
+     */
+    public static void convert(File in, File out) throws IOException {
+        LookupService source = new LookupService(in, LookupService.GEOIP_MEMORY_CACHE
+                | LookupService.GEOIP_RANGE_INDEX | LookupService.GEOIP_STRING_DICT);
+        try {
+            DatabaseImage img = source.current();
+            if (img.range_starts == null) {
+                throw new IOException("Only IPv4 editions can be converted: " + in);
+            }
+            RecordDictionary dict = img.dictionary;
+            int recordInts = dict == null ? 0
+                    : dict.locations != null ? CompactImage.CITY_RECORD_INTS : CompactImage.ORG_RECORD_INTS;
+            int records = dict == null ? 0 : dict.pointers.length;
+            int strings = dict == null ? 0 : dict.strings.length;
+            int ranges = img.range_starts.length;
+            byte[] info = img.databaseInfo.toString().getBytes("UTF-8");
+
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+            try {
+                os.write(CompactImage.MAGIC);
+                os.writeInt(CompactImage.VERSION);
+                os.writeInt(img.databaseType);
+                os.writeInt(img.databaseSegments[0]);
+                os.writeInt(img.recordLength);
+                os.writeInt(ranges);
+                os.writeInt(records);
+                os.writeInt(recordInts);
+                os.writeInt(strings);
+                os.writeInt(info.length);
+                os.write(info);
+                pad(os);
+                for (int i = 0; i < ranges; i++) {
+                    os.writeInt(img.range_starts[i]);
+                }
+                for (int i = 0; i < ranges; i++) {
+                    os.writeInt(img.range_records[i]);
+                }
+                os.write(img.range_netmask);
+                pad(os);
+                for (int i = 0; i < records; i++) {
+                    os.writeInt(dict.pointers[i]);
+                }
+                for (int i = 0; i < records; i++) {
+                    if (dict.locations != null) {
+                        Location l = dict.locations[i];
+                        os.writeInt(LookupService.readByte(img, dict.pointers[i]));
+                        os.writeInt(dict.field(i, 0));
+                        os.writeInt(dict.field(i, 1));
+                        os.writeInt(dict.field(i, 2));
+                        os.writeInt(Float.floatToIntBits(l.latitude));
+                        os.writeInt(Float.floatToIntBits(l.longitude));
+                        os.writeInt(l.metro_code * 1000 + l.area_code);
+                    } else {
+                        os.writeInt(dict.field(i, 0));
+                    }
+                }
+                int offset = 0;
+                for (int i = 0; i < strings; i++) {
+                    os.writeInt(offset);
+                    offset += dict.utf8[i].length;
+                }
+                os.writeInt(offset);
+                for (int i = 0; i < strings; i++) {
+                    os.write(dict.utf8[i]);
+                }
+            } finally {
+                os.close();
+            }
+            LOG.info(in + ": " + ranges + " ranges, " + records + " records, " + strings
+                    + " strings, " + out.length() + " bytes written to " + out);
+        } finally {
+            source.close();
+        }
+    }
+
+    private static void pad(DataOutputStream os) throws IOException {
+        while (os.size() != CompactImage.align(os.size())) {
+            os.write(0);
+        }
+    }
+
+    /**
+     * Compares the answers of an image with those of the .dat file it was
+     * converted from, at both sides of every range boundary and at random
+     * addresses. Mismatches are logged as warnings.
+     *
+     * @param dat the .dat file.
+     * @param image the image.
+     * @param count the number of random addresses.
+     * @return the number of mismatching addresses.
+     * @throws IOException if either database could not be read.
+     */
+    public static int verify(File dat, File image, int count) throws IOException {
+        LookupService expected = new LookupService(dat, LookupService.GEOIP_MEMORY_CACHE
+                | LookupService.GEOIP_RANGE_INDEX);
+        LookupService actual = new LookupService(image, LookupService.GEOIP_STANDARD);
+        try {
+            int[] starts = expected.current().range_starts;
+            if (starts == null) {
+                throw new IOException("Only IPv4 editions can be converted: " + dat);
+            }
+            int mismatches = 0;
+            for (int i = 0; i < starts.length; i++) {
+                long start = (starts[i] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+                mismatches += compare(expected, actual, start);
+                if (start > 0) {
+                    mismatches += compare(expected, actual, start - 1);
+                }
+            }
+            mismatches += compare(expected, actual, 0xFFFFFFFFL);
+            Random random = new Random(count);
+            for (int i = 0; i < count; i++) {
+                mismatches += compare(expected, actual, random.nextInt() & 0xFFFFFFFFL);
+            }
+            return mismatches;
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    private static int compare(LookupService expected, LookupService actual, long ipnum) {
+        String e = describe(expected, ipnum);
+        String a = describe(actual, ipnum);
+        if (e.equals(a)) {
+            return 0;
+        }
+        LOG.warning("Mismatch at " + ipnum + ": expected " + e + " but was " + a);
+        return 1;
+    }
+
+    /**
+     * Returns everything the lookups of the database's edition give for an
+     * address, including the netmask.
+     */
+    private static String describe(LookupService lookupService, long ipnum) {
+        int type = lookupService.current().databaseType;
+        StringBuilder b = new StringBuilder();
+        if (type == DatabaseInfo.CITY_EDITION_REV0 || type == DatabaseInfo.CITY_EDITION_REV1) {
+            Location l = lookupService.getLocation(ipnum);
+            if (l != null) {
+                b.append(l.countryCode).append('|').append(l.countryName).append('|').append(l.region)
+                        .append('|').append(l.city).append('|').append(l.postalCode).append('|')
+                        .append(l.latitude).append('|').append(l.longitude).append('|')
+                        .append(l.dma_code).append('|').append(l.metro_code).append('|').append(l.area_code);
+            }
+        } else if (type == DatabaseInfo.REGION_EDITION_REV0 || type == DatabaseInfo.REGION_EDITION_REV1) {
+            Region r = lookupService.getRegion(ipnum);
+            b.append(r.countryCode).append('|').append(r.countryName).append('|').append(r.region);
+        } else if (type == DatabaseInfo.COUNTRY_EDITION || type == DatabaseInfo.PROXY_EDITION
+                || type == DatabaseInfo.NETSPEED_EDITION) {
+            Country c = lookupService.getCountry(ipnum);
+            b.append(c.getCode()).append('|').append(c.getName());
+        } else {
+            b.append(lookupService.getOrg(ipnum));
+        }
+        b.append('|').append(lookupService.getID(ipnum)).append('/').append(lookupService.last_netmask());
+        return b.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 3 && args[0].equals("-verify")) {
+            int count = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_VERIFY_COUNT;
+            int mismatches = verify(new File(args[1]), new File(args[2]), count);
+            if (mismatches > 0) {
+                System.err.println(mismatches + " mismatches");
+                System.exit(1);
+            }
+            System.out.println("OK");
+        } else if (args.length == 2) {
+            convert(new File(args[0]), new File(args[1]));
+        } else {
+            System.err.println("Usage: CompactImageConverter input.dat output.img");
+            System.err.println("       CompactImageConverter -verify input.dat output.img [addresses]");
+            System.exit(2);
+        }
+    }
+}
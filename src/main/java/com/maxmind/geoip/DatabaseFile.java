@@ -0,0 +1,116 @@
+/**
+ * DatabaseFile.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The open database file of an image, for the modes that read records or
+ * the trie from the file.
+ *
+ * The file is reference counted. The LookupService holds one reference
+ * until it closes the file or a reload replaces the image; every lookup
+ * that reads from the file acquires one for its duration. The file is
+ * closed when the last reference is released, so a lookup that started on
+ * an image never reads from a closed file.
+ */
+final class DatabaseFile {
+
+    private static final Logger LOG = Logger.getLogger(DatabaseFile.class.getName());
+    private final RandomAccessFile file;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    DatabaseFile(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Takes a reference for a lookup.
+     *
+     * @return true if the reference was taken; false if the file has
+     * already been closed.
+     */
+    boolean acquire() {
+        while (true) {
+            int n = refs.get();
+            if (n == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference taken with acquire, closing the file if it was the
+     * last one.
+     */
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not close the GeoIP database file", e);
+            }
+        }
+    }
+
+    /**
+     * Drops the owner's reference. The file is closed once the lookups
+     * that acquired it have released it. Calls after the first do nothing.
+     */
+    void close() {
+        if (open.compareAndSet(true, false)) {
+            release();
+        }
+    }
+
+    /**
+     * Reads from the file. The file pointer is shared, so reads are
+     * serialized on the file. Bytes past the end of the file are set to
+     * zero, like the in-memory and mapped reads do for records near the end
+     * of the database.
+     *
+     * @param pos the offset to read from.
+     * @param buf the buffer to fill.
+     * @throws IOException if the file could not be read.
+     */
+    void read(long pos, byte[] buf) throws IOException {
+        int n = 0;
+        synchronized (file) {
+            file.seek(pos);
+            while (n < buf.length) {
+                int read = file.read(buf, n, buf.length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+        }
+        Arrays.fill(buf, n, buf.length, (byte) 0);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * DatabaseImage.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.nio.MappedByteBuffer;
+
+/**
+ * Snapshot of a loaded database: the segment metadata and the in-memory
+ * copies of the trie and record area.
+ *
+ * An image is filled in completely by LookupService while loading and is
+ * never modified after it has been published, so any number of threads may
+ * read from it without locking. Reloading the database builds a new image
+ * and swaps it in.
+ */
+final class DatabaseImage implements Cloneable {
+
+    /**
+     * The database type. Default is the country edition.
+     */
+    byte databaseType = DatabaseInfo.COUNTRY_EDITION;
+    int databaseSegments[];
+    int recordLength;
+    /**
+     * Information about the database.
+     */
+    DatabaseInfo databaseInfo;
+    /**
+     * The database file this image was loaded from, when lookups read from
+     * it; null when the database is held in memory, mapped or a compact
+     * image, which is read from its mapping whatever the options. Lookups
+     * acquire it for as long as they use the image.
+     */
+    DatabaseFile file;
+    /**
+     * The whole database file, when loaded with GEOIP_MEMORY_CACHE.
+     */
+    byte dbbuffer[];
+    /**
+     * The trie, when loaded with GEOIP_INDEX_CACHE.
+     */
+    byte index_cache[];
+    /**
+     * Read-only mapping of the database file, when loaded with
+     * GEOIP_MMAP_CACHE. Only absolute reads are used on it, so it can be
+     * shared between threads. With GEOIP_HYBRID_CACHE only the records
+     * after the trie are mapped, and map_offset is the file offset the
+     * mapping starts at.
+     */
+    MappedByteBuffer mapbuffer;
+    int map_offset;
+    /**
+     * The trie decoded into child pointers, when loaded with
+     * GEOIP_DECODE_INDEX. Node n has its left child at 2 * n and its right
+     * child at 2 * n + 1.
+     */
+    int index_nodes[];
+    /**
+     * Direct lookup table for the first stride_bits levels of the IPv4
+     * trie, when loaded with GEOIP_STRIDE_INDEX. An entry is either a record
+     * (at or above the segment), with its netmask in stride_netmask, or the
+     * node to continue the walk from.
+     */
+    int stride_table[];
+    byte stride_netmask[];
+    int stride_bits;
+    /**
+     * The IPv4 trie flattened into ranges, when loaded with
+     * GEOIP_RANGE_INDEX. Range i starts at range_starts[i] (stored with the
+     * sign bit flipped, so signed comparison orders them as unsigned
+     * addresses) and ends where range i + 1 starts.
+     */
+    int range_starts[];
+    int range_records[];
+    byte range_netmask[];
+    /**
+     * The country of every IPv4 address of a Country edition, when loaded
+     * with GEOIP_COUNTRY_INDEX. Range i starts at country_starts[i],
+     * sign-flipped like range_starts, and has the country index
+     * country_ids[i]; adjacent ranges of the same country are merged. With
+     * GEOIP_STRIDE_INDEX, country_first[p] is the range the address p << 16
+     * falls in.
+     */
+    int country_starts[];
+    byte country_ids[];
+    int country_first[];
+    /**
+     * The strings of every record, when loaded with GEOIP_STRING_DICT.
+     */
+    RecordDictionary dictionary;
+    /**
+     * The database, when it was opened from a compact image. Lookups are
+     * then answered from the image alone.
+     */
+    CompactImage compact;
+
+    /**
+     * Returns a shallow copy, used to publish an image with some of its
+     * indexes replaced.
+     *
+     * @return the copy.
+     */
+    DatabaseImage copy() {
+        try {
+            return (DatabaseImage) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * IPLiteral.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+/**
+ * Strict parser for IP address literals. Unlike InetAddress.getByName it
+ * never consults the resolver, rejects anything that is not a literal and
+ * allocates nothing.
+ *
+ * IPv4 literals are dotted quads of decimal numbers between 0 and 255.
+ * IPv6 literals are up to eight groups of one to four hex digits, with at
+ * most one "::" and optionally a dotted quad as the last 32 bits; zone ids
+ * and brackets are not accepted. Text can be given as a CharSequence or as
+ * ASCII bytes, such as the contents of a Hadoop Text.
+ */
+public final class IPLiteral {
+
+    private IPLiteral() {
+    }
+
+    /**
+     * Parses a dotted quad.
+     *
+     * @param s the text to parse.
+     * @return the address, between 0 and 2^32 - 1, or -1 if s is not an
+     * IPv4 literal.
+     */
+    public static long parseIPv4(CharSequence s) {
+        return s == null ? -1 : parseIPv4(s, null, 0, s.length());
+    }
+
+    /**
+     * Parses a dotted quad from ASCII bytes.
+     *
+     * @param b the bytes.
+     * @param off the offset of the text.
+     * @param len the length of the text.
+     * @return the address, between 0 and 2^32 - 1, or -1 if the text is not
+     * an IPv4 literal.
+     */
+    public static long parseIPv4(byte[] b, int off, int len) {
+        return parseIPv4(null, b, off, off + len);
+    }
+
+    /**
+     * Parses an IPv6 literal.
+     *
+     * @param s the text to parse.
+     * @param address receives the high 64 bits of the address at index 0
+     * and the low 64 bits at index 1.
+     * @return true if s is an IPv6 literal; otherwise false and address is
+     * left in an undefined state.
+     */
+    public static boolean parseIPv6(CharSequence s, long[] address) {
+        return s != null && parseIPv6(s, null, 0, s.length(), address);
+    }
+
+    /**
+     * Parses an IPv6 literal from ASCII bytes.
+     *
+     * @param b the bytes.
+     * @param off the offset of the text.
+     * @param len the length of the text.
+     * @param address receives the high 64 bits of the address at index 0
+     * and the low 64 bits at index 1.
+     * @return true if the text is an IPv6 literal; otherwise false and
+     * address is left in an undefined state.
+     */
+    public static boolean parseIPv6(byte[] b, int off, int len, long[] address) {
+        return parseIPv6(null, b, off, off + len, address);
+    }
+
+    private static int charAt(CharSequence cs, byte[] b, int i) {
+        return cs != null ? cs.charAt(i) : b[i] & 0xFF;
+    }
+
+    private static int hex(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static long parseIPv4(CharSequence cs, byte[] b, int i, int end) {
+        long ip = 0;
+        for (int part = 0; part < 4; part++) {
+            if (part > 0) {
+                if (i >= end || charAt(cs, b, i) != '.') {
+                    return -1;
+                }
+                i++;
+            }
+            int start = i;
+            int v = 0;
+            while (i < end && i - start < 3) {
+                int d = charAt(cs, b, i) - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                v = v * 10 + d;
+                i++;
+            }
+            if (i == start || v > 255) {
+                return -1;
+            }
+            ip = (ip << 8) | v;
+        }
+        return i == end ? ip : -1;
+    }
+
+    private static boolean parseIPv6(CharSequence cs, byte[] b, int i, int end, long[] address) {
+        // groups before a "::" go to head, groups after it to tail
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int groups = 0;
+        int head = -1;
+        if (end - i >= 2 && charAt(cs, b, i) == ':' && charAt(cs, b, i + 1) == ':') {
+            head = 0;
+            i += 2;
+        }
+        while (i < end) {
+            int start = i;
+            int v = 0;
+            while (i < end && i - start < 4) {
+                int d = hex(charAt(cs, b, i));
+                if (d < 0) {
+                    break;
+                }
+                v = (v << 4) | d;
+                i++;
+            }
+            int n = 1;
+            if (i < end && charAt(cs, b, i) == '.') {
+                // a dotted quad as the last 32 bits
+                long ip = parseIPv4(cs, b, start, end);
+                if (ip < 0) {
+                    return false;
+                }
+                v = (int) ip;
+                n = 2;
+                i = end;
+            } else if (i == start) {
+                return false;
+            }
+            int shift = 16 * n;
+            long mask = (1L << shift) - 1;
+            if (head < 0) {
+                headHi = (headHi << shift) | (headLo >>> (64 - shift));
+                headLo = (headLo << shift) | (v & mask);
+            } else {
+                tailHi = (tailHi << shift) | (tailLo >>> (64 - shift));
+                tailLo = (tailLo << shift) | (v & mask);
+            }
+            groups += n;
+            if (groups > 8 || i == end) {
+                break;
+            }
+            if (charAt(cs, b, i) != ':' || ++i == end) {
+                return false;
+            }
+            if (charAt(cs, b, i) == ':') {
+                if (head >= 0) {
+                    return false;
+                }
+                head = groups;
+                i++;
+            }
+        }
+        if (head < 0) {
+            if (groups != 8) {
+                return false;
+            }
+            address[0] = headHi;
+            address[1] = headLo;
+            return true;
+        }
+        if (groups > 7) {
+            return false;
+        }
+        // move the head groups to the top of the address
+        int shift = 16 * (8 - head);
+        if (shift >= 128) {
+            headHi = headLo = 0;
+        } else if (shift >= 64) {
+            headHi = headLo << (shift - 64);
+            headLo = 0;
+        } else {
+            headHi = (headHi << shift) | (headLo >>> (64 - shift));
+            headLo <<= shift;
+        }
+        address[0] = headHi | tailHi;
+        address[1] = headLo | tailLo;
+        return true;
+    }
+}
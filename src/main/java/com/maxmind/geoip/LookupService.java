@@ -23,11 +23,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.InetAddress;
-import java.net.Inet6Address;
-import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.naming.NamingException;
 import javax.naming.directory.Attributes;
@@ -53,7 +58,10 @@ import javax.naming.directory.InitialDirContext;
  * </pre>
  *
  * In general, a single LookupService instance should be created and then reused
- * repeatedly.<p>
+ * repeatedly. A LookupService may be shared between threads. When the database
+ * is held in memory (GEOIP_MEMORY_CACHE) or mapped (GEOIP_MMAP_CACHE) lookups
+ * do not take any lock; only the modes that read from the file serialize their
+ * reads.<p>
  *
  * <i>Tip:</i> Those deploying the GeoIP API as part of a web application may
  * find it difficult to pass in a File to create the lookup service, as the
@@ -71,27 +79,43 @@ import javax.naming.directory.InitialDirContext;
  */
 public class LookupService {
 
-        /**
-         * Database file.
-         */
-        private RandomAccessFile file = null;
         private File databaseFile = null;
+        private static final Logger LOG = Logger.getLogger(LookupService.class.getName());
         /**
-         * Information about the database.
-         */
-        private DatabaseInfo databaseInfo = null;
-        /**
-         * The database type. Default is the country edition.
+         * The currently loaded database. Lookups read this field once and
+         * work on that copy only, so a reload never exposes a half-built
+         * database to them.
          */
-        byte databaseType = DatabaseInfo.COUNTRY_EDITION;
-        int databaseSegments[];
-        int recordLength;
+        private volatile DatabaseImage image = null;
         String licenseKey;
         int dnsService = 0;
         int dboptions;
-        byte dbbuffer[];
-        byte index_cache[];
-        long mtime;
+        volatile long mtime;
+        volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+        private final AtomicLong nextCheck = new AtomicLong();
+        private final AtomicBoolean reloading = new AtomicBoolean();
+        /**
+         * Set by close, so that a reload still in progress does not open the
+         * database again. Guarded by this.
+         */
+        private boolean closed;
+        int strideBits = DEFAULT_STRIDE_BITS;
+        private volatile RecordCache recordCache = null;
+        private volatile NetmaskCache netmaskCache = null;
+        private final ThreadLocal<long[]> addressBuffer = new ThreadLocal<long[]>() {
+                protected long[] initialValue() {
+                        return new long[2];
+                }
+        };
+        private final ThreadLocal<byte[]> recordBuffer = new ThreadLocal<byte[]>() {
+                protected byte[] initialValue() {
+                        return new byte[FULL_RECORD_LENGTH];
+                }
+        };
+        /**
+         * The netmask of the last lookup, written by every lookup without
+         * synchronization; see last_netmask().
+         */
         int last_netmask;
         private final static int US_OFFSET = 1;
         private final static int CANADA_OFFSET = 677;
@@ -106,6 +130,29 @@ public class LookupService {
         public final static int GEOIP_MEMORY_CACHE = 1;
         public final static int GEOIP_CHECK_CACHE = 2;
         public final static int GEOIP_INDEX_CACHE = 4;
+        public final static int GEOIP_MMAP_CACHE = 8;
+        public final static int GEOIP_DECODE_INDEX = 16;
+        public final static int GEOIP_STRIDE_INDEX = 32;
+        public final static int GEOIP_RANGE_INDEX = 64;
+        public final static int GEOIP_STRING_DICT = 128;
+        /**
+         * Keeps the trie on the heap as with GEOIP_INDEX_CACHE and maps only
+         * the records, so lookups never read the file. Combined with
+         * GEOIP_DECODE_INDEX, the trie is only kept decoded.
+         */
+        public final static int GEOIP_HYBRID_CACHE = GEOIP_INDEX_CACHE | GEOIP_MMAP_CACHE;
+        /**
+         * Expands a Country, Proxy or Netspeed edition into a table of
+         * address ranges and their country index, so getCountry and getID
+         * take a binary search and allocate nothing. With GEOIP_STRIDE_INDEX
+         * the search starts from a table of the 2^16 first-level prefixes,
+         * which resolves most addresses in one or two reads. Adjacent ranges
+         * of the same country are merged, so these two lookups do not update
+         * last_netmask.
+         */
+        public final static int GEOIP_COUNTRY_INDEX = 256;
+        public final static int RECORD_CACHE_DIRECT = 0;
+        public final static int RECORD_CACHE_LRU = 1;
         public final static int GEOIP_UNKNOWN_SPEED = 0;
         public final static int GEOIP_DIALUP_SPEED = 1;
         public final static int GEOIP_CABLEDSL_SPEED = 2;
@@ -116,10 +163,14 @@ public class LookupService {
         private final static int MAX_RECORD_LENGTH = 4;
         private final static int MAX_ORG_RECORD_LENGTH = 300;
         private final static int FULL_RECORD_LENGTH = 60;
-        private final Country UNKNOWN_COUNTRY = new Country("--", "N/A");
+        private final static int DEFAULT_STRIDE_BITS = 16;
+        private final static long DEFAULT_CHECK_INTERVAL = 60 * 1000;
+        private final static int MAX_STRIDE_BITS = 24;
+        private final static int BATCH_LANES = 4;
+        private static final Country UNKNOWN_COUNTRY = new Country("--", "N/A");
         private static final HashMap hashmapcountryCodetoindex = new HashMap(512);
         private static final HashMap hashmapcountryNametoindex = new HashMap(512);
-        private static final String[] countryCode = {
+        static final String[] countryCode = {
                 "--", "AP", "EU", "AD", "AE", "AF", "AG", "AI", "AL", "AM", "CW",
                 "AO", "AQ", "AR", "AS", "AT", "AU", "AW", "AZ", "BA", "BB",
                 "BD", "BE", "BF", "BG", "BH", "BI", "BJ", "BM", "BN", "BO",
@@ -146,7 +197,7 @@ public class LookupService {
                 "VG", "VI", "VN", "VU", "WF", "WS", "YE", "YT", "RS", "ZA",
                 "ZM", "ME", "ZW", "A1", "A2", "O1", "AX", "GG", "IM", "JE",
                 "BL", "MF", "BQ"};
-        private static final String[] countryName = {
+        static final String[] countryName = {
                 "N/A", "Asia/Pacific Region", "Europe", "Andorra", "United Arab Emirates", "Afghanistan", "Antigua and Barbuda", "Anguilla", "Albania", "Armenia", "Curacao",
                 "Angola", "Antarctica", "Argentina", "American Samoa", "Austria", "Australia", "Aruba", "Azerbaijan", "Bosnia and Herzegovina", "Barbados",
                 "Bangladesh", "Belgium", "Burkina Faso", "Bulgaria", "Bahrain", "Burundi", "Benin", "Bermuda", "Brunei Darussalam", "Bolivia",
@@ -174,6 +225,11 @@ public class LookupService {
                 "Zambia", "Montenegro", "Zimbabwe", "Anonymous Proxy", "Satellite Provider", "Other", "Aland Islands", "Guernsey", "Isle of Man", "Jersey",
                 "Saint Barthelemy", "Saint Martin", "Bonaire, Saint Eustatius and Saba"
         };
+        /**
+         * One shared Country per country index. Country is immutable, so
+         * getCountry returns these instead of allocating.
+         */
+        private static final Country[] countries = new Country[countryCode.length];
 
 
         /* init the hashmap once at startup time */
@@ -187,6 +243,7 @@ public class LookupService {
                 for (i = 0; i < countryCode.length; i++) {
                         hashmapcountryCodetoindex.put(countryCode[i], Integer.valueOf(i));
                         hashmapcountryNametoindex.put(countryName[i], Integer.valueOf(i));
+                        countries[i] = new Country(countryCode[i], countryName[i]);
                 }
         }
 
@@ -228,7 +285,6 @@ public class LookupService {
         public LookupService(int options, String licenseKey) throws IOException {
                 this.licenseKey = licenseKey;
                 dnsService = 1;
-                init();
         }
 
         /**
@@ -251,8 +307,7 @@ public class LookupService {
          */
         public LookupService(File databaseFile) throws IOException {
                 this.databaseFile = databaseFile;
-                this.file = new RandomAccessFile(databaseFile, "r");
-                init();
+                init(new RandomAccessFile(databaseFile, "r"));
         }
 
         /**
@@ -261,7 +316,14 @@ public class LookupService {
          * @param databaseFile String representation of the database file.
          * @param options database flags to use when opening the database
          * GEOIP_STANDARD read database from disk GEOIP_MEMORY_CACHE cache the
-         * database in RAM and read it from RAM
+         * database in RAM and read it from RAM GEOIP_MMAP_CACHE map the
+         * database file into memory and read it from the mapping
+         * GEOIP_HYBRID_CACHE keep the trie in RAM and map only the records
+         * GEOIP_DECODE_INDEX decode the trie into an int array when loading
+         * GEOIP_STRIDE_INDEX index the first levels of the trie in a direct
+         * lookup table GEOIP_RANGE_INDEX flatten the trie into a sorted range
+         * table and binary search it GEOIP_COUNTRY_INDEX expand a Country
+         * edition into a table of country ranges
          * @throws java.io.IOException if an error occured creating the lookup
          * service from the database file.
          */
@@ -275,52 +337,126 @@ public class LookupService {
          * @param databaseFile the database file.
          * @param options database flags to use when opening the database
          * GEOIP_STANDARD read database from disk GEOIP_MEMORY_CACHE cache the
-         * database in RAM and read it from RAM
+         * database in RAM and read it from RAM GEOIP_MMAP_CACHE map the
+         * database file into memory and read it from the mapping
+         * GEOIP_HYBRID_CACHE keep the trie in RAM and map only the records
+         * GEOIP_DECODE_INDEX decode the trie into an int array when loading
+         * GEOIP_STRIDE_INDEX index the first levels of the trie in a direct
+         * lookup table GEOIP_RANGE_INDEX flatten the trie into a sorted range
+         * table and binary search it GEOIP_COUNTRY_INDEX expand a Country
+         * edition into a table of country ranges
          * @throws java.io.IOException if an error occured creating the lookup
          * service from the database file.
          */
         public LookupService(File databaseFile, int options) throws IOException {
                 this.databaseFile = databaseFile;
-                this.file = new RandomAccessFile(databaseFile, "r");
                 dboptions = options;
-                init();
+                init(new RandomAccessFile(databaseFile, "r"));
         }
 
         /**
          * Reads meta-data from the database file.
          *
+         * @param file the opened database file.
+         * @throws java.io.IOException if an error occurs reading from the
+         * database file.
+         */
+        private void init(RandomAccessFile file) throws IOException {
+                if ((dboptions & GEOIP_CHECK_CACHE) != 0) {
+                        mtime = databaseFile.lastModified();
+                        nextCheck.set(System.currentTimeMillis() + checkInterval);
+                }
+                image = openImage(file);
+        }
+
+        /**
+         * Loads an image from a newly opened database file. The file is
+         * closed right away if the lookups will not read from it, or if the
+         * image could not be loaded.
+         *
+         * @param file the opened database file.
+         * @return the image, ready to be published.
+         * @throws java.io.IOException if an error occurs reading from the
+         * database file.
+         */
+        private DatabaseImage openImage(RandomAccessFile file) throws IOException {
+                DatabaseImage img = null;
+                try {
+                        img = loadImage(file);
+                } finally {
+                        if (img == null) {
+                                file.close();
+                        }
+                }
+                if (img.file == null) {
+                        // a compact image is read from its mapping alone
+                        file.close();
+                } else if ((dboptions & (GEOIP_MEMORY_CACHE | GEOIP_MMAP_CACHE)) != 0) {
+                        img.file.close();
+                        img.file = null;
+                }
+                return img;
+        }
+
+        /**
+         * Sets how often GEOIP_CHECK_CACHE looks at the modification time of
+         * the database file. The default is 60 seconds.
+         *
+         * @param seconds the minimum number of seconds between two checks, 0
+         * to check on every lookup.
+         */
+        public void setCheckInterval(long seconds) {
+                if (seconds < 0) {
+                        throw new IllegalArgumentException("Check interval must not be negative");
+                }
+                checkInterval = seconds * 1000;
+                nextCheck.set(0);
+        }
+
+        /**
+         * Reads the database structure from the file into a new image.
+         *
+         * @param file the opened database file.
+         * @return the image, ready to be published.
          * @throws java.io.IOException if an error occurs reading from the
          * database file.
          */
-        private void init() throws IOException {
+        private DatabaseImage loadImage(RandomAccessFile file) throws IOException {
                 int i, j;
                 byte[] delim = new byte[3];
                 byte[] buf = new byte[SEGMENT_RECORD_LENGTH];
-
-                if (file == null) {
-                        return;
-                }
-                if ((dboptions & GEOIP_CHECK_CACHE) != 0) {
-                        mtime = databaseFile.lastModified();
+                DatabaseImage img = new DatabaseImage();
+
+                if (CompactImage.isCompact(file)) {
+                        // everything is read in place from the mapping
+                        CompactImage compact = CompactImage.open(file);
+                        img.compact = compact;
+                        img.databaseType = (byte) compact.databaseType;
+                        img.databaseSegments = new int[]{compact.segment};
+                        img.recordLength = compact.recordLength;
+                        img.databaseInfo = new DatabaseInfo(compact.info);
+                        return img;
                 }
+                img.file = new DatabaseFile(file);
                 file.seek(file.length() - 3);
                 for (i = 0; i < STRUCTURE_INFO_MAX_SIZE; i++) {
                         file.readFully(delim);
                         if (delim[0] == -1 && delim[1] == -1 && delim[2] == -1) {
-                                databaseType = file.readByte();
-                                if (databaseType >= 106) {
+                                img.databaseType = file.readByte();
+                                if (img.databaseType >= 106) {
                                         // Backward compatibility with databases from April 2003 and earlier
-                                        databaseType -= 105;
+                                        img.databaseType -= 105;
                                 }
+                                byte databaseType = img.databaseType;
                                 // Determine the database type.
                                 if (databaseType == DatabaseInfo.REGION_EDITION_REV0) {
-                                        databaseSegments = new int[1];
-                                        databaseSegments[0] = STATE_BEGIN_REV0;
-                                        recordLength = STANDARD_RECORD_LENGTH;
+                                        img.databaseSegments = new int[1];
+                                        img.databaseSegments[0] = STATE_BEGIN_REV0;
+                                        img.recordLength = STANDARD_RECORD_LENGTH;
                                 } else if (databaseType == DatabaseInfo.REGION_EDITION_REV1) {
-                                        databaseSegments = new int[1];
-                                        databaseSegments[0] = STATE_BEGIN_REV1;
-                                        recordLength = STANDARD_RECORD_LENGTH;
+                                        img.databaseSegments = new int[1];
+                                        img.databaseSegments[0] = STATE_BEGIN_REV1;
+                                        img.recordLength = STANDARD_RECORD_LENGTH;
                                 } else if (databaseType == DatabaseInfo.CITY_EDITION_REV0
                                         || databaseType == DatabaseInfo.CITY_EDITION_REV1
                                         || databaseType == DatabaseInfo.ORG_EDITION
@@ -335,8 +471,8 @@ public class LookupService {
                                         || databaseType == DatabaseInfo.NETSPEED_EDITION_REV1_V6
                                         || databaseType == DatabaseInfo.CITY_EDITION_REV0_V6
                                         || databaseType == DatabaseInfo.CITY_EDITION_REV1_V6) {
-                                        databaseSegments = new int[1];
-                                        databaseSegments[0] = 0;
+                                        img.databaseSegments = new int[1];
+                                        img.databaseSegments[0] = 0;
                                         if (databaseType == DatabaseInfo.CITY_EDITION_REV0
                                                 || databaseType == DatabaseInfo.CITY_EDITION_REV1
                                                 || databaseType == DatabaseInfo.ASNUM_EDITION_V6
@@ -345,13 +481,13 @@ public class LookupService {
                                                 || databaseType == DatabaseInfo.CITY_EDITION_REV0_V6
                                                 || databaseType == DatabaseInfo.CITY_EDITION_REV1_V6
                                                 || databaseType == DatabaseInfo.ASNUM_EDITION) {
-                                                recordLength = STANDARD_RECORD_LENGTH;
+                                                img.recordLength = STANDARD_RECORD_LENGTH;
                                         } else {
-                                                recordLength = ORG_RECORD_LENGTH;
+                                                img.recordLength = ORG_RECORD_LENGTH;
                                         }
                                         file.readFully(buf);
                                         for (j = 0; j < SEGMENT_RECORD_LENGTH; j++) {
-                                                databaseSegments[0] += (unsignedByteToInt(buf[j]) << (j * 8));
+                                                img.databaseSegments[0] += (unsignedByteToInt(buf[j]) << (j * 8));
                                         }
                                 }
                                 break;
@@ -359,44 +495,518 @@ public class LookupService {
                                 file.seek(file.getFilePointer() - 4);
                         }
                 }
-                if ((databaseType == DatabaseInfo.COUNTRY_EDITION)
-                        || (databaseType == DatabaseInfo.COUNTRY_EDITION_V6)
-                        || (databaseType == DatabaseInfo.PROXY_EDITION)
-                        || (databaseType == DatabaseInfo.NETSPEED_EDITION)) {
-                        databaseSegments = new int[1];
-                        databaseSegments[0] = COUNTRY_BEGIN;
-                        recordLength = STANDARD_RECORD_LENGTH;
+                if ((img.databaseType == DatabaseInfo.COUNTRY_EDITION)
+                        || (img.databaseType == DatabaseInfo.COUNTRY_EDITION_V6)
+                        || (img.databaseType == DatabaseInfo.PROXY_EDITION)
+                        || (img.databaseType == DatabaseInfo.NETSPEED_EDITION)) {
+                        img.databaseSegments = new int[1];
+                        img.databaseSegments[0] = COUNTRY_BEGIN;
+                        img.recordLength = STANDARD_RECORD_LENGTH;
                 }
+                img.databaseInfo = readDatabaseInfo(file);
                 if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
                         int l = (int) file.length();
-                        dbbuffer = new byte[l];
+                        img.dbbuffer = new byte[l];
                         file.seek(0);
-                        file.readFully(dbbuffer, 0, l);
-                        databaseInfo = this.getDatabaseInfo();
-                        file.close();
+                        file.readFully(img.dbbuffer, 0, l);
+                } else if ((dboptions & GEOIP_MMAP_CACHE) != 0) {
+                        // the mapping stays valid after the file is closed
+                        FileChannel channel = file.getChannel();
+                        if ((dboptions & GEOIP_INDEX_CACHE) != 0) {
+                                // the trie is read into the heap, map the records only
+                                img.map_offset = indexLength(file, img);
+                        }
+                        img.mapbuffer = channel.map(FileChannel.MapMode.READ_ONLY, img.map_offset,
+                                channel.size() - img.map_offset);
                 }
                 if ((dboptions & GEOIP_INDEX_CACHE) != 0) {
-                        int l = databaseSegments[0] * recordLength * 2;
-                        index_cache = new byte[l];
-                        if (index_cache != null) {
-                                file.seek(0);
-                                file.readFully(index_cache, 0, l);
+                        int l = indexLength(file, img);
+                        img.index_cache = new byte[l];
+                        file.seek(0);
+                        file.readFully(img.index_cache, 0, l);
+                }
+                if ((dboptions & GEOIP_DECODE_INDEX) != 0) {
+                        img.index_nodes = decodeIndex(file, img);
+                }
+                if ((dboptions & GEOIP_STRIDE_INDEX) != 0) {
+                        buildStrideIndex(img, strideBits);
+                }
+                if ((dboptions & GEOIP_RANGE_INDEX) != 0 && !isV6(img.databaseType)) {
+                        buildRangeIndex(img);
+                }
+                if ((dboptions & GEOIP_COUNTRY_INDEX) != 0 && img.databaseSegments[0] == COUNTRY_BEGIN
+                        && !isV6(img.databaseType)) {
+                        buildCountryIndex(img, (dboptions & GEOIP_STRIDE_INDEX) != 0);
+                }
+                if ((dboptions & GEOIP_STRING_DICT) != 0
+                        && (isCity(img.databaseType) || isOrg(img.databaseType))) {
+                        img.dictionary = buildDictionary(file, img);
+                }
+                if ((dboptions & GEOIP_HYBRID_CACHE) == GEOIP_HYBRID_CACHE && img.index_nodes != null) {
+                        // every lookup walks the decoded trie from here on
+                        img.index_cache = null;
+                }
+                return img;
+        }
+
+        /**
+         * Returns the length of the trie at the start of the database file.
+         * Country editions only give an upper bound, so it is capped at the
+         * file length.
+         *
+         * @param file the opened database file.
+         * @param img the image being loaded.
+         * @return the length in bytes.
+         * @throws java.io.IOException if the file length could not be read.
+         */
+        private static int indexLength(RandomAccessFile file, DatabaseImage img) throws IOException {
+                return (int) Math.min((long) img.databaseSegments[0] * img.recordLength * 2, file.length());
+        }
+
+        private static boolean isCity(int databaseType) {
+                return databaseType == DatabaseInfo.CITY_EDITION_REV0
+                        || databaseType == DatabaseInfo.CITY_EDITION_REV1
+                        || databaseType == DatabaseInfo.CITY_EDITION_REV0_V6
+                        || databaseType == DatabaseInfo.CITY_EDITION_REV1_V6;
+        }
+
+        private static boolean isOrg(int databaseType) {
+                return databaseType == DatabaseInfo.ORG_EDITION
+                        || databaseType == DatabaseInfo.ORG_EDITION_V6
+                        || databaseType == DatabaseInfo.ISP_EDITION
+                        || databaseType == DatabaseInfo.ISP_EDITION_V6
+                        || databaseType == DatabaseInfo.DOMAIN_EDITION
+                        || databaseType == DatabaseInfo.DOMAIN_EDITION_V6
+                        || databaseType == DatabaseInfo.ASNUM_EDITION
+                        || databaseType == DatabaseInfo.ASNUM_EDITION_V6
+                        || databaseType == DatabaseInfo.NETSPEED_EDITION_REV1
+                        || databaseType == DatabaseInfo.NETSPEED_EDITION_REV1_V6;
+        }
+
+        /**
+         * Decodes every record of a City or Org database into a dictionary.
+         * The records are found as the trie children at or above the
+         * segment, so the trie does not have to be walked.
+         *
+         * @param file the opened database file.
+         * @param img the image being loaded.
+         * @return the dictionary.
+         * @throws java.io.IOException if an error occurs reading from the
+         * database file.
+         */
+        private RecordDictionary buildDictionary(RandomAccessFile file, DatabaseImage img) throws IOException {
+                long started = System.currentTimeMillis();
+                DatabaseImage src = img;
+                if (img.dbbuffer == null && img.mapbuffer == null) {
+                        // read the file once instead of seeking to every record
+                        src = img.copy();
+                        src.dbbuffer = new byte[(int) file.length()];
+                        file.seek(0);
+                        file.readFully(src.dbbuffer);
+                }
+                int segment = img.databaseSegments[0];
+                int[] nodes = img.index_nodes != null ? img.index_nodes : decodeIndex(file, src);
+                BitSet records = new BitSet();
+                for (int i = 0; i < nodes.length; i++) {
+                        if (nodes[i] > segment) {
+                                records.set(nodes[i] - segment);
+                        }
+                }
+
+                boolean city = isCity(img.databaseType);
+                RecordDictionary.Builder dict = new RecordDictionary.Builder(records.cardinality(), city);
+                byte[] buf = new byte[city ? FULL_RECORD_LENGTH : MAX_ORG_RECORD_LENGTH];
+                int offset = segment + (2 * img.recordLength - 1) * segment;
+                for (int x = records.nextSetBit(0); x >= 0; x = records.nextSetBit(x + 1)) {
+                        int record_pointer = offset + x;
+                        if (city) {
+                                Location location = new Location();
+                                decodeLocation(src, record_pointer, buf, location);
+                                dict.addLocation(record_pointer, location);
+                        } else {
+                                dict.addOrg(record_pointer, decodeOrg(src, record_pointer, buf));
+                        }
+                }
+                return dict.build(started);
+        }
+
+        private static boolean isV6(int databaseType) {
+                return databaseType == DatabaseInfo.COUNTRY_EDITION_V6
+                        || databaseType == DatabaseInfo.ASNUM_EDITION_V6
+                        || databaseType == DatabaseInfo.ISP_EDITION_V6
+                        || databaseType == DatabaseInfo.ORG_EDITION_V6
+                        || databaseType == DatabaseInfo.DOMAIN_EDITION_V6
+                        || databaseType == DatabaseInfo.CITY_EDITION_REV1_V6
+                        || databaseType == DatabaseInfo.CITY_EDITION_REV0_V6
+                        || databaseType == DatabaseInfo.NETSPEED_EDITION_REV1_V6;
+        }
+
+        /**
+         * Flattens the IPv4 trie into a table of address ranges sorted by
+         * their first address, one range per leaf.
+         *
+         * @param img the image to index.
+         */
+        private void buildRangeIndex(DatabaseImage img) {
+                int count = countRanges(img, 0, 0);
+                img.range_starts = new int[count];
+                img.range_records = new int[count];
+                img.range_netmask = new byte[count];
+                fillRanges(img, 0, 0, 0, 0);
+        }
+
+        private int countRanges(DatabaseImage img, int level, int offset) {
+                if (level == 32) {
+                        return 1;
+                }
+                long node = readNode(img, offset);
+                int[] x = {(int) node, (int) (node >>> 32)};
+                int count = 0;
+                for (int i = 0; i < 2; i++) {
+                        if (x[i] >= img.databaseSegments[0]) {
+                                count++;
+                        } else {
+                                count += countRanges(img, level + 1, x[i]);
+                        }
+                }
+                return count;
+        }
+
+        private int fillRanges(DatabaseImage img, int n, long prefix, int level, int offset) {
+                if (level == 32) {
+                        // a walk this deep finds nothing, see seekCountry
+                        img.range_starts[n] = (int) prefix ^ Integer.MIN_VALUE;
+                        img.range_netmask[n] = 32;
+                        return n + 1;
+                }
+                long node = readNode(img, offset);
+                int[] x = {(int) node, (int) (node >>> 32)};
+                for (int i = 0; i < 2; i++) {
+                        long start = prefix | ((long) i << (31 - level));
+                        if (x[i] >= img.databaseSegments[0]) {
+                                // starts are stored sign-flipped so they sort as unsigned
+                                img.range_starts[n] = (int) start ^ Integer.MIN_VALUE;
+                                img.range_records[n] = x[i];
+                                img.range_netmask[n] = (byte) (level + 1);
+                                n++;
+                        } else {
+                                n = fillRanges(img, n, start, level + 1, x[i]);
+                        }
+                }
+                return n;
+        }
+
+        /**
+         * Builds the country range table of a Country edition from its range
+         * table, merging adjacent ranges of the same country.
+         *
+         * @param img the image to index.
+         * @param firstLevel whether to also build the table of 2^16
+         * first-level prefixes.
+         */
+        private void buildCountryIndex(DatabaseImage img, boolean firstLevel) {
+                DatabaseImage ranges = img;
+                if (img.range_starts == null) {
+                        ranges = img.copy();
+                        buildRangeIndex(ranges);
+                }
+                int[] records = ranges.range_records;
+                int[] starts = new int[records.length];
+                byte[] ids = new byte[records.length];
+                int count = 0;
+                for (int i = 0; i < records.length; i++) {
+                        // a walk that finds nothing counts as the unknown country
+                        byte id = (byte) (records[i] >= COUNTRY_BEGIN ? records[i] - COUNTRY_BEGIN : 0);
+                        if (count == 0 || ids[count - 1] != id) {
+                                starts[count] = ranges.range_starts[i];
+                                ids[count++] = id;
+                        }
+                }
+                img.country_starts = Arrays.copyOf(starts, count);
+                img.country_ids = Arrays.copyOf(ids, count);
+                if (firstLevel) {
+                        img.country_first = new int[1 << 16];
+                        for (int p = 0; p < img.country_first.length; p++) {
+                                img.country_first[p] = findRange(img.country_starts, (long) p << 16);
                         }
+                }
+        }
+
+        /**
+         * Finds the country index of an IPv4 address in the country range
+         * table.
+         *
+         * @param img the image to search.
+         * @param ipAddress the ip address, between 0 and 2^32 - 1.
+         * @return the country index.
+         */
+        private static int countryIndex(DatabaseImage img, long ipAddress) {
+                int[] starts = img.country_starts;
+                int[] first = img.country_first;
+                int i;
+                if (first != null) {
+                        int p = (int) (ipAddress >>> 16);
+                        int from = first[p];
+                        int to = p + 1 < first.length ? first[p + 1] : starts.length - 1;
+                        // most prefixes lie in a single range
+                        i = from == to ? from : findRange(starts, from, to - from + 1, ipAddress);
                 } else {
-                        index_cache = null;
+                        i = findRange(starts, 0, starts.length, ipAddress);
                 }
+                return img.country_ids[i] & 0xFF;
         }
 
         /**
-         * Closes the lookup service.
+         * Finds the range an IPv4 address falls in.
+         *
+         * @param starts the sign-flipped range starts.
+         * @param ipAddress the ip address, between 0 and 2^32 - 1.
+         * @return the index of the range.
          */
-        public void close() {
-                try {
-                        if (file != null) {
-                                file.close();
+        private static int findRange(int[] starts, long ipAddress) {
+                return findRange(starts, 0, starts.length, ipAddress);
+        }
+
+        /**
+         * Finds the range an IPv4 address falls in among n consecutive
+         * ranges, the first of which must not start above the address.
+         *
+         * @param starts the sign-flipped range starts.
+         * @param lo the first range to consider.
+         * @param n the number of ranges to consider.
+         * @param ipAddress the ip address, between 0 and 2^32 - 1.
+         * @return the index of the range.
+         */
+        private static int findRange(int[] starts, int lo, int n, long ipAddress) {
+                int key = (int) ipAddress ^ Integer.MIN_VALUE;
+                while (n > 1) {
+                        int half = n >>> 1;
+                        lo = starts[lo + half] <= key ? lo + half : lo;
+                        n -= half;
+                }
+                return lo;
+        }
+
+        /**
+         * Sets how many leading bits of an IPv4 address the
+         * GEOIP_STRIDE_INDEX table resolves in one step. The table has
+         * 2^bits entries; the default is 16. If the table is in use it is
+         * rebuilt and swapped in.
+         *
+         * @param bits the stride, between 1 and 24.
+         */
+        public synchronized void setStrideBits(int bits) {
+                if (bits < 1 || bits > MAX_STRIDE_BITS) {
+                        throw new IllegalArgumentException("Stride must be between 1 and " + MAX_STRIDE_BITS + " bits");
+                }
+                strideBits = bits;
+                DatabaseImage img = image;
+                if (img != null && img.stride_table != null && (img.file == null || img.file.acquire())) {
+                        try {
+                                DatabaseImage copy = img.copy();
+                                buildStrideIndex(copy, bits);
+                                image = copy;
+                        } finally {
+                                release(img);
                         }
-                        file = null;
-                } catch (Exception e) {
+                }
+        }
+
+        /**
+         * Keeps up to size decoded City records, so that addresses ending on
+         * a record that was decoded before return the same Location without
+         * decoding it again. Cached Location objects are shared between
+         * callers and must not be modified.
+         *
+         * @param size the maximum number of records, 0 to disable the cache.
+         * @param policy RECORD_CACHE_DIRECT for a lock-free cache where a
+         * record replaces the one in its slot, or RECORD_CACHE_LRU to evict
+         * the least recently used record.
+         */
+        public void setRecordCache(int size, int policy) {
+                if (size < 0) {
+                        throw new IllegalArgumentException("Cache size must not be negative");
+                }
+                if (policy != RECORD_CACHE_DIRECT && policy != RECORD_CACHE_LRU) {
+                        throw new IllegalArgumentException("Unknown cache policy " + policy);
+                }
+                recordCache = size == 0 ? null : RecordCache.create(size, policy);
+        }
+
+        /**
+         * Returns how many getLocation calls were answered from the record
+         * cache.
+         *
+         * @return the number of hits.
+         */
+        public long getRecordCacheHits() {
+                RecordCache cache = recordCache;
+                return cache == null ? 0 : cache.hits();
+        }
+
+        /**
+         * Returns how many getLocation calls had to decode their record.
+         *
+         * @return the number of misses.
+         */
+        public long getRecordCacheMisses() {
+                RecordCache cache = recordCache;
+                return cache == null ? 0 : cache.misses();
+        }
+
+        /**
+         * Remembers the network blocks of the last size IPv4 lookups. An
+         * address inside a remembered block is answered without searching
+         * the database, which pays off when addresses arrive clustered or
+         * sorted.
+         *
+         * @param size the number of blocks to remember, 0 to disable the
+         * cache.
+         */
+        public void setNetmaskCache(int size) {
+                if (size < 0) {
+                        throw new IllegalArgumentException("Cache size must not be negative");
+                }
+                netmaskCache = size == 0 ? null : new NetmaskCache(size);
+        }
+
+        /**
+         * Returns how many IPv4 lookups were answered from a remembered
+         * network block.
+         *
+         * @return the number of hits.
+         */
+        public long getNetmaskCacheHits() {
+                NetmaskCache cache = netmaskCache;
+                return cache == null ? 0 : cache.hits();
+        }
+
+        /**
+         * Returns how many IPv4 lookups had to search the database.
+         *
+         * @return the number of misses.
+         */
+        public long getNetmaskCacheMisses() {
+                NetmaskCache cache = netmaskCache;
+                return cache == null ? 0 : cache.misses();
+        }
+
+        /**
+         * Returns the number of distinct strings in the dictionary built with
+         * GEOIP_STRING_DICT.
+         *
+         * @return the number of strings, or 0 if there is no dictionary.
+         */
+        public int getStringDictionarySize() {
+                RecordDictionary dict = current().dictionary;
+                return dict == null ? 0 : dict.strings.length;
+        }
+
+        /**
+         * Returns the approximate heap size of the dictionary built with
+         * GEOIP_STRING_DICT, including the decoded records.
+         *
+         * @return the size in bytes, or 0 if there is no dictionary.
+         */
+        public long getStringDictionaryBytes() {
+                RecordDictionary dict = current().dictionary;
+                return dict == null ? 0 : dict.bytes;
+        }
+
+        /**
+         * Returns how long building the dictionary with GEOIP_STRING_DICT
+         * took when the database was last loaded.
+         *
+         * @return the time in milliseconds, or 0 if there is no dictionary.
+         */
+        public long getStringDictionaryLoadTime() {
+                RecordDictionary dict = current().dictionary;
+                return dict == null ? 0 : dict.loadMillis;
+        }
+
+        /**
+         * Builds the direct lookup table for the first levels of the trie.
+         * Each entry holds either the record every address with that prefix
+         * ends on, or the node to continue the walk from.
+         *
+         * @param img the image to index.
+         * @param bits the number of leading bits to index.
+         */
+        private void buildStrideIndex(DatabaseImage img, int bits) {
+                img.stride_bits = bits;
+                img.stride_table = new int[1 << bits];
+                img.stride_netmask = new byte[1 << bits];
+                fillStrideIndex(img, 0, 0, 0);
+        }
+
+        private void fillStrideIndex(DatabaseImage img, int prefix, int level, int offset) {
+                int bits = img.stride_bits;
+                if (level == bits) {
+                        img.stride_table[prefix] = offset;
+                        return;
+                }
+                long node = readNode(img, offset);
+                int[] x = {(int) node, (int) (node >>> 32)};
+                for (int i = 0; i < 2; i++) {
+                        int child = (prefix << 1) | i;
+                        if (x[i] >= img.databaseSegments[0]) {
+                                int span = bits - level - 1;
+                                int from = child << span;
+                                for (int k = from; k < from + (1 << span); k++) {
+                                        img.stride_table[k] = x[i];
+                                        img.stride_netmask[k] = (byte) (level + 1);
+                                }
+                        } else {
+                                fillStrideIndex(img, child, level + 1, x[i]);
+                        }
+                }
+        }
+
+        /**
+         * Decodes the trie into left/right child pairs, so a lookup step is a
+         * single array read.
+         *
+         * @param file the opened database file.
+         * @param img the image being loaded.
+         * @return the child pointers, two per node.
+         * @throws java.io.IOException if an error occurs reading from the
+         * database file.
+         */
+        private int[] decodeIndex(RandomAccessFile file, DatabaseImage img) throws IOException {
+                int recordLength = img.recordLength;
+                int l = indexLength(file, img);
+                byte[] raw;
+                if (img.dbbuffer != null) {
+                        raw = img.dbbuffer;
+                } else if (img.index_cache != null) {
+                        raw = img.index_cache;
+                } else {
+                        raw = new byte[l];
+                        file.seek(0);
+                        file.readFully(raw, 0, l);
+                }
+                int[] nodes = new int[l / recordLength];
+                for (int i = 0, p = 0; i < nodes.length; i++) {
+                        int x = 0;
+                        for (int j = 0; j < recordLength; j++, p++) {
+                                x += unsignedByteToInt(raw[p]) << (j * 8);
+                        }
+                        nodes[i] = x;
+                }
+                return nodes;
+        }
+
+        /**
+         * Closes the lookup service. The database file is closed once the
+         * lookups in progress are done with it; later lookups that would read
+         * from it throw IllegalStateException. A database held in memory or
+         * mapped stays usable.
+         */
+        public synchronized void close() {
+                closed = true;
+                DatabaseImage img = image;
+                if (img != null && img.file != null) {
+                        img.file.close();
                 }
         }
 
@@ -408,13 +1018,11 @@ public class LookupService {
          * @return the country the IP address is from.
          */
         public Country getCountryV6(String ipAddress) {
-                InetAddress addr;
-                try {
-                        addr = Inet6Address.getByName(ipAddress);
-                } catch (UnknownHostException e) {
+                long[] address = parseV6(ipAddress);
+                if (address == null) {
                         return UNKNOWN_COUNTRY;
                 }
-                return getCountryV6(addr);
+                return getCountryV6(address[0], address[1]);
         }
 
         /**
@@ -424,13 +1032,11 @@ public class LookupService {
          * @return the country the IP address is from.
          */
         public Country getCountry(String ipAddress) {
-                InetAddress addr;
-                try {
-                        addr = InetAddress.getByName(ipAddress);
-                } catch (UnknownHostException e) {
+                long ipnum = parseV4(ipAddress);
+                if (ipnum < 0) {
                         return UNKNOWN_COUNTRY;
                 }
-                return getCountry(bytesToLong(addr.getAddress()));
+                return getCountry(ipnum);
         }
 
         /**
@@ -439,7 +1045,7 @@ public class LookupService {
          * @param ipAddress the IP address.
          * @return the country the IP address is from.
          */
-        public synchronized Country getCountry(InetAddress ipAddress) {
+        public Country getCountry(InetAddress ipAddress) {
                 return getCountry(bytesToLong(ipAddress.getAddress()));
         }
 
@@ -450,14 +1056,29 @@ public class LookupService {
          * @return the country the IP address is from.
          */
         public Country getCountryV6(InetAddress addr) {
-                if (file == null && (dboptions & GEOIP_MEMORY_CACHE) == 0) {
-                        throw new IllegalStateException("Database has been closed.");
+                byte[] v6vec = addr.getAddress();
+                return getCountryV6(v6High(v6vec), v6Low(v6vec));
+        }
+
+        /**
+         * Returns the country an IPv6 address is in.
+         *
+         * @param high the first 64 bits of the address.
+         * @param low the last 64 bits of the address.
+         * @return the country the IP address is from.
+         */
+        public Country getCountryV6(long high, long low) {
+                DatabaseImage img = acquire();
+                int ret;
+                try {
+                        ret = seekCountryV6(img, high, low) - COUNTRY_BEGIN;
+                } finally {
+                        release(img);
                 }
-                int ret = seekCountryV6(addr) - COUNTRY_BEGIN;
                 if (ret == 0) {
                         return UNKNOWN_COUNTRY;
                 } else {
-                        return new Country(countryCode[ret], countryName[ret]);
+                        return countries[ret];
                 }
         }
 
@@ -468,39 +1089,76 @@ public class LookupService {
          * @return the country the IP address is from.
          */
         public Country getCountry(long ipAddress) {
-                if (file == null && (dboptions & GEOIP_MEMORY_CACHE) == 0) {
-                        throw new IllegalStateException("Database has been closed.");
+                DatabaseImage img = acquire();
+                int ret;
+                try {
+                        if (img.country_ids != null && (ipAddress & ~0xFFFFFFFFL) == 0) {
+                                ret = countryIndex(img, ipAddress);
+                        } else {
+                                ret = seekCountry(img, ipAddress) - COUNTRY_BEGIN;
+                        }
+                } finally {
+                        release(img);
                 }
-                int ret = seekCountry(ipAddress) - COUNTRY_BEGIN;
                 if (ret == 0) {
                         return UNKNOWN_COUNTRY;
                 } else {
-                        return new Country(countryCode[ret], countryName[ret]);
+                        return countries[ret];
                 }
         }
 
         public int getID(String ipAddress) {
-                InetAddress addr;
-                try {
-                        addr = InetAddress.getByName(ipAddress);
-                } catch (UnknownHostException e) {
+                long ipnum = parseV4(ipAddress);
+                if (ipnum < 0) {
                         return 0;
                 }
-                return getID(bytesToLong(addr.getAddress()));
+                return getID(ipnum);
         }
 
         public int getID(InetAddress ipAddress) {
                 return getID(bytesToLong(ipAddress.getAddress()));
         }
 
-        public synchronized int getID(long ipAddress) {
-                if (file == null && (dboptions & GEOIP_MEMORY_CACHE) == 0) {
-                        throw new IllegalStateException("Database has been closed.");
+        public int getID(long ipAddress) {
+                DatabaseImage img = acquire();
+                try {
+                        if (img.country_ids != null && (ipAddress & ~0xFFFFFFFFL) == 0) {
+                                return countryIndex(img, ipAddress);
+                        }
+                        int ret = seekCountry(img, ipAddress) - img.databaseSegments[0];
+                        return ret;
+                } finally {
+                        release(img);
+                }
+        }
+
+        /**
+         * Returns the ID of the range an IPv6 address is in, see getID.
+         *
+         * @param high the first 64 bits of the address.
+         * @param low the last 64 bits of the address.
+         * @return the ID.
+         */
+        public int getIDV6(long high, long low) {
+                DatabaseImage img = acquire();
+                try {
+                        return seekCountryV6(img, high, low) - img.databaseSegments[0];
+                } finally {
+                        release(img);
                 }
-                int ret = seekCountry(ipAddress) - databaseSegments[0];
-                return ret;
         }
 
+        /**
+         * Returns the prefix length of the network the last lookup ended in.
+         *
+         * The lookups no longer take a lock and one LookupService is meant to
+         * be shared, but this is still a single field written by every
+         * lookup. It is only meaningful when one thread uses the service:
+         * with concurrent lookups it may hold the netmask of another
+         * thread's address.
+         *
+         * @return the netmask of the last lookup.
+         */
         public int last_netmask() {
                 return this.last_netmask;
         }
@@ -514,12 +1172,22 @@ public class LookupService {
          *
          * @return database info.
          */
-        public synchronized DatabaseInfo getDatabaseInfo() {
-                if (databaseInfo != null) {
-                        return databaseInfo;
+        public DatabaseInfo getDatabaseInfo() {
+                DatabaseImage img = current();
+                if (img != null) {
+                        return img.databaseInfo;
                 }
+                return new DatabaseInfo("");
+        }
+
+        /**
+         * Reads the database info string stored at the end of the file.
+         *
+         * @param file the opened database file.
+         * @return database info.
+         */
+        private DatabaseInfo readDatabaseInfo(RandomAccessFile file) {
                 try {
-                        _check_mtime();
                         boolean hasStructureInfo = false;
                         byte[] delim = new byte[3];
                         // Advance to part of file where database info is stored.
@@ -546,8 +1214,7 @@ public class LookupService {
                                         byte[] dbInfo = new byte[i];
                                         file.readFully(dbInfo);
                                         // Create the database info object using the string.
-                                        this.databaseInfo = new DatabaseInfo(new String(dbInfo));
-                                        return databaseInfo;
+                                        return new DatabaseInfo(new String(dbInfo));
                                 }
                                 file.seek(file.getFilePointer() - 4);
                         }
@@ -557,35 +1224,124 @@ public class LookupService {
                 return new DatabaseInfo("");
         }
 
-        synchronized void _check_mtime() {
-                try {
-                        if ((dboptions & GEOIP_CHECK_CACHE) != 0) {
-                                long t = databaseFile.lastModified();
-                                if (t != mtime) {
-                                        /* GeoIP Database file updated */
-                                        /* refresh filehandle */
-                                        close();
-                                        file = new RandomAccessFile(databaseFile, "r");
-                                        databaseInfo = null;
-                                        init();
-                                }
-                        }
-                } catch (IOException e) {
-                        System.out.println("file not found");
-                }
-        }
+        /**
+         * Returns the database image to run a lookup against.
+         *
+         * @return the current database image.
+         */
+        DatabaseImage current() {
+                _check_mtime();
+                return image;
+        }
+
+        /**
+         * Returns the database image to run a lookup against, with its file
+         * acquired if the lookup may read from it. Every call must be
+         * followed by a call to release once the lookup is done with the
+         * image, including with a RecordView positioned on it.
+         *
+         * @return the current database image.
+         * @throws IllegalStateException if the database has been closed.
+         */
+        private DatabaseImage acquire() {
+                _check_mtime();
+                while (true) {
+                        DatabaseImage img = image;
+                        if (img != null && (img.file == null || img.file.acquire())) {
+                                return img;
+                        }
+                        if (img == image) {
+                                throw new IllegalStateException("Database has been closed.");
+                        }
+                        // a reload replaced the image and closed its file, use the new one
+                }
+        }
+
+        /**
+         * Releases an image returned by acquire.
+         *
+         * @param img the image.
+         */
+        private static void release(DatabaseImage img) {
+                if (img.file != null) {
+                        img.file.release();
+                }
+        }
+
+        /**
+         * Checks whether the database file has changed if GEOIP_CHECK_CACHE is
+         * set. The file is looked at no more than once per check interval, by
+         * whichever lookup first finds the interval expired. A changed file is
+         * loaded on a background thread; lookups keep using the current image
+         * until the new one is swapped in.
+         */
+        void _check_mtime() {
+                if ((dboptions & GEOIP_CHECK_CACHE) == 0) {
+                        return;
+                }
+                long now = System.currentTimeMillis();
+                long next = nextCheck.get();
+                if (now < next || !nextCheck.compareAndSet(next, now + checkInterval)) {
+                        return;
+                }
+                if (databaseFile.lastModified() != mtime && reloading.compareAndSet(false, true)) {
+                        Thread loader = new Thread(new Runnable() {
+                                public void run() {
+                                        try {
+                                                reload();
+                                        } finally {
+                                                reloading.set(false);
+                                        }
+                                }
+                        }, "GeoIP reload " + databaseFile.getName());
+                        loader.setDaemon(true);
+                        loader.start();
+                }
+        }
+
+        /**
+         * Loads a new image from the database file and swaps it in. The file
+         * of the old image is closed when the last lookup that acquired it
+         * releases it. If the new file cannot be loaded, for instance because
+         * it is still being written, the old image stays in use and the load
+         * is tried again at the next check.
+         */
+        private void reload() {
+                /* GeoIP Database file updated */
+                long t = databaseFile.lastModified();
+                DatabaseImage img;
+                try {
+                        img = openImage(new RandomAccessFile(databaseFile, "r"));
+                } catch (Exception e) {
+                        LOG.log(Level.WARNING, "Could not reload the GeoIP database " + databaseFile
+                                + ", the loaded database stays in use", e);
+                        return;
+                }
+                DatabaseImage old;
+                synchronized (this) {
+                        if (closed) {
+                                if (img.file != null) {
+                                        img.file.close();
+                                }
+                                return;
+                        }
+                        old = image;
+                        image = img;
+                        mtime = t;
+                }
+                if (old.file != null) {
+                        old.file.close();
+                }
+        }
 
         // for GeoIP City only
         public Location getLocationV6(String str) {
                 if (dnsService == 0) {
-                        InetAddress addr;
-                        try {
-                                addr = InetAddress.getByName(str);
-                        } catch (UnknownHostException e) {
+                        long[] address = parseV6(str);
+                        if (address == null) {
                                 return null;
                         }
-
-                        return getLocationV6(addr);
+                        return getLocationV6(address[0], address[1]);
                 } else {
                         String str2 = getDnsAttributes(str);
                         return getLocationwithdnsservice(str2);
@@ -601,14 +1357,11 @@ public class LookupService {
         // for GeoIP City only
         public Location getLocation(String str) {
                 if (dnsService == 0) {
-                        InetAddress addr;
-                        try {
-                                addr = InetAddress.getByName(str);
-                        } catch (UnknownHostException e) {
+                        long ipnum = parseV4(str);
+                        if (ipnum < 0) {
                                 return null;
                         }
-
-                        return getLocation(addr);
+                        return getLocation(ipnum);
                 } else {
                         String str2 = getDnsAttributes(str);
                         return getLocationwithdnsservice(str2);
@@ -702,244 +1455,438 @@ public class LookupService {
                 return record;
         }
 
-        public synchronized Region getRegion(String str) {
-                InetAddress addr;
-                try {
-                        addr = InetAddress.getByName(str);
-                } catch (UnknownHostException e) {
+        public Region getRegion(String str) {
+                long ipnum = parseV4(str);
+                if (ipnum < 0) {
                         return null;
                 }
-
-                return getRegion(bytesToLong(addr.getAddress()));
+                return getRegion(ipnum);
         }
 
-        public synchronized Region getRegion(long ipnum) {
-                Region record = new Region();
-                int seek_region = 0;
-                if (databaseType == DatabaseInfo.REGION_EDITION_REV0) {
-                        seek_region = seekCountry(ipnum) - STATE_BEGIN_REV0;
-                        char ch[] = new char[2];
-                        if (seek_region >= 1000) {
-                                record.countryCode = "US";
-                                record.countryName = "United States";
-                                ch[0] = (char) (((seek_region - 1000) / 26) + 65);
-                                ch[1] = (char) (((seek_region - 1000) % 26) + 65);
-                                record.region = new String(ch);
-                        } else {
-                                record.countryCode = countryCode[seek_region];
-                                record.countryName = countryName[seek_region];
-                                record.region = "";
-                        }
-                } else if (databaseType == DatabaseInfo.REGION_EDITION_REV1) {
-                        seek_region = seekCountry(ipnum) - STATE_BEGIN_REV1;
-                        char ch[] = new char[2];
-                        if (seek_region < US_OFFSET) {
-                                record.countryCode = "";
-                                record.countryName = "";
-                                record.region = "";
-                        } else if (seek_region < CANADA_OFFSET) {
-                                record.countryCode = "US";
-                                record.countryName = "United States";
-                                ch[0] = (char) (((seek_region - US_OFFSET) / 26) + 65);
-                                ch[1] = (char) (((seek_region - US_OFFSET) % 26) + 65);
-                                record.region = new String(ch);
-                        } else if (seek_region < WORLD_OFFSET) {
-                                record.countryCode = "CA";
-                                record.countryName = "Canada";
-                                ch[0] = (char) (((seek_region - CANADA_OFFSET) / 26) + 65);
-                                ch[1] = (char) (((seek_region - CANADA_OFFSET) % 26) + 65);
-                                record.region = new String(ch);
-                        } else {
-                                record.countryCode = countryCode[(seek_region - WORLD_OFFSET) / FIPS_RANGE];
-                                record.countryName = countryName[(seek_region - WORLD_OFFSET) / FIPS_RANGE];
-                                record.region = "";
+        public Region getRegion(long ipnum) {
+                DatabaseImage img = acquire();
+                try {
+                        Region record = new Region();
+                        int seek_region = 0;
+                        if (img.databaseType == DatabaseInfo.REGION_EDITION_REV0) {
+                                seek_region = seekCountry(img, ipnum) - STATE_BEGIN_REV0;
+                                char ch[] = new char[2];
+                                if (seek_region >= 1000) {
+                                        record.countryCode = "US";
+                                        record.countryName = "United States";
+                                        ch[0] = (char) (((seek_region - 1000) / 26) + 65);
+                                        ch[1] = (char) (((seek_region - 1000) % 26) + 65);
+                                        record.region = new String(ch);
+                                } else {
+                                        record.countryCode = countryCode[seek_region];
+                                        record.countryName = countryName[seek_region];
+                                        record.region = "";
+                                }
+                        } else if (img.databaseType == DatabaseInfo.REGION_EDITION_REV1) {
+                                seek_region = seekCountry(img, ipnum) - STATE_BEGIN_REV1;
+                                char ch[] = new char[2];
+                                if (seek_region < US_OFFSET) {
+                                        record.countryCode = "";
+                                        record.countryName = "";
+                                        record.region = "";
+                                } else if (seek_region < CANADA_OFFSET) {
+                                        record.countryCode = "US";
+                                        record.countryName = "United States";
+                                        ch[0] = (char) (((seek_region - US_OFFSET) / 26) + 65);
+                                        ch[1] = (char) (((seek_region - US_OFFSET) % 26) + 65);
+                                        record.region = new String(ch);
+                                } else if (seek_region < WORLD_OFFSET) {
+                                        record.countryCode = "CA";
+                                        record.countryName = "Canada";
+                                        ch[0] = (char) (((seek_region - CANADA_OFFSET) / 26) + 65);
+                                        ch[1] = (char) (((seek_region - CANADA_OFFSET) % 26) + 65);
+                                        record.region = new String(ch);
+                                } else {
+                                        record.countryCode = countryCode[(seek_region - WORLD_OFFSET) / FIPS_RANGE];
+                                        record.countryName = countryName[(seek_region - WORLD_OFFSET) / FIPS_RANGE];
+                                        record.region = "";
+                                }
                         }
+                        return record;
+                } finally {
+                        release(img);
                 }
-                return record;
         }
 
-        public synchronized Location getLocationV6(InetAddress addr) {
-                int record_pointer;
-                byte record_buf[] = new byte[FULL_RECORD_LENGTH];
-                int record_buf_offset = 0;
-                Location record = new Location();
-                int str_length = 0;
-                int j, seek_country;
-                double latitude = 0, longitude = 0;
+        public Location getLocationV6(InetAddress addr) {
+                byte[] v6vec = addr.getAddress();
+                return getLocationV6(v6High(v6vec), v6Low(v6vec));
+        }
 
+        /**
+         * Looks up the City record of an IPv6 address.
+         *
+         * @param high the first 64 bits of the address.
+         * @param low the last 64 bits of the address.
+         * @return the location, or null if the address is not in the
+         * database.
+         */
+        public Location getLocationV6(long high, long low) {
+                DatabaseImage img = acquire();
                 try {
-                        seek_country = seekCountryV6(addr);
-                        if (seek_country == databaseSegments[0]) {
-                                return null;
-                        }
-                        record_pointer = seek_country + (2 * recordLength - 1) * databaseSegments[0];
+                        return readLocation(img, seekCountryV6(img, high, low));
+                } finally {
+                        release(img);
+                }
+        }
 
-                        if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                                //read from memory
-                                System.arraycopy(dbbuffer, record_pointer, record_buf, 0, Math.min(dbbuffer.length - record_pointer, FULL_RECORD_LENGTH));
-                        } else {
-                                //read from disk
-                                file.seek(record_pointer);
-                                file.readFully(record_buf);
+        /**
+         * Positions a view on the City record of an IPv6 address, see
+         * getRecordView.
+         *
+         * @param high the first 64 bits of the address.
+         * @param low the last 64 bits of the address.
+         * @param view the view to position.
+         * @return true if the address was found; otherwise false and the
+         * view is left untouched.
+         */
+        public boolean getRecordViewV6(long high, long low, RecordView view) {
+                DatabaseImage img = acquire();
+                try {
+                        int seek_country = seekCountryV6(img, high, low);
+                        if (seek_country == img.databaseSegments[0]) {
+                                return false;
                         }
+                        view.position(img, seek_country + (2 * img.recordLength - 1) * img.databaseSegments[0]);
+                        return true;
+                } finally {
+                        release(img);
+                }
+        }
 
-                        // get country
-                        record.countryCode = countryCode[unsignedByteToInt(record_buf[0])];
-                        record.countryName = countryName[unsignedByteToInt(record_buf[0])];
-                        record_buf_offset++;
-
-                        // get region
-                        while (record_buf[record_buf_offset + str_length] != '\0') {
-                                str_length++;
-                        }
-                        if (str_length > 0) {
-                                record.region = new String(record_buf, record_buf_offset, str_length);
-                        }
-                        record_buf_offset += str_length + 1;
-                        str_length = 0;
+        public Location getLocation(long ipnum) {
+                DatabaseImage img = acquire();
+                try {
+                        return readLocation(img, seekCountry(img, ipnum));
+                } finally {
+                        release(img);
+                }
+        }
 
-                        // get city
-                        while (record_buf[record_buf_offset + str_length] != '\0') {
-                                str_length++;
+        /**
+         * Looks up the City record of an IP address into a Location owned by
+         * the caller, using a per-thread scratch buffer. Once the records in
+         * use are in the record cache (see setRecordCache) this allocates
+         * nothing.
+         *
+         * @param ipnum the IP address in long format.
+         * @param location receives the fields of the record.
+         * @return true if the address was found; otherwise false and the
+         * location is left untouched.
+         */
+        public boolean getLocation(long ipnum, Location location) {
+                DatabaseImage img = acquire();
+                try {
+                        int seek_country = seekCountry(img, ipnum);
+                        if (seek_country == img.databaseSegments[0]) {
+                                return false;
                         }
-                        if (str_length > 0) {
-                                record.city = new String(record_buf, record_buf_offset, str_length, "ISO-8859-1");
+                        int record_pointer = seek_country + (2 * img.recordLength - 1) * img.databaseSegments[0];
+                        Location decoded = dictionaryLocation(img, record_pointer);
+                        if (decoded != null) {
+                                copyLocation(decoded, location);
+                                return true;
                         }
-                        record_buf_offset += str_length + 1;
-                        str_length = 0;
-
-                        // get postal code
-                        while (record_buf[record_buf_offset + str_length] != '\0') {
-                                str_length++;
+                        RecordCache cache = recordCache;
+                        if (cache != null) {
+                                Location cached = cache.get(img, record_pointer);
+                                if (cached != null) {
+                                        copyLocation(cached, location);
+                                        return true;
+                                }
                         }
-                        if (str_length > 0) {
-                                record.postalCode = new String(record_buf, record_buf_offset, str_length);
+                        try {
+                                decodeLocation(img, record_pointer, recordBuffer.get(), location);
+                                if (cache != null) {
+                                        Location copy = new Location();
+                                        copyLocation(location, copy);
+                                        cache.put(img, record_pointer, copy);
+                                }
+                        } catch (IOException e) {
+                                readFailed("City record", record_pointer, e);
                         }
-                        record_buf_offset += str_length + 1;
+                        return true;
+                } finally {
+                        release(img);
+                }
+        }
 
-                        // get latitude
-                        for (j = 0; j < 3; j++) {
-                                latitude += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
+        /**
+         * Positions a view on the City record of an IP address. Fields are
+         * decoded only when read from the view, so a caller that only needs
+         * the country creates no strings, and with the database in memory or
+         * mapped reads one byte of the record.
+         *
+         * @param ipnum the IP address in long format.
+         * @param view the view to position.
+         * @return true if the address was found; otherwise false and the
+         * view is left untouched.
+         */
+        public boolean getRecordView(long ipnum, RecordView view) {
+                DatabaseImage img = acquire();
+                try {
+                        int seek_country = seekCountry(img, ipnum);
+                        if (seek_country == img.databaseSegments[0]) {
+                                return false;
                         }
-                        record.latitude = (float) latitude / 10000 - 180;
-                        record_buf_offset += 3;
+                        view.position(img, seek_country + (2 * img.recordLength - 1) * img.databaseSegments[0]);
+                        return true;
+                } finally {
+                        release(img);
+                }
+        }
 
-                        // get longitude
-                        for (j = 0; j < 3; j++) {
-                                longitude += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
+        /**
+         * Looks up the City records of a batch of IP addresses. The addresses
+         * are resolved in sorted order, so neighbouring addresses in the same
+         * network block share one trie walk and one decoded record. On a
+         * decoded trie (GEOIP_DECODE_INDEX) up to BATCH_LANES walks are
+         * interleaved so their memory reads overlap.
+         *
+         * Addresses that end on the same record share one Location, which
+         * must not be modified. Unlike the single lookups, this does not
+         * change last_netmask.
+         *
+         * @param ipnums the IP addresses in long format.
+         * @param locations receives the location of ipnums[i] at index i, or
+         * null if the address is not in the database.
+         * @return the number of addresses found.
+         */
+        public int getLocations(long[] ipnums, Location[] locations) {
+                if (locations.length < ipnums.length) {
+                        throw new IllegalArgumentException("locations is shorter than ipnums");
+                }
+                DatabaseImage img = acquire();
+                try {
+                        int found = 0;
+
+                        // sort by address, keeping the position in the low word; the
+                        // sign bit is flipped so signed order is address order
+                        long[] keys = new long[ipnums.length];
+                        int count = 0;
+                        for (int i = 0; i < ipnums.length; i++) {
+                                long ipnum = ipnums[i];
+                                if ((ipnum & ~0xFFFFFFFFL) == 0) {
+                                        keys[count++] = ((ipnum << 32) | i) ^ Long.MIN_VALUE;
+                                } else {
+                                        locations[i] = readLocation(img, (int) seek(img, ipnum));
+                                        if (locations[i] != null) {
+                                                found++;
+                                        }
+                                }
                         }
-                        record.longitude = (float) longitude / 10000 - 180;
-
-                        record.dma_code = record.metro_code = 0;
-                        record.area_code = 0;
-                        if (databaseType == DatabaseInfo.CITY_EDITION_REV1) {
-                                // get DMA code
-                                int metroarea_combo = 0;
-                                if (record.countryCode == "US") {
-                                        record_buf_offset += 3;
-                                        for (j = 0; j < 3; j++) {
-                                                metroarea_combo += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
+                        Arrays.sort(keys, 0, count);
+
+                        long[] laneIps = new long[BATCH_LANES];
+                        long[] laneResults = new long[BATCH_LANES];
+                        int[] laneOffsets = new int[BATCH_LANES];
+                        long blockLast = -1;
+                        long result = 0;
+                        int record = -1;
+                        Location location = null;
+                        int i = 0;
+                        while (i < count) {
+                                // walk the next distinct addresses not in the current block
+                                int lanes = 0;
+                                long prev = -1;
+                                int end = i;
+                                while (end < count) {
+                                        long ipnum = (keys[end] ^ Long.MIN_VALUE) >>> 32;
+                                        if (ipnum != prev && ipnum > blockLast) {
+                                                if (lanes == BATCH_LANES) {
+                                                        break;
+                                                }
+                                                laneIps[lanes++] = ipnum;
+                                                prev = ipnum;
+                                        }
+                                        end++;
+                                }
+                                seekLanes(img, laneIps, laneResults, laneOffsets, lanes);
+
+                                int lane = 0;
+                                for (; i < end; i++) {
+                                        long ipnum = (keys[i] ^ Long.MIN_VALUE) >>> 32;
+                                        if (ipnum > blockLast) {
+                                                while (laneIps[lane] != ipnum) {
+                                                        lane++;
+                                                }
+                                                result = laneResults[lane];
+                                                int netmask = (int) (result >>> 32);
+                                                blockLast = netmask == 0 ? ipnum : ipnum | (0xFFFFFFFFL >>> netmask);
+                                        }
+                                        int seek_country = (int) result;
+                                        if (seek_country != record) {
+                                                record = seek_country;
+                                                location = readLocation(img, seek_country);
+                                        }
+                                        locations[(int) keys[i]] = location;
+                                        if (location != null) {
+                                                found++;
                                         }
-                                        record.metro_code = record.dma_code = metroarea_combo / 1000;
-                                        record.area_code = metroarea_combo % 1000;
                                 }
                         }
+                        return found;
+                } finally {
+                        release(img);
+                }
+        }
+
+        /**
+         * Decodes the City record a trie lookup ended on.
+         *
+         * @param img the image the lookup ran against.
+         * @param seek_country the value returned by the trie lookup.
+         * @return the location, or null if the address is not in the
+         * database.
+         */
+        private Location readLocation(DatabaseImage img, int seek_country) {
+                if (seek_country == img.databaseSegments[0]) {
+                        return null;
+                }
+                int record_pointer = seek_country + (2 * img.recordLength - 1) * img.databaseSegments[0];
+                Location decoded = dictionaryLocation(img, record_pointer);
+                if (decoded != null) {
+                        return decoded;
+                }
+                RecordCache cache = recordCache;
+                if (cache != null) {
+                        Location cached = cache.get(img, record_pointer);
+                        if (cached != null) {
+                                return cached;
+                        }
+                }
+                Location record = new Location();
+                try {
+                        decodeLocation(img, record_pointer, recordBuffer.get(), record);
+                        if (cache != null) {
+                                cache.put(img, record_pointer, record);
+                        }
                 } catch (IOException e) {
-                        System.err.println("IO Exception while seting up segments");
+                        readFailed("City record", record_pointer, e);
                 }
                 return record;
         }
 
-        public synchronized Location getLocation(long ipnum) {
-                int record_pointer;
-                byte record_buf[] = new byte[FULL_RECORD_LENGTH];
+        /**
+         * Returns a City record from the dictionary built with
+         * GEOIP_STRING_DICT.
+         *
+         * @param img the image to read from.
+         * @param record_pointer the offset of the record.
+         * @return the shared location, or null if the image has no City
+         * dictionary.
+         */
+        private static Location dictionaryLocation(DatabaseImage img, int record_pointer) {
+                RecordDictionary dict = img.dictionary;
+                if (dict == null || dict.locations == null) {
+                        return null;
+                }
+                int i = dict.find(record_pointer);
+                return i < 0 ? null : dict.locations[i];
+        }
+
+        /**
+         * Decodes a City record into a Location.
+         *
+         * @param img the image to read from.
+         * @param record_pointer the offset of the record.
+         * @param record_buf scratch buffer of FULL_RECORD_LENGTH bytes.
+         * @param record receives the fields of the record.
+         * @throws java.io.IOException if the database file could not be
+         * read.
+         */
+        private void decodeLocation(DatabaseImage img, int record_pointer, byte[] record_buf, Location record) throws IOException {
                 int record_buf_offset = 0;
-                Location record = new Location();
                 int str_length = 0;
-                int j, seek_country;
+                int j;
                 double latitude = 0, longitude = 0;
 
-                try {
-                        seek_country = seekCountry(ipnum);
-                        if (seek_country == databaseSegments[0]) {
-                                return null;
-                        }
-                        record_pointer = seek_country + (2 * recordLength - 1) * databaseSegments[0];
-
-                        if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                                //read from memory
-                                System.arraycopy(dbbuffer, record_pointer, record_buf, 0, Math.min(dbbuffer.length - record_pointer, FULL_RECORD_LENGTH));
-                        } else {
-                                //read from disk
-                                file.seek(record_pointer);
-                                file.readFully(record_buf);
-                        }
+                record.region = record.city = record.postalCode = null;
+                if (img.compact != null) {
+                        img.compact.decodeLocation(record_pointer, record);
+                        return;
+                }
+                readRecord(img, record_pointer, record_buf);
 
-                        // get country
-                        record.countryCode = countryCode[unsignedByteToInt(record_buf[0])];
-                        record.countryName = countryName[unsignedByteToInt(record_buf[0])];
-                        record_buf_offset++;
+                // get country
+                record.countryCode = countryCode[unsignedByteToInt(record_buf[0])];
+                record.countryName = countryName[unsignedByteToInt(record_buf[0])];
+                record_buf_offset++;
 
-                        // get region
-                        while (record_buf[record_buf_offset + str_length] != '\0') {
-                                str_length++;
-                        }
-                        if (str_length > 0) {
-                                record.region = new String(record_buf, record_buf_offset, str_length);
-                        }
-                        record_buf_offset += str_length + 1;
-                        str_length = 0;
+                // get region
+                while (record_buf[record_buf_offset + str_length] != '\0') {
+                        str_length++;
+                }
+                if (str_length > 0) {
+                        record.region = new String(record_buf, record_buf_offset, str_length);
+                }
+                record_buf_offset += str_length + 1;
+                str_length = 0;
 
-                        // get city
-                        while (record_buf[record_buf_offset + str_length] != '\0') {
-                                str_length++;
-                        }
-                        if (str_length > 0) {
-                                record.city = new String(record_buf, record_buf_offset, str_length, "ISO-8859-1");
-                        }
-                        record_buf_offset += str_length + 1;
-                        str_length = 0;
+                // get city
+                while (record_buf[record_buf_offset + str_length] != '\0') {
+                        str_length++;
+                }
+                if (str_length > 0) {
+                        record.city = new String(record_buf, record_buf_offset, str_length, "ISO-8859-1");
+                }
+                record_buf_offset += str_length + 1;
+                str_length = 0;
 
-                        // get postal code
-                        while (record_buf[record_buf_offset + str_length] != '\0') {
-                                str_length++;
-                        }
-                        if (str_length > 0) {
-                                record.postalCode = new String(record_buf, record_buf_offset, str_length);
-                        }
-                        record_buf_offset += str_length + 1;
+                // get postal code
+                while (record_buf[record_buf_offset + str_length] != '\0') {
+                        str_length++;
+                }
+                if (str_length > 0) {
+                        record.postalCode = new String(record_buf, record_buf_offset, str_length);
+                }
+                record_buf_offset += str_length + 1;
 
-                        // get latitude
-                        for (j = 0; j < 3; j++) {
-                                latitude += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
-                        }
-                        record.latitude = (float) latitude / 10000 - 180;
-                        record_buf_offset += 3;
+                // get latitude
+                for (j = 0; j < 3; j++) {
+                        latitude += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
+                }
+                record.latitude = (float) latitude / 10000 - 180;
+                record_buf_offset += 3;
 
-                        // get longitude
-                        for (j = 0; j < 3; j++) {
-                                longitude += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
-                        }
-                        record.longitude = (float) longitude / 10000 - 180;
-
-                        record.dma_code = record.metro_code = 0;
-                        record.area_code = 0;
-                        if (databaseType == DatabaseInfo.CITY_EDITION_REV1) {
-                                // get DMA code
-                                int metroarea_combo = 0;
-                                if (record.countryCode == "US") {
-                                        record_buf_offset += 3;
-                                        for (j = 0; j < 3; j++) {
-                                                metroarea_combo += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
-                                        }
-                                        record.metro_code = record.dma_code = metroarea_combo / 1000;
-                                        record.area_code = metroarea_combo % 1000;
+                // get longitude
+                for (j = 0; j < 3; j++) {
+                        longitude += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
+                }
+                record.longitude = (float) longitude / 10000 - 180;
+
+                record.dma_code = record.metro_code = 0;
+                record.area_code = 0;
+                if (img.databaseType == DatabaseInfo.CITY_EDITION_REV1) {
+                        // get DMA code
+                        int metroarea_combo = 0;
+                        if (record.countryCode == "US") {
+                                record_buf_offset += 3;
+                                for (j = 0; j < 3; j++) {
+                                        metroarea_combo += (unsignedByteToInt(record_buf[record_buf_offset + j]) << (j * 8));
                                 }
+                                record.metro_code = record.dma_code = metroarea_combo / 1000;
+                                record.area_code = metroarea_combo % 1000;
                         }
-                } catch (IOException e) {
-                        System.err.println("IO Exception while seting up segments");
                 }
-                return record;
+        }
+
+        private static void copyLocation(Location from, Location to) {
+                to.countryCode = from.countryCode;
+                to.countryName = from.countryName;
+                to.region = from.region;
+                to.city = from.city;
+                to.postalCode = from.postalCode;
+                to.latitude = from.latitude;
+                to.longitude = from.longitude;
+                to.dma_code = from.dma_code;
+                to.area_code = from.area_code;
+                to.metro_code = from.metro_code;
         }
 
         public String getOrg(InetAddress addr) {
@@ -947,217 +1894,452 @@ public class LookupService {
         }
 
         public String getOrg(String str) {
-                InetAddress addr;
+                long ipnum = parseV4(str);
+                if (ipnum < 0) {
+                        return null;
+                }
+                return getOrg(ipnum);
+        }
+
+        // GeoIP Organization and ISP Edition methods
+        public String getOrg(long ipnum) {
+                DatabaseImage img = acquire();
                 try {
-                        addr = InetAddress.getByName(str);
-                } catch (UnknownHostException e) {
+                        return readOrg(img, seekCountry(img, ipnum));
+                } finally {
+                        release(img);
+                }
+        }
+
+        public String getOrgV6(String str) {
+                long[] address = parseV6(str);
+                if (address == null) {
                         return null;
                 }
-                return getOrg(addr);
+                return getOrgV6(address[0], address[1]);
         }
 
         // GeoIP Organization and ISP Edition methods
-        public synchronized String getOrg(long ipnum) {
-                int seek_org;
-                int record_pointer;
-                int str_length = 0;
-                byte[] buf = new byte[MAX_ORG_RECORD_LENGTH];
-                String org_buf;
+        public String getOrgV6(InetAddress addr) {
+                byte[] v6vec = addr.getAddress();
+                return getOrgV6(v6High(v6vec), v6Low(v6vec));
+        }
+
+        /**
+         * Returns the organization an IPv6 address belongs to.
+         *
+         * @param high the first 64 bits of the address.
+         * @param low the last 64 bits of the address.
+         * @return the organization name, or null if the address is not in
+         * the database.
+         */
+        public String getOrgV6(long high, long low) {
+                DatabaseImage img = acquire();
+                try {
+                        return readOrg(img, seekCountryV6(img, high, low));
+                } finally {
+                        release(img);
+                }
+        }
+
+        /**
+         * Decodes the Organization or ISP record a trie lookup ended on.
+         *
+         * @param img the image the lookup ran against.
+         * @param seek_org the value returned by the trie lookup.
+         * @return the organization name, or null if the address is not in
+         * the database.
+         */
+        private String readOrg(DatabaseImage img, int seek_org) {
+                int record_pointer = 0;
 
                 try {
-                        seek_org = seekCountry(ipnum);
-                        if (seek_org == databaseSegments[0]) {
+                        if (seek_org == img.databaseSegments[0]) {
                                 return null;
                         }
 
-                        record_pointer = seek_org + (2 * recordLength - 1) * databaseSegments[0];
-                        if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                                //read from memory
-                                System.arraycopy(dbbuffer, record_pointer, buf, 0, Math.min(dbbuffer.length - record_pointer, MAX_ORG_RECORD_LENGTH));
-                        } else {
-                                //read from disk
-                                file.seek(record_pointer);
-                                try {
-                                        // read as much as possible
-                                        file.readFully(buf);
-                                } catch (IOException e) {
+                        record_pointer = seek_org + (2 * img.recordLength - 1) * img.databaseSegments[0];
+                        RecordDictionary dict = img.dictionary;
+                        if (dict != null && dict.locations == null) {
+                                int i = dict.find(record_pointer);
+                                if (i >= 0) {
+                                        return dict.strings[dict.field(i, 0)];
                                 }
                         }
-                        while (buf[str_length] != '\0') {
-                                str_length++;
-                        }
-                        org_buf = new String(buf, 0, str_length, "ISO-8859-1");
-                        return org_buf;
+                        return decodeOrg(img, record_pointer, new byte[MAX_ORG_RECORD_LENGTH]);
                 } catch (IOException e) {
-                        System.out.println("IO Exception");
+                        readFailed("Organization record", record_pointer, e);
                         return null;
                 }
         }
 
-        public String getOrgV6(String str) {
-                InetAddress addr;
+        /**
+         * Decodes the org name at a record.
+         *
+         * @param img the image to read from.
+         * @param record_pointer the offset of the record.
+         * @param buf scratch buffer of MAX_ORG_RECORD_LENGTH bytes.
+         * @return the org name.
+         * @throws java.io.IOException if the name could not be decoded.
+         */
+        private static String decodeOrg(DatabaseImage img, int record_pointer, byte[] buf) throws IOException {
+                int str_length = 0;
+                if (img.compact != null) {
+                        return img.compact.org(record_pointer);
+                }
                 try {
-                        addr = InetAddress.getByName(str);
-                } catch (UnknownHostException e) {
-                        return null;
+                        // read as much as possible
+                        readRecord(img, record_pointer, buf);
+                } catch (IOException e) {
                 }
-                return getOrgV6(addr);
+                while (buf[str_length] != '\0') {
+                        str_length++;
+                }
+                return new String(buf, 0, str_length, "ISO-8859-1");
         }
 
-        // GeoIP Organization and ISP Edition methods
-        public synchronized String getOrgV6(InetAddress addr) {
-                int seek_org;
-                int record_pointer;
-                int str_length = 0;
-                byte[] buf = new byte[MAX_ORG_RECORD_LENGTH];
-                String org_buf;
+        /**
+         * Reads the bytes of a record. Reading stops at the end of the
+         * database; in memory the rest of the buffer is zeroed.
+         *
+         * @param img the image to read from.
+         * @param record_pointer the offset of the record in the database.
+         * @param buf the buffer to fill.
+         * @throws java.io.IOException if the database file could not be
+         * read.
+         */
+        static void readRecord(DatabaseImage img, int record_pointer, byte[] buf) throws IOException {
+                if (img.dbbuffer != null) {
+                        //read from memory
+                        int l = Math.min(img.dbbuffer.length - record_pointer, buf.length);
+                        System.arraycopy(img.dbbuffer, record_pointer, buf, 0, l);
+                        Arrays.fill(buf, l, buf.length, (byte) 0);
+                } else if (img.mapbuffer != null) {
+                        //read from mapped file
+                        int pos = record_pointer - img.map_offset;
+                        int l = Math.min(img.mapbuffer.limit() - pos, buf.length);
+                        for (int i = 0; i < l; i++) {
+                                buf[i] = img.mapbuffer.get(pos + i);
+                        }
+                        Arrays.fill(buf, l, buf.length, (byte) 0);
+                } else {
+                        //read from disk
+                        readFile(img, record_pointer, buf);
+                }
+        }
 
+        /**
+         * Reads a single byte of a record.
+         *
+         * @param img the image to read from.
+         * @param pos the offset of the byte in the database.
+         * @return the unsigned byte value, or 0 if it could not be read.
+         */
+        static int readByte(DatabaseImage img, int pos) {
+                if (img.dbbuffer != null) {
+                        return unsignedByteToInt(img.dbbuffer[pos]);
+                } else if (img.mapbuffer != null) {
+                        return unsignedByteToInt(img.mapbuffer.get(pos - img.map_offset));
+                }
+                byte[] buf = new byte[1];
                 try {
-                        seek_org = seekCountryV6(addr);
-                        if (seek_org == databaseSegments[0]) {
-                                return null;
-                        }
+                        readFile(img, pos, buf);
+                } catch (IOException e) {
+                        readFailed("record byte", pos, e);
+                }
+                return unsignedByteToInt(buf[0]);
+        }
 
-                        record_pointer = seek_org + (2 * recordLength - 1) * databaseSegments[0];
-                        if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                                //read from memory
-                                System.arraycopy(dbbuffer, record_pointer, buf, 0, Math.min(dbbuffer.length - record_pointer, MAX_ORG_RECORD_LENGTH));
-                        } else {
-                                //read from disk
-                                file.seek(record_pointer);
-                                file.readFully(buf);
+        /**
+         * Reports a read from the database file that failed. The lookup goes
+         * on with the bytes that could not be read set to zero.
+         *
+         * @param what what was being read.
+         * @param pos the offset in the database file.
+         * @param e the cause.
+         */
+        static void readFailed(String what, long pos, IOException e) {
+                LOG.log(Level.WARNING, "Could not read the GeoIP " + what + " at offset " + pos, e);
+        }
+
+        /**
+         * Reads from the database file of an image, see DatabaseFile.read.
+         * The caller must have acquired the image.
+         *
+         * @param img the image to read from.
+         * @param pos the offset to read from.
+         * @param buf the buffer to fill.
+         * @throws java.io.IOException if the database file could not be
+         * read.
+         */
+        private static void readFile(DatabaseImage img, long pos, byte[] buf) throws IOException {
+                img.file.read(pos, buf);
+        }
+
+        /**
+         * Reads the two child pointers of a trie node.
+         *
+         * @param img the image to read from.
+         * @param offset the node number.
+         * @return the left child pointer in the low word and the right child
+         * pointer in the high word.
+         */
+        private long readNode(DatabaseImage img, int offset) {
+                int recordLength = img.recordLength;
+                int pos = 2 * recordLength * offset;
+                int left = 0, right = 0;
+                if (img.index_nodes != null) {
+                        //read from decoded trie
+                        return ((long) img.index_nodes[2 * offset + 1] << 32)
+                                | (img.index_nodes[2 * offset] & 0xFFFFFFFFL);
+                } else if (img.dbbuffer != null) {
+                        //read from memory
+                        for (int j = 0; j < recordLength; j++) {
+                                left += unsignedByteToInt(img.dbbuffer[pos + j]) << (j * 8);
+                                right += unsignedByteToInt(img.dbbuffer[pos + recordLength + j]) << (j * 8);
                         }
-                        while (buf[str_length] != '\0') {
-                                str_length++;
+                } else if (img.index_cache != null) {
+                        //read from index cache
+                        for (int j = 0; j < recordLength; j++) {
+                                left += unsignedByteToInt(img.index_cache[pos + j]) << (j * 8);
+                                right += unsignedByteToInt(img.index_cache[pos + recordLength + j]) << (j * 8);
+                        }
+                } else if (img.mapbuffer != null) {
+                        //read from mapped file
+                        pos -= img.map_offset;
+                        for (int j = 0; j < recordLength; j++) {
+                                left += unsignedByteToInt(img.mapbuffer.get(pos + j)) << (j * 8);
+                                right += unsignedByteToInt(img.mapbuffer.get(pos + recordLength + j)) << (j * 8);
+                        }
+                } else {
+                        //read from disk 
+                        byte[] buf = new byte[2 * MAX_RECORD_LENGTH];
+                        try {
+                                readFile(img, pos, buf);
+                        } catch (IOException e) {
+                                readFailed("trie node", pos, e);
+                        }
+                        for (int j = 0; j < recordLength; j++) {
+                                left += unsignedByteToInt(buf[j]) << (j * 8);
+                                right += unsignedByteToInt(buf[recordLength + j]) << (j * 8);
                         }
-                        org_buf = new String(buf, 0, str_length, "ISO-8859-1");
-                        return org_buf;
-                } catch (IOException e) {
-                        System.out.println("IO Exception");
-                        return null;
                 }
+                return ((long) right << 32) | (left & 0xFFFFFFFFL);
         }
 
         /**
          * Finds the country index value given an IPv6 address.
          *
-         * @param addr the ip address to find in long format.
+         * @param img the image to search.
+         * @param high the first 64 bits of the address.
+         * @param low the last 64 bits of the address.
          * @return the country index.
          */
-        private synchronized int seekCountryV6(InetAddress addr) {
-                byte[] v6vec = addr.getAddress();
-                byte[] buf = new byte[2 * MAX_RECORD_LENGTH];
-                int[] x = new int[2];
-                int offset = 0;
-                _check_mtime();
-                for (int depth = 127; depth >= 0; depth--) {
-                        if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                                //read from memory
-                                for (int i = 0; i < 2 * MAX_RECORD_LENGTH; i++) {
-                                        buf[i] = dbbuffer[(2 * recordLength * offset) + i];
-                                }
-                        } else if ((dboptions & GEOIP_INDEX_CACHE) != 0) {
-                                //read from index cache
-                                for (int i = 0; i < 2 * MAX_RECORD_LENGTH; i++) {
-                                        buf[i] = index_cache[(2 * recordLength * offset) + i];
-                                }
-                        } else {
-                                //read from disk 
-                                try {
-                                        file.seek(2 * recordLength * offset);
-                                        file.readFully(buf);
-                                } catch (IOException e) {
-                                        System.out.println("IO Exception");
-                                }
+        private int seekCountryV6(DatabaseImage img, long high, long low) {
+                long result = seekV6(img, high, low);
+                int netmask = (int) (result >>> 32);
+                if (netmask != 0) {
+                        last_netmask = netmask;
+                }
+                return (int) result;
+        }
+
+        /**
+         * Finds the country index value given an IP address.
+         *
+         * @param img the image to search.
+         * @param ipAddress the ip address to find in long format.
+         * @return the country index.
+         */
+        private int seekCountry(DatabaseImage img, long ipAddress) {
+                NetmaskCache cache = netmaskCache;
+                long result;
+                if (cache != null && (ipAddress & ~0xFFFFFFFFL) == 0) {
+                        result = cache.get(img, ipAddress);
+                        if (result == -1) {
+                                result = seek(img, ipAddress);
+                                cache.put(img, ipAddress, result);
                         }
-                        for (int i = 0; i < 2; i++) {
-                                x[i] = 0;
-                                for (int j = 0; j < recordLength; j++) {
-                                        int y = buf[i * recordLength + j];
-                                        if (y < 0) {
-                                                y += 256;
-                                        }
-                                        x[i] += (y << (j * 8));
-                                }
+                } else {
+                        result = seek(img, ipAddress);
+                }
+                int netmask = (int) (result >>> 32);
+                if (netmask != 0) {
+                        last_netmask = netmask;
+                }
+                return (int) result;
+        }
+
+        /**
+         * Packs the outcome of a lookup: the netmask in the high word and the
+         * country index in the low word.
+         */
+        static long seekResult(int netmask, int index) {
+                return ((long) netmask << 32) | (index & 0xFFFFFFFFL);
+        }
+
+        /**
+         * Finds the country index value and netmask given an IP address.
+         *
+         * @param img the image to search.
+         * @param ipAddress the ip address to find in long format.
+         * @return the netmask and country index, see seekResult.
+         */
+        private long seek(DatabaseImage img, long ipAddress) {
+                if (img.compact != null) {
+                        return img.compact.seek(ipAddress);
+                }
+                if (img.range_starts != null && (ipAddress & ~0xFFFFFFFFL) == 0) {
+                        int i = findRange(img.range_starts, ipAddress);
+                        return seekResult(img.range_netmask[i], img.range_records[i]);
+                }
+                int offset = 0;
+                int start = 31;
+                if (img.stride_table != null && (ipAddress & ~0xFFFFFFFFL) == 0) {
+                        int i = (int) (ipAddress >>> (32 - img.stride_bits));
+                        offset = img.stride_table[i];
+                        if (offset >= img.databaseSegments[0]) {
+                                return seekResult(img.stride_netmask[i], offset);
                         }
+                        start = 31 - img.stride_bits;
+                }
+                if (img.index_nodes != null) {
+                        return seekDecoded(img, ipAddress, offset, start);
+                }
+                for (int depth = start; depth >= 0; depth--) {
+                        long node = readNode(img, offset);
 
-                        int bnum = 127 - depth;
-                        int idx = bnum >> 3;
-                        int b_mask = 1 << (bnum & 7 ^ 7);
-                        if ((v6vec[idx] & b_mask) > 0) {
-                                if (x[1] >= databaseSegments[0]) {
-                                        last_netmask = 128 - depth;
-                                        return x[1];
-                                }
-                                offset = x[1];
-                        } else {
-                                if (x[0] >= databaseSegments[0]) {
-                                        last_netmask = 128 - depth;
-                                        return x[0];
-                                }
-                                offset = x[0];
+                        int x = (ipAddress & (1 << depth)) > 0 ? (int) (node >>> 32) : (int) node;
+                        if (x >= img.databaseSegments[0]) {
+                                return seekResult(32 - depth, x);
                         }
+                        offset = x;
                 }
 
                 // shouldn't reach here
-                System.err.println("Error seeking country while seeking " + addr.getHostAddress());
+                System.err.println("Error seeking country while seeking " + ipAddress);
                 return 0;
         }
 
         /**
-         * Finds the country index value given an IP address.
+         * Finds the country index values and netmasks of several IPv4
+         * addresses. On a decoded trie the walks advance one level at a time
+         * together, so the node reads of different addresses overlap.
          *
-         * @param ipAddress the ip address to find in long format.
-         * @return the country index.
+         * @param img the image to search.
+         * @param ips the addresses, between 0 and 2^32 - 1.
+         * @param results receives the netmask and country index of each
+         * address, see seekResult.
+         * @param offsets scratch array for the current node of each walk.
+         * @param lanes the number of addresses.
          */
-        private synchronized int seekCountry(long ipAddress) {
-                byte[] buf = new byte[2 * MAX_RECORD_LENGTH];
-                int[] x = new int[2];
-                int offset = 0;
-                _check_mtime();
-                for (int depth = 31; depth >= 0; depth--) {
-                        if ((dboptions & GEOIP_MEMORY_CACHE) == 1) {
-                                //read from memory
-                                for (int i = 0; i < 2 * MAX_RECORD_LENGTH; i++) {
-                                        buf[i] = dbbuffer[(2 * recordLength * offset) + i];
-                                }
-                        } else if ((dboptions & GEOIP_INDEX_CACHE) != 0) {
-                                //read from index cache
-                                for (int i = 0; i < 2 * MAX_RECORD_LENGTH; i++) {
-                                        buf[i] = index_cache[(2 * recordLength * offset) + i];
-                                }
-                        } else {
-                                //read from disk 
-                                try {
-                                        file.seek(2 * recordLength * offset);
-                                        file.readFully(buf);
-                                } catch (IOException e) {
-                                        System.out.println("IO Exception");
+        private void seekLanes(DatabaseImage img, long[] ips, long[] results, int[] offsets, int lanes) {
+                if (img.index_nodes == null || img.range_starts != null) {
+                        for (int k = 0; k < lanes; k++) {
+                                results[k] = seek(img, ips[k]);
+                        }
+                        return;
+                }
+                int[] nodes = img.index_nodes;
+                int segment = img.databaseSegments[0];
+                int start = 31;
+                for (int k = 0; k < lanes; k++) {
+                        offsets[k] = 0;
+                        results[k] = 0;
+                }
+                if (img.stride_table != null) {
+                        start = 31 - img.stride_bits;
+                        for (int k = 0; k < lanes; k++) {
+                                int i = (int) (ips[k] >>> (32 - img.stride_bits));
+                                offsets[k] = img.stride_table[i];
+                                if (offsets[k] >= segment) {
+                                        results[k] = seekResult(img.stride_netmask[i], offsets[k]);
                                 }
                         }
-                        for (int i = 0; i < 2; i++) {
-                                x[i] = 0;
-                                for (int j = 0; j < recordLength; j++) {
-                                        int y = buf[i * recordLength + j];
-                                        if (y < 0) {
-                                                y += 256;
+                }
+                for (int depth = start; depth >= 0; depth--) {
+                        boolean active = false;
+                        for (int k = 0; k < lanes; k++) {
+                                int offset = offsets[k];
+                                if (offset < segment) {
+                                        offset = nodes[2 * offset + (int) ((ips[k] >>> depth) & 1)];
+                                        offsets[k] = offset;
+                                        if (offset >= segment) {
+                                                results[k] = seekResult(32 - depth, offset);
+                                        } else {
+                                                active = true;
                                         }
-                                        x[i] += (y << (j * 8));
                                 }
                         }
+                        if (!active) {
+                                return;
+                        }
+                }
+        }
 
-                        if ((ipAddress & (1 << depth)) > 0) {
-                                if (x[1] >= databaseSegments[0]) {
-                                        last_netmask = 32 - depth;
-                                        return x[1];
-                                }
-                                offset = x[1];
+        /**
+         * Finds the country index value and netmask given an IPv6 address.
+         * The stride table covers the first levels of the trie whatever the
+         * address size, so it is used here the same way as for IPv4.
+         *
+         * @param img the image to search.
+         * @param high the first 64 bits of the address.
+         * @param low the last 64 bits of the address.
+         * @return the netmask and country index, see seekResult.
+         */
+        private long seekV6(DatabaseImage img, long high, long low) {
+                int segment = img.databaseSegments[0];
+                if (img.compact != null) {
+                        // compact images only hold IPv4 editions
+                        return seekResult(0, segment);
+                }
+                int offset = 0;
+                int start = 127;
+                if (img.stride_table != null) {
+                        int i = (int) (high >>> (64 - img.stride_bits));
+                        offset = img.stride_table[i];
+                        if (offset >= segment) {
+                                return seekResult(img.stride_netmask[i], offset);
+                        }
+                        start = 127 - img.stride_bits;
+                }
+                int[] nodes = img.index_nodes;
+                for (int depth = start; depth >= 0; depth--) {
+                        int bit = (int) ((depth >= 64 ? high >>> (depth - 64) : low >>> depth) & 1);
+                        if (nodes != null) {
+                                offset = nodes[2 * offset + bit];
                         } else {
-                                if (x[0] >= databaseSegments[0]) {
-                                        last_netmask = 32 - depth;
-                                        return x[0];
-                                }
-                                offset = x[0];
+                                long node = readNode(img, offset);
+                                offset = bit != 0 ? (int) (node >>> 32) : (int) node;
+                        }
+                        if (offset >= segment) {
+                                return seekResult(128 - depth, offset);
+                        }
+                }
+
+                // shouldn't reach here
+                System.err.println("Error seeking country while seeking IPv6 address");
+                return 0;
+        }
+
+        /**
+         * Finds the country index value and netmask given an IP address,
+         * using the decoded trie.
+         *
+         * @param img the image to search.
+         * @param ipAddress the ip address to find in long format.
+         * @param offset the node to start from.
+         * @param start the depth of that node.
+         * @return the netmask and country index, see seekResult.
+         */
+        private long seekDecoded(DatabaseImage img, long ipAddress, int offset, int start) {
+                int[] nodes = img.index_nodes;
+                int segment = img.databaseSegments[0];
+                for (int depth = start; depth >= 0; depth--) {
+                        int bit = (ipAddress & (1 << depth)) > 0 ? 1 : 0;
+                        offset = nodes[2 * offset + bit];
+                        if (offset >= segment) {
+                                return seekResult(32 - depth, offset);
                         }
                 }
 
@@ -1166,6 +2348,75 @@ public class LookupService {
                 return 0;
         }
 
+        /**
+         * Parses the IP literal given to an IPv4 String overload. Like
+         * InetAddress.getByName did, an IPv4-mapped IPv6 literal gives its
+         * embedded address and any other IPv6 literal its first 32 bits.
+         * Host names are not resolved.
+         *
+         * @param str the literal.
+         * @return the address in long format, or -1 if str is not an IP
+         * literal.
+         */
+        private long parseV4(String str) {
+                long ipnum = IPLiteral.parseIPv4(str);
+                if (ipnum >= 0) {
+                        return ipnum;
+                }
+                long[] address = addressBuffer.get();
+                if (!IPLiteral.parseIPv6(str, address)) {
+                        return -1;
+                }
+                if (address[0] == 0 && (address[1] >>> 32) == 0xFFFFL) {
+                        return address[1] & 0xFFFFFFFFL;
+                }
+                return address[0] >>> 32;
+        }
+
+        /**
+         * Parses the IP literal given to an IPv6 String overload. An IPv4
+         * literal is looked up as "::a.b.c.d", the way IPv6 editions store
+         * the IPv4 space. Host names are not resolved.
+         *
+         * @param str the literal.
+         * @return the high and low 64 bits of the address in a per-thread
+         * buffer, or null if str is not an IP literal.
+         */
+        private long[] parseV6(String str) {
+                long[] address = addressBuffer.get();
+                long ipnum = IPLiteral.parseIPv4(str);
+                if (ipnum >= 0) {
+                        address[0] = 0;
+                        address[1] = ipnum;
+                } else if (!IPLiteral.parseIPv6(str, address)) {
+                        return null;
+                }
+                return address;
+        }
+
+        /**
+         * Returns the first 64 bits of an address given as bytes. The 4 bytes
+         * of an IPv4 address are taken as "::a.b.c.d".
+         */
+        private static long v6High(byte[] v6vec) {
+                return v6vec.length == 4 ? 0 : v6Word(v6vec, 0);
+        }
+
+        /**
+         * Returns the last 64 bits of an address given as bytes.
+         */
+        private static long v6Low(byte[] v6vec) {
+                return v6vec.length == 4 ? bytesToLong(v6vec) : v6Word(v6vec, 8);
+        }
+
+        private static long v6Word(byte[] v6vec, int offset) {
+                long word = 0;
+                for (int i = 0; i < 8; i++) {
+                        word = (word << 8) | (v6vec[offset + i] & 0xFF);
+                }
+                return word;
+        }
+
         /**
          * Returns the long version of an IP address given an InetAddress
          * object.
@@ -0,0 +1,100 @@
+/**
+ * NetmaskCache.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+/**
+ * Remembers the network blocks of the most recent IPv4 lookups. Every
+ * address in a block ends on the same record, so a lookup for an address
+ * inside a remembered block can return its result directly.
+ *
+ * Blocks are immutable and replaced round robin, so the cache is read and
+ * written without locking. The hit and miss counts are striped, so threads
+ * counting their lookups do not contend on one cache line.
+ */
+final class NetmaskCache {
+
+    private final Block[] blocks;
+    private int next;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+
+    NetmaskCache(int size) {
+        blocks = new Block[size];
+    }
+
+    /**
+     * Returns the remembered result for an address.
+     *
+     * @param img the image being searched.
+     * @param ipAddress the address, between 0 and 2^32 - 1.
+     * @return the result as packed by LookupService, or -1 if the address
+     * is not in a remembered block.
+     */
+    long get(DatabaseImage img, long ipAddress) {
+        for (int i = 0; i < blocks.length; i++) {
+            Block b = blocks[i];
+            if (b != null && b.img == img && ((ipAddress ^ b.network) >>> b.shift) == 0) {
+                hits.increment();
+                return b.result;
+            }
+        }
+        misses.increment();
+        return -1;
+    }
+
+    /**
+     * Remembers the block of an address.
+     *
+     * @param img the image that was searched.
+     * @param ipAddress the address, between 0 and 2^32 - 1.
+     * @param result the result as packed by LookupService.
+     */
+    void put(DatabaseImage img, long ipAddress, long result) {
+        int netmask = (int) (result >>> 32);
+        if (netmask == 0) {
+            return;
+        }
+        int i = next;
+        next = i + 1 < blocks.length ? i + 1 : 0;
+        blocks[i] = new Block(img, ipAddress, netmask, result);
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    private static final class Block {
+
+        final DatabaseImage img;
+        final long network;
+        final int shift;
+        final long result;
+
+        Block(DatabaseImage img, long ipAddress, int netmask, long result) {
+            this.img = img;
+            this.shift = 32 - netmask;
+            this.network = (ipAddress >>> shift) << shift;
+            this.result = result;
+        }
+    }
+}
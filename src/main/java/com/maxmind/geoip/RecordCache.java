@@ -0,0 +1,146 @@
+/**
+ * RecordCache.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of decoded City records, keyed by record pointer.
+ *
+ * Entries remember the image they were decoded from, so records of a
+ * database that has since been reloaded are never returned. The hit and
+ * miss counts are striped, so threads counting their lookups do not contend
+ * on one cache line.
+ */
+abstract class RecordCache {
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+
+    /**
+     * Creates a cache.
+     *
+     * @param size the maximum number of records.
+     * @param policy LookupService.RECORD_CACHE_DIRECT or
+     * LookupService.RECORD_CACHE_LRU.
+     * @return the cache.
+     */
+    static RecordCache create(int size, int policy) {
+        if (policy == LookupService.RECORD_CACHE_LRU) {
+            return new Lru(size);
+        }
+        return new Direct(size);
+    }
+
+    /**
+     * Returns the cached record, counting the hit or miss.
+     *
+     * @param img the image being searched.
+     * @param record_pointer the offset of the record.
+     * @return the record, or null if it is not cached.
+     */
+    Location get(DatabaseImage img, int record_pointer) {
+        Entry e = lookup(record_pointer);
+        if (e != null && e.img == img && e.record_pointer == record_pointer) {
+            hits.increment();
+            return e.location;
+        }
+        misses.increment();
+        return null;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    abstract Entry lookup(int record_pointer);
+
+    abstract void put(DatabaseImage img, int record_pointer, Location location);
+
+    static final class Entry {
+
+        final DatabaseImage img;
+        final int record_pointer;
+        final Location location;
+
+        Entry(DatabaseImage img, int record_pointer, Location location) {
+            this.img = img;
+            this.record_pointer = record_pointer;
+            this.location = location;
+        }
+    }
+
+    /**
+     * Direct-mapped cache: each pointer has one slot and a new record
+     * replaces whatever was there. Entries are immutable, so the table is
+     * read and written without locking.
+     */
+    static final class Direct extends RecordCache {
+
+        private final Entry[] table;
+        private final int shift;
+
+        Direct(int size) {
+            int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 2) - 1);
+            table = new Entry[1 << bits];
+            shift = 32 - bits;
+        }
+
+        private int slot(int record_pointer) {
+            return (record_pointer * 0x9E3779B9) >>> shift;
+        }
+
+        Entry lookup(int record_pointer) {
+            return table[slot(record_pointer)];
+        }
+
+        void put(DatabaseImage img, int record_pointer, Location location) {
+            table[slot(record_pointer)] = new Entry(img, record_pointer, location);
+        }
+    }
+
+    /**
+     * Least recently used cache, guarded by its own monitor.
+     */
+    static final class Lru extends RecordCache {
+
+        private final LinkedHashMap<Integer, Entry> map;
+
+        Lru(final int capacity) {
+            map = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Integer, RecordCache.Entry> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized Entry lookup(int record_pointer) {
+            return map.get(Integer.valueOf(record_pointer));
+        }
+
+        synchronized void put(DatabaseImage img, int record_pointer, Location location) {
+            map.put(Integer.valueOf(record_pointer), new Entry(img, record_pointer, location));
+        }
+    }
+}
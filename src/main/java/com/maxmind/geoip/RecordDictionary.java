@@ -0,0 +1,187 @@
+/**
+ * RecordDictionary.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The strings of every record of a City or Org database, decoded once when
+ * the database is loaded. Equal strings are stored once, both as a String
+ * and as UTF-8 bytes, and each record refers to its strings by index.
+ *
+ * A dictionary is immutable once built and is shared by all threads.
+ */
+final class RecordDictionary {
+
+    /**
+     * Fields per record of a City database: region, city and postal code.
+     */
+    static final int CITY_FIELDS = 3;
+    /**
+     * Fields per record of an Org database: the org name.
+     */
+    static final int ORG_FIELDS = 1;
+    /**
+     * The record pointers, in ascending order.
+     */
+    final int[] pointers;
+    /**
+     * For record i, the string indexes of its fields start at
+     * fields[i * fieldsPerRecord]; -1 stands for a missing field.
+     */
+    final int[] fields;
+    final int fieldsPerRecord;
+    /**
+     * The decoded records of a City database, sharing the dictionary
+     * strings; null for an Org database.
+     */
+    final Location[] locations;
+    final String[] strings;
+    final byte[][] utf8;
+    /**
+     * Approximate heap size of the dictionary, in bytes.
+     */
+    final long bytes;
+    /**
+     * Time taken to build the dictionary, in milliseconds.
+     */
+    final long loadMillis;
+
+    private RecordDictionary(Builder b, long loadMillis) {
+        this.pointers = b.pointers;
+        this.fields = b.fields;
+        this.fieldsPerRecord = b.fieldsPerRecord;
+        this.locations = b.locations;
+        this.strings = b.strings.toArray(new String[b.strings.size()]);
+        this.utf8 = new byte[strings.length][];
+        long size = 16L + 4L * pointers.length + 16L + 4L * fields.length + 32L * strings.length;
+        try {
+            for (int i = 0; i < strings.length; i++) {
+                utf8[i] = strings[i].getBytes("UTF-8");
+                size += 56 + 2 * strings[i].length() + utf8[i].length;
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        if (locations != null) {
+            size += 16L + 60L * locations.length;
+        }
+        this.bytes = size;
+        this.loadMillis = loadMillis;
+    }
+
+    /**
+     * Returns the position of a record in the dictionary.
+     *
+     * @param record_pointer the offset of the record.
+     * @return the record number, or a negative value if the record is not
+     * in the dictionary.
+     */
+    int find(int record_pointer) {
+        return Arrays.binarySearch(pointers, record_pointer);
+    }
+
+    /**
+     * Returns the string index of a field of a record.
+     *
+     * @param record the record number, as returned by find.
+     * @param field the field, between 0 and fieldsPerRecord - 1.
+     * @return the string index, or -1 if the field is missing.
+     */
+    int field(int record, int field) {
+        return fields[record * fieldsPerRecord + field];
+    }
+
+    /**
+     * Collects the records of a database in ascending pointer order.
+     */
+    static final class Builder {
+
+        private final int[] pointers;
+        private final int[] fields;
+        private final int fieldsPerRecord;
+        private final Location[] locations;
+        private final List<String> strings = new ArrayList<String>();
+        private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+        private int count;
+
+        Builder(int records, boolean city) {
+            pointers = new int[records];
+            fieldsPerRecord = city ? CITY_FIELDS : ORG_FIELDS;
+            fields = new int[records * fieldsPerRecord];
+            locations = city ? new Location[records] : null;
+        }
+
+        private int add(String s) {
+            if (s == null) {
+                return -1;
+            }
+            Integer i = index.get(s);
+            if (i == null) {
+                i = Integer.valueOf(strings.size());
+                strings.add(s);
+                index.put(s, i);
+            }
+            return i.intValue();
+        }
+
+        private String canonical(int i) {
+            return i < 0 ? null : strings.get(i);
+        }
+
+        /**
+         * Adds the next record of a City database. Its strings are replaced
+         * by the dictionary copies.
+         */
+        void addLocation(int record_pointer, Location location) {
+            int f = count * fieldsPerRecord;
+            fields[f] = add(location.region);
+            fields[f + 1] = add(location.city);
+            fields[f + 2] = add(location.postalCode);
+            location.region = canonical(fields[f]);
+            location.city = canonical(fields[f + 1]);
+            location.postalCode = canonical(fields[f + 2]);
+            locations[count] = location;
+            pointers[count++] = record_pointer;
+        }
+
+        /**
+         * Adds the next record of an Org database.
+         */
+        void addOrg(int record_pointer, String org) {
+            fields[count] = add(org);
+            pointers[count++] = record_pointer;
+        }
+
+        /**
+         * Builds the dictionary.
+         *
+         * @param started when loading the dictionary started, as returned by
+         * System.currentTimeMillis.
+         * @return the dictionary.
+         */
+        RecordDictionary build(long started) {
+            return new RecordDictionary(this, System.currentTimeMillis() - started);
+        }
+    }
+}
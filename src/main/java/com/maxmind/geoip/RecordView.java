@@ -0,0 +1,261 @@
+/**
+ * RecordView.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A view of one City record that decodes each field only when it is asked
+ * for. The country needs a single byte of the record; the other fields read
+ * the record once and only the requested strings are created.
+ *
+ * A view is positioned with LookupService.getRecordView and can be reused
+ * for any number of lookups. It is not safe for use by several threads at
+ * once.
+ *
+ * The getters return the same values as the fields of the Location that
+ * getLocation returns for the address. When the database was loaded with
+ * GEOIP_STRING_DICT, the strings come from the dictionary and nothing is
+ * decoded at all; for a compact image the record is decoded from the image
+ * on first use. When the records are read from the database file, the
+ * record is read while the view is positioned, as the file may be closed
+ * by a reload afterwards; its fields are still decoded on first use.
+ */
+public class RecordView {
+
+    private final static int FULL_RECORD_LENGTH = 60;
+    private final byte[] record_buf = new byte[FULL_RECORD_LENGTH];
+    private DatabaseImage img;
+    private int record_pointer;
+    private int country = -1;
+    private boolean loaded;
+    private RecordDictionary dict;
+    private int dict_record = -1;
+    /**
+     * The whole record, when it came from the dictionary or a compact image.
+     */
+    private Location decoded;
+    private int region_offset, city_offset, postal_offset, latitude_offset;
+
+    /**
+     * Points the view at a record.
+     *
+     * @param img the image the record is in.
+     * @param record_pointer the offset of the record.
+     */
+    void position(DatabaseImage img, int record_pointer) {
+        this.img = img;
+        this.record_pointer = record_pointer;
+        country = -1;
+        loaded = false;
+        dict_record = -1;
+        decoded = null;
+        if (img.file != null) {
+            load();
+        }
+    }
+
+    private int country() {
+        if (country < 0) {
+            if (img.compact != null) {
+                country = img.compact.country(record_pointer);
+            } else {
+                // the buffer holds the record only when it was not in the dictionary
+                country = loaded && decoded == null ? record_buf[0] & 0xFF
+                        : LookupService.readByte(img, record_pointer);
+            }
+        }
+        return country;
+    }
+
+    /**
+     * Finds the record in the dictionary, or else reads it and finds where
+     * each field starts.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        RecordDictionary d = img.dictionary;
+        if (d != null && d.locations != null) {
+            dict_record = d.find(record_pointer);
+            if (dict_record >= 0) {
+                dict = d;
+                decoded = d.locations[dict_record];
+                loaded = true;
+                return;
+            }
+        }
+        if (img.compact != null) {
+            decoded = new Location();
+            img.compact.decodeLocation(record_pointer, decoded);
+            loaded = true;
+            return;
+        }
+        try {
+            LookupService.readRecord(img, record_pointer, record_buf);
+        } catch (IOException e) {
+            LookupService.readFailed("City record", record_pointer, e);
+        }
+        region_offset = 1;
+        city_offset = skip(region_offset);
+        postal_offset = skip(city_offset);
+        latitude_offset = skip(postal_offset);
+        loaded = true;
+    }
+
+    /**
+     * Returns the offset after the null-terminated string at offset.
+     */
+    private int skip(int offset) {
+        while (record_buf[offset] != '\0') {
+            offset++;
+        }
+        return offset + 1;
+    }
+
+    private String string(int offset, int end, String charset) {
+        int str_length = end - 1 - offset;
+        if (str_length == 0) {
+            return null;
+        }
+        if (charset == null) {
+            return new String(record_buf, offset, str_length);
+        }
+        try {
+            return new String(record_buf, offset, str_length, charset);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private int int24(int offset) {
+        return (record_buf[offset] & 0xFF) + ((record_buf[offset + 1] & 0xFF) << 8)
+                + ((record_buf[offset + 2] & 0xFF) << 16);
+    }
+
+    public String getCountryCode() {
+        return LookupService.countryCode[country()];
+    }
+
+    public String getCountryName() {
+        return LookupService.countryName[country()];
+    }
+
+    /**
+     * Returns a string field as UTF-8 bytes, from the dictionary if there
+     * is one.
+     */
+    private byte[] utf8(int field, String value) {
+        if (dict_record >= 0) {
+            int i = dict.field(dict_record, field);
+            return i < 0 ? null : dict.utf8[i];
+        }
+        if (value == null) {
+            return null;
+        }
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public String getRegion() {
+        load();
+        Location l = decoded;
+        return l != null ? l.region : string(region_offset, city_offset, null);
+    }
+
+    public String getCity() {
+        load();
+        Location l = decoded;
+        return l != null ? l.city : string(city_offset, postal_offset, "ISO-8859-1");
+    }
+
+    public String getPostalCode() {
+        load();
+        Location l = decoded;
+        return l != null ? l.postalCode : string(postal_offset, latitude_offset, null);
+    }
+
+    /**
+     * Returns the region as UTF-8 bytes. With GEOIP_STRING_DICT the array
+     * is shared and must not be modified.
+     *
+     * @return the bytes, or null if the record has no region.
+     */
+    public byte[] getRegionUTF8() {
+        return utf8(0, getRegion());
+    }
+
+    /**
+     * Returns the city as UTF-8 bytes. With GEOIP_STRING_DICT the array is
+     * shared and must not be modified.
+     *
+     * @return the bytes, or null if the record has no city.
+     */
+    public byte[] getCityUTF8() {
+        return utf8(1, getCity());
+    }
+
+    /**
+     * Returns the postal code as UTF-8 bytes. With GEOIP_STRING_DICT the
+     * array is shared and must not be modified.
+     *
+     * @return the bytes, or null if the record has no postal code.
+     */
+    public byte[] getPostalCodeUTF8() {
+        return utf8(2, getPostalCode());
+    }
+
+    public float getLatitude() {
+        load();
+        Location l = decoded;
+        return l != null ? l.latitude : (float) int24(latitude_offset) / 10000 - 180;
+    }
+
+    public float getLongitude() {
+        load();
+        Location l = decoded;
+        return l != null ? l.longitude : (float) int24(latitude_offset + 3) / 10000 - 180;
+    }
+
+    public int getMetroCode() {
+        return metroAreaCombo() / 1000;
+    }
+
+    public int getDmaCode() {
+        return getMetroCode();
+    }
+
+    public int getAreaCode() {
+        return metroAreaCombo() % 1000;
+    }
+
+    private int metroAreaCombo() {
+        if (img.databaseType != DatabaseInfo.CITY_EDITION_REV1 || getCountryCode() != "US") {
+            return 0;
+        }
+        load();
+        Location l = decoded;
+        return l != null ? l.metro_code * 1000 + l.area_code : int24(latitude_offset + 6);
+    }
+}
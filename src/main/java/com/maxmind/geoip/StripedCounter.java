@@ -0,0 +1,60 @@
+/**
+ * StripedCounter.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for statistics that many threads increment on every lookup.
+ *
+ * Each thread adds to one of several cells picked by its thread id, and the
+ * cells are a cache line apart, so threads on different cores do not fight
+ * over one line. Reading the count adds up the cells.
+ */
+final class StripedCounter {
+
+    /**
+     * The distance between two cells, in longs: 128 bytes, which covers the
+     * cache line and the adjacent line prefetch.
+     */
+    private static final int PAD = 16;
+    private static final int MAX_STRIPES = 64;
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = Integer.highestOneBit(Math.min(Math.max(2 * cpus - 1, 1), MAX_STRIPES - 1)) << 1;
+        cells = new AtomicLongArray(stripes * PAD);
+        mask = stripes - 1;
+    }
+
+    void increment() {
+        int cell = (int) Thread.currentThread().getId() & mask;
+        cells.incrementAndGet(cell * PAD);
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
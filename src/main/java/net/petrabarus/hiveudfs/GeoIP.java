@@ -26,12 +26,18 @@
  */
 package net.petrabarus.hiveudfs;
 
-import com.maxmind.geoip.Location;
+import com.maxmind.geoip.Country;
 import com.maxmind.geoip.LookupService;
+import com.maxmind.geoip.RecordView;
+import com.maxmind.geoip.Region;
 import com.maxmind.geoip.RegionName;
-import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import net.petrabarus.hiveudfs.helpers.GeoIPDatabase;
+import net.petrabarus.hiveudfs.helpers.IPAddressArgument;
+import net.petrabarus.hiveudfs.helpers.LongObjectCache;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
@@ -39,10 +45,13 @@ import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.UDFType;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 
@@ -51,9 +60,26 @@ import org.apache.hadoop.io.Text;
  * library.
  *
  * The function will need three arguments. <ol> <li>IP Address in long
- * format.</li> <li>IP attribute (e.g. COUNTRY, CITY, REGION, etc)</li>
+ * format, as an unsigned int, as an IPv4 or IPv6 string or as 4 or 16
+ * bytes.</li> <li>IP attribute (e.g. COUNTRY, CITY, REGION, etc)</li>
  * <li>Database file name.</li> </ol>
  *
+ * IPv6 addresses are looked up in the IPv6 editions of the databases. In an
+ * IPv4 edition only IPv4 and IPv4-mapped (::ffff:a.b.c.d) addresses are
+ * found. An IPv6 edition keeps the IPv4 space at ::a.b.c.d, so IPv4 and
+ * IPv4-mapped addresses are looked up there, like
+ * LookupService.getCountryV6 does for an IPv4 literal.
+ *
+ * An optional fourth argument, a constant int, is the number of results to
+ * cache by IP address. When the attribute and the database are constants,
+ * an IPv4 address that was seen before is answered from the cache without a
+ * lookup. The cache holds at most 4194304 results, and its hit rate is
+ * logged every 1048576 IPv4 lookups.
+ *
+ * When the attribute is a constant, LATITUDE and LONGITUDE are returned as
+ * float and AREA_CODE, DMA_CODE, METRO_CODE and ID as int. Otherwise every
+ * attribute is returned as a string.
+ *
  * This is a derived version from https://github.com/edwardcapriolo/hive-geoip.
  * (Please let me know if I need to modify the license)
  *
@@ -63,11 +89,13 @@ import org.apache.hadoop.io.Text;
 @UDFType(deterministic = true)
 @Description(
   name = "geoip",
-value = "_FUNC_(ip,property,database) - looks a property for an IP address from"
+value = "_FUNC_(ip,property,database[,cachesize]) - looks a property for an IP address from"
 + "a library loaded\n"
 + "The GeoIP database comes separated. To load the GeoIP use ADD FILE.\n"
 + "Usage:\n"
-+ " > _FUNC_(16843009, \"COUNTRY_NAME\", \"./GeoIP.dat\")")
++ " > _FUNC_(16843009, \"COUNTRY_NAME\", \"./GeoIP.dat\")\n"
++ " > _FUNC_(\"2001:db8::1\", \"COUNTRY_NAME\", \"./GeoIPv6.dat\")\n"
++ " > _FUNC_(16843009, \"COUNTRY_NAME\", \"./GeoIP.dat\", 100000)")
 public class GeoIP extends GenericUDF {
 
         public static final String COUNTRY_NAME = "COUNTRY_NAME";
@@ -83,8 +111,58 @@ public class GeoIP extends GenericUDF {
         public static final String REGION_NAME = "REGION_NAME";
         public static final String ORG = "ORG";
         public static final String ID = "ID";
+        private static final Log LOG = LogFactory.getLog(GeoIP.class);
+        private static final HashMap<String, Attribute> attributes = new HashMap<String, Attribute>();
+        /**
+         * Stands for a lookup without result in the cache.
+         */
+        private static final Object NOT_FOUND = new Object();
+        /**
+         * The number of cache lookups between two logs of the hit rate, a
+         * power of two. Hive 0.9 never closes the UDF, so the rate can not
+         * be logged at the end of the task.
+         */
+        private static final long CACHE_LOG_INTERVAL = 1 << 20;
+        /**
+         * The IP address argument, read without a converter. The other
+         * arguments are converted to Text.
+         */
+        private IPAddressArgument address;
         private ObjectInspectorConverters.Converter[] converters;
-        private static HashMap<String, LookupService> databases = new HashMap<String, LookupService>();
+        private RecordView view = new RecordView();
+        private HashMap<String, GeoIPDatabase> databases = new HashMap<String, GeoIPDatabase>();
+        /**
+         * The return values, refilled for every row.
+         */
+        private final Text result = new Text();
+        private final FloatWritable floatResult = new FloatWritable();
+        private final IntWritable intResult = new IntWritable();
+        /**
+         * The attribute and database name, when they are constant.
+         */
+        private boolean constantAttribute;
+        private Attribute attribute;
+        /**
+         * Whether the constant attribute is numeric and returned as a float
+         * or an int instead of a string.
+         */
+        private boolean typedOutput;
+        private String databaseName;
+        /**
+         * The database named by a constant database name, once acquired.
+         */
+        private GeoIPDatabase database;
+        /**
+         * The results by IP address, when a cache size is given and the
+         * attribute and database are constant.
+         */
+        private LongObjectCache<Object> cache;
+
+        static {
+                for (Attribute a : Attribute.values()) {
+                        attributes.put(a.name(), a);
+                }
+        }
 
         /**
          * Initialize this UDF.
@@ -98,8 +176,8 @@ public class GeoIP extends GenericUDF {
          */
         @Override
         public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
-                if (arguments.length != 3) {
-                        throw new UDFArgumentLengthException("_FUNC_ accepts 3 arguments. " + arguments.length
+                if (arguments.length != 3 && arguments.length != 4) {
+                        throw new UDFArgumentLengthException("_FUNC_ accepts 3 or 4 arguments. " + arguments.length
                                 + " found.");
                 }
                 for (int i = 0; i < arguments.length; i++) {
@@ -109,16 +187,14 @@ public class GeoIP extends GenericUDF {
                                         + " was given.");
                         }
                 }
-                //first argument can be long or string
-                PrimitiveObjectInspector.PrimitiveCategory firstParamPrimitiveCategory = ((PrimitiveObjectInspector) arguments[0])
-                        .getPrimitiveCategory();
-                if (firstParamPrimitiveCategory != PrimitiveObjectInspector.PrimitiveCategory.LONG) {
+                //first argument can be long, int, string or binary
+                if (!IPAddressArgument.isSupported(arguments[0])) {
                         throw new UDFArgumentTypeException(0,
-                                "A string or long for first argument was expected but an argument of type " + arguments[0].getTypeName()
-                                + " was given.");
+                                "A long, int, string or binary for first argument was expected but an argument of type "
+                                + arguments[0].getTypeName() + " was given.");
                 }
 
-                for (int i = 1; i < arguments.length; i++) {
+                for (int i = 1; i < 3; i++) {
                         PrimitiveObjectInspector.PrimitiveCategory primitiveCategory = ((PrimitiveObjectInspector) arguments[i])
                                 .getPrimitiveCategory();
                         if (primitiveCategory != PrimitiveObjectInspector.PrimitiveCategory.STRING
@@ -129,16 +205,74 @@ public class GeoIP extends GenericUDF {
                         }
                 }
 
-                converters = new ObjectInspectorConverters.Converter[arguments.length];
-                converters[0] = ObjectInspectorConverters.getConverter(arguments[0],
-                        PrimitiveObjectInspectorFactory.writableLongObjectInspector);
-                for (int i = 1; i < arguments.length; i++) {
+                long cacheSize = 0;
+                if (arguments.length == 4) {
+                        PrimitiveObjectInspector.PrimitiveCategory primitiveCategory = ((PrimitiveObjectInspector) arguments[3])
+                                .getPrimitiveCategory();
+                        Object size = getConstantValue(arguments[3]);
+                        if (size == null || (primitiveCategory != PrimitiveObjectInspector.PrimitiveCategory.INT
+                                && primitiveCategory != PrimitiveObjectInspector.PrimitiveCategory.LONG)) {
+                                throw new UDFArgumentTypeException(3,
+                                        "A constant int for the cache size was expected but an argument of type "
+                                        + arguments[3].getTypeName() + " was given.");
+                        }
+                        cacheSize = ((LongWritable) ObjectInspectorConverters.getConverter(arguments[3],
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector).convert(size)).get();
+                        if (cacheSize < 0 || cacheSize > LongObjectCache.MAX_SIZE) {
+                                throw new UDFArgumentException("The cache size must be between 0 and "
+                                        + LongObjectCache.MAX_SIZE + ". " + cacheSize + " found.");
+                        }
+                }
+
+                address = new IPAddressArgument((PrimitiveObjectInspector) arguments[0]);
+                converters = new ObjectInspectorConverters.Converter[3];
+                for (int i = 1; i < 3; i++) {
                         converters[i] = ObjectInspectorConverters.getConverter(arguments[i],
                                 PrimitiveObjectInspectorFactory.writableStringObjectInspector);
                 }
+                //Constant arguments are resolved once instead of on every row.
+                //The database is only acquired in evaluate, as the file is not
+                //there yet when the query is compiled.
+                Object value = getConstantValue(arguments[1]);
+                if (value != null) {
+                        constantAttribute = true;
+                        attribute = attributes.get(value.toString());
+                }
+                value = getConstantValue(arguments[2]);
+                if (value != null) {
+                        databaseName = value.toString();
+                }
+                //The cache is keyed by IP address only, so it can only be
+                //used when the other arguments are the same for all rows.
+                if (cacheSize > 0 && attribute != null && databaseName != null) {
+                        cache = new LongObjectCache<Object>((int) cacheSize);
+                }
+                //The output type can only follow the attribute when it is the same for all rows.
+                if (attribute != null && attribute.isFloat()) {
+                        typedOutput = true;
+                        return PrimitiveObjectInspectorFactory.writableFloatObjectInspector;
+                }
+                if (attribute != null && attribute.isInt()) {
+                        typedOutput = true;
+                        return PrimitiveObjectInspectorFactory.writableIntObjectInspector;
+                }
                 return PrimitiveObjectInspectorFactory.writableStringObjectInspector;
         }
 
+        /**
+         * Get the value of a constant argument.
+         *
+         * @param argument The ObjectInspector of the argument.
+         * @return The writable value, or null if the argument is not a
+         * constant.
+         */
+        private static Object getConstantValue(ObjectInspector argument) {
+                if (argument instanceof ConstantObjectInspector) {
+                        return ((ConstantObjectInspector) argument).getWritableConstantValue();
+                }
+                return null;
+        }
+
         /**
          * Evaluate the UDF with the arguments.
          *
@@ -150,58 +284,80 @@ public class GeoIP extends GenericUDF {
          */
         @Override
         public Object evaluate(GenericUDF.DeferredObject[] arguments) throws HiveException {
-                assert (arguments.length == 3);
-                LongWritable ipArg = (LongWritable) converters[0].convert(arguments[0].get());
-                long ip = ipArg.get();
-                String attributeName = ((Text) converters[1].convert(arguments[1].get())).toString();
-                String databaseName = ((Text) converters[2].convert(arguments[2].get())).toString();
-                LookupService lookupService;
-                //Just in case there are more than one database filename attached.
-                //We will just assume that two file with same filename are identical.
-                if (!databases.containsKey(databaseName)) {
-                        File file = new File(databaseName);
-                        if (!file.exists()) {
-                                throw new HiveException(databaseName + " does not exist");
+                assert (arguments.length == 3 || arguments.length == 4);
+                if (!address.set(arguments[0].get())) {
+                        //Null or not an IP address.
+                        return null;
+                }
+                Attribute attribute = this.attribute;
+                if (!constantAttribute) {
+                        String attributeName = ((Text) converters[1].convert(arguments[1].get())).toString();
+                        attribute = attributes.get(attributeName);
+                }
+                GeoIPDatabase database = this.database;
+                if (database == null) {
+                        if (databaseName != null) {
+                                database = this.database = getDatabase(databaseName);
+                        } else {
+                                database = getDatabase(((Text) converters[2].convert(arguments[2].get())).toString());
                         }
+                }
+                if (attribute == null) {
+                        //Unknown attribute.
+                        result.set("");
+                        return result;
+                }
+                if (!database.isV6() && !address.isV4()) {
+                        //IPv4 databases have no IPv6 addresses.
+                        return null;
+                }
+                //Only IPv4 addresses fit in the cache key.
+                if (cache == null || !address.isV4()) {
+                        return lookup(database, attribute);
+                }
+                long ip = address.getV4();
+                Object cached = cache.get(ip);
+                if (((cache.getHits() + cache.getMisses()) & (CACHE_LOG_INTERVAL - 1)) == 0) {
+                        logCacheStatistics();
+                }
+                if (cached != null) {
+                        return fromCache(cached);
+                }
+                Object value = lookup(database, attribute);
+                cache.put(ip, toCache(value));
+                return value;
+        }
+
+        /**
+         * Look an attribute of the current address up in a database.
+         *
+         * @return The filled output writable, or null if there is no value.
+         */
+        private Object lookup(GeoIPDatabase database, Attribute attribute) {
+                if (typedOutput) {
                         try {
-                                lookupService = new LookupService(file, LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_CHECK_CACHE);
-                                databases.put(databaseName, lookupService);
-                        } catch (IOException ex) {
-                                throw new HiveException(ex);
+                                return getNumericAttribute(database, attribute);
+                        } catch (Exception ex) {
+                                return null;
                         }
-                } else {
-                        lookupService = databases.get(databaseName);
                 }
-                String retVal = "";
+                String retVal;
                 try {
                         //Let's do it baby!
-                        Location location = lookupService.getLocation(ip);
-                        if (attributeName.equals(COUNTRY_NAME)) {
-                                retVal = location.countryName;
-                        } else if (attributeName.equals(COUNTRY_CODE)) {
-                                retVal = location.countryCode;
-                        } else if (attributeName.equals(AREA_CODE)) {
-                                retVal = location.area_code + "";
-                        } else if (attributeName.equals(CITY)) {
-                                retVal = location.city + "";
-                        } else if (attributeName.equals(DMA_CODE)) {
-                                retVal = location.dma_code + "";
-                        } else if (attributeName.equals(LATITUDE)) {
-                                retVal = location.latitude + "";
-                        } else if (attributeName.equals(LONGITUDE)) {
-                                retVal = location.longitude + "";
-                        } else if (attributeName.equals(METRO_CODE)) {
-                                retVal = location.metro_code + "";
-                        } else if (attributeName.equals(POSTAL_CODE)) {
-                                retVal = location.postalCode;
-                        } else if (attributeName.equals(REGION)) {
-                                retVal = location.region;
-                        } else if (attributeName.equals(REGION_NAME)) {
-                                retVal = RegionName.regionNameByCode(location.countryCode, location.region);
-                        } else if (attributeName.equals(ORG)) {
-                                retVal = lookupService.getOrg(ip);
-                        } else if (attributeName.equals(ID)) {
-                                retVal = lookupService.getID(ip) + "";
+                        //ORG and ID need the trie walk only, the other attributes
+                        //are decoded the way the database edition stores them.
+                        if (attribute == Attribute.ORG) {
+                                retVal = database.getKind() == GeoIPDatabase.ORG ? getOrg(database) : null;
+                        } else if (attribute == Attribute.ID) {
+                                retVal = getID(database) + "";
+                        } else if (database.getKind() == GeoIPDatabase.CITY) {
+                                retVal = getCityAttribute(database, attribute);
+                        } else if (database.getKind() == GeoIPDatabase.REGION) {
+                                retVal = getRegionAttribute(database, attribute);
+                        } else if (database.getKind() == GeoIPDatabase.COUNTRY) {
+                                retVal = getCountryAttribute(database, attribute);
+                        } else {
+                                retVal = null;
                         }
                 } catch (Exception ex) {
                         //This will be useful if you don't have a complete database file.
@@ -210,7 +366,241 @@ public class GeoIP extends GenericUDF {
                 if (retVal == null) {
                         return null;
                 }
-                return new Text(retVal);
+                result.set(retVal);
+                return result;
+        }
+
+        /**
+         * Copy a lookup result for the cache, as the output writables are
+         * refilled by the next row.
+         */
+        private static Object toCache(Object value) {
+                if (value == null) {
+                        return NOT_FOUND;
+                } else if (value instanceof Text) {
+                        return new Text((Text) value);
+                } else if (value instanceof FloatWritable) {
+                        return new FloatWritable(((FloatWritable) value).get());
+                } else {
+                        return new IntWritable(((IntWritable) value).get());
+                }
+        }
+
+        /**
+         * Fill the output writable from a cached result.
+         */
+        private Object fromCache(Object cached) {
+                if (cached == NOT_FOUND) {
+                        return null;
+                } else if (cached instanceof Text) {
+                        result.set((Text) cached);
+                        return result;
+                } else if (cached instanceof FloatWritable) {
+                        floatResult.set(((FloatWritable) cached).get());
+                        return floatResult;
+                } else {
+                        intResult.set(((IntWritable) cached).get());
+                        return intResult;
+                }
+        }
+
+        /**
+         * Get the database with the given file name, acquiring it the first
+         * time.
+         *
+         * @param databaseName The database file name.
+         * @return The database.
+         * @throws HiveException Thrown when the database can not be loaded.
+         */
+        private GeoIPDatabase getDatabase(String databaseName) throws HiveException {
+                //Just in case there are more than one database filename attached.
+                GeoIPDatabase database = databases.get(databaseName);
+                if (database == null) {
+                        database = GeoIPDatabase.acquire(databaseName);
+                        databases.put(databaseName, database);
+                }
+                return database;
+        }
+
+        /**
+         * Look the ID of the current address up, with the lookup for the
+         * address size of the database.
+         */
+        private int getID(GeoIPDatabase database) {
+                LookupService lookupService = database.getLookupService();
+                if (database.isV6()) {
+                        return lookupService.getIDV6(address.getHigh(), address.getLow());
+                }
+                return lookupService.getID(address.getV4());
+        }
+
+        /**
+         * Look the organization of the current address up.
+         */
+        private String getOrg(GeoIPDatabase database) {
+                LookupService lookupService = database.getLookupService();
+                if (database.isV6()) {
+                        return lookupService.getOrgV6(address.getHigh(), address.getLow());
+                }
+                return lookupService.getOrg(address.getV4());
+        }
+
+        /**
+         * Look the country of the current address up.
+         */
+        private Country getCountry(GeoIPDatabase database) {
+                LookupService lookupService = database.getLookupService();
+                if (database.isV6()) {
+                        return lookupService.getCountryV6(address.getHigh(), address.getLow());
+                }
+                return lookupService.getCountry(address.getV4());
+        }
+
+        /**
+         * Position the view on the City record of the current address.
+         *
+         * @return false if the address is not in the database.
+         */
+        private boolean getRecordView(GeoIPDatabase database) {
+                LookupService lookupService = database.getLookupService();
+                if (database.isV6()) {
+                        return lookupService.getRecordViewV6(address.getHigh(), address.getLow(), view);
+                }
+                return lookupService.getRecordView(address.getV4(), view);
+        }
+
+        /**
+         * Look an attribute up in a City database. Only the requested field
+         * is decoded from the record.
+         */
+        private String getCityAttribute(GeoIPDatabase database, Attribute attribute) {
+                if (!getRecordView(database)) {
+                        //Not in the database.
+                        return null;
+                }
+                switch (attribute) {
+                        case COUNTRY_NAME:
+                                return view.getCountryName();
+                        case COUNTRY_CODE:
+                                return view.getCountryCode();
+                        case AREA_CODE:
+                                return String.valueOf(view.getAreaCode());
+                        case CITY:
+                                return view.getCity();
+                        case DMA_CODE:
+                                return String.valueOf(view.getDmaCode());
+                        case LATITUDE:
+                                return String.valueOf(view.getLatitude());
+                        case LONGITUDE:
+                                return String.valueOf(view.getLongitude());
+                        case METRO_CODE:
+                                return String.valueOf(view.getMetroCode());
+                        case POSTAL_CODE:
+                                return view.getPostalCode();
+                        case REGION:
+                                return view.getRegion();
+                        case REGION_NAME:
+                                return RegionName.regionNameByCode(view.getCountryCode(), view.getRegion());
+                        default:
+                                return null;
+                }
+        }
+
+        /**
+         * Look a numeric attribute up, as a FloatWritable or an IntWritable.
+         */
+        private Object getNumericAttribute(GeoIPDatabase database, Attribute attribute) {
+                if (attribute == Attribute.ID) {
+                        intResult.set(getID(database));
+                        return intResult;
+                }
+                //Only City databases have coordinates and codes.
+                if (database.getKind() != GeoIPDatabase.CITY || !getRecordView(database)) {
+                        return null;
+                }
+                switch (attribute) {
+                        case LATITUDE:
+                                floatResult.set(view.getLatitude());
+                                return floatResult;
+                        case LONGITUDE:
+                                floatResult.set(view.getLongitude());
+                                return floatResult;
+                        case AREA_CODE:
+                                intResult.set(view.getAreaCode());
+                                return intResult;
+                        case DMA_CODE:
+                                intResult.set(view.getDmaCode());
+                                return intResult;
+                        case METRO_CODE:
+                                intResult.set(view.getMetroCode());
+                                return intResult;
+                        default:
+                                return null;
+                }
+        }
+
+        /**
+         * Look an attribute up in a Region database, which only knows the
+         * country and the region. Region databases are IPv4 only.
+         */
+        private String getRegionAttribute(GeoIPDatabase database, Attribute attribute) {
+                Region region = database.getLookupService().getRegion(address.getV4());
+                switch (attribute) {
+                        case COUNTRY_NAME:
+                                return region.countryName;
+                        case COUNTRY_CODE:
+                                return region.countryCode;
+                        case REGION:
+                                return region.region;
+                        case REGION_NAME:
+                                return RegionName.regionNameByCode(region.countryCode, region.region);
+                        default:
+                                return null;
+                }
+        }
+
+        /**
+         * Look an attribute up in a Country database, which only knows the
+         * country.
+         */
+        private String getCountryAttribute(GeoIPDatabase database, Attribute attribute) {
+                if (attribute != Attribute.COUNTRY_NAME && attribute != Attribute.COUNTRY_CODE) {
+                        return null;
+                }
+                Country country = getCountry(database);
+                if (country.getCode().equals("--")) {
+                        //Not in the database.
+                        return null;
+                }
+                return attribute == Attribute.COUNTRY_NAME ? country.getName() : country.getCode();
+        }
+
+        /**
+         * Release the databases used by this instance and log the hit rate
+         * of the cache. This is the close hook of later Hive versions; the
+         * GenericUDF of Hive 0.9 has none, so there the databases stay
+         * loaded until the JVM exits.
+         *
+         * @throws IOException Never thrown.
+         */
+        public void close() throws IOException {
+                if (cache != null) {
+                        logCacheStatistics();
+                        cache = null;
+                }
+                for (GeoIPDatabase database : databases.values()) {
+                        database.release();
+                }
+                databases.clear();
+                database = null;
+        }
+
+        /**
+         * Log the hits, misses and hit rate of the cache.
+         */
+        private void logCacheStatistics() {
+                LOG.info(String.format("GeoIP cache of %s for %s: %d hits, %d misses, hit rate %.1f%%",
+                        attribute, databaseName, cache.getHits(), cache.getMisses(), cache.getHitRate() * 100));
         }
 
         /**
@@ -220,7 +610,29 @@ public class GeoIP extends GenericUDF {
          */
         @Override
         public String getDisplayString(String[] children) {
-                assert (children.length == 3);
+                assert (children.length == 3 || children.length == 4);
+                if (children.length == 4) {
+                        return "_FUNC_( " + children[0] + ", " + children[1] + ", " + children[2] + ", "
+                                + children[3] + " )";
+                }
                 return "_FUNC_( " + children[0] + ", " + children[1] + ", " + children[2] + " )";
         }
+
+        /**
+         * The attributes that can be looked up, named like the attribute
+         * argument.
+         */
+        private enum Attribute {
+
+                COUNTRY_NAME, COUNTRY_CODE, AREA_CODE, CITY, DMA_CODE, LATITUDE, LONGITUDE, METRO_CODE,
+                POSTAL_CODE, REGION, REGION_NAME, ORG, ID;
+
+                boolean isFloat() {
+                        return this == LATITUDE || this == LONGITUDE;
+                }
+
+                boolean isInt() {
+                        return this == AREA_CODE || this == DMA_CODE || this == METRO_CODE || this == ID;
+                }
+        }
 }
@@ -0,0 +1,460 @@
+/**
+ * GeoIPStruct.java.
+ *
+ * Copyright (C) 2013 Petra Barus,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.petrabarus.hiveudfs;
+
+import com.maxmind.geoip.Country;
+import com.maxmind.geoip.LookupService;
+import com.maxmind.geoip.RecordView;
+import com.maxmind.geoip.Region;
+import com.maxmind.geoip.RegionName;
+import com.maxmind.geoip.TimeZone;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import net.petrabarus.hiveudfs.helpers.GeoIPDatabase;
+import net.petrabarus.hiveudfs.helpers.IPAddressArgument;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * This is a UDF to look all the location properties of an IP address up at
+ * once using MaxMind GeoIP library.
+ *
+ * The function will need two or three arguments. <ol> <li>IP Address in long
+ * format, as an unsigned int, as an IPv4 or IPv6 string or as 4 or 16
+ * bytes.</li> <li>Database file name.</li> <li>Optionally, a constant comma
+ * separated list of the fields to return.</li> </ol>
+ *
+ * Addresses are looked up the same way as by GeoIP: IPv6 addresses in the
+ * IPv6 editions of the databases, and IPv4 addresses in either edition.
+ * Region databases are IPv4 only.
+ *
+ * It returns a struct with the fields country_code, country_name, region,
+ * region_name, city, postal_code, latitude, longitude, metro_code, area_code
+ * and time_zone, or only the listed ones, from a single lookup. Only the
+ * listed fields are decoded. Fields the database does not hold are null, and
+ * the struct itself is null if the IP address is not in the database.
+ *
+ * @author Petra Barus <petra.barus@gmail.com>
+ */
+@UDFType(deterministic = true)
+@Description(
+        name = "geoip_struct",
+value = "_FUNC_(ip,database[,fields]) - looks all the location properties for an IP address up\n"
++ "The GeoIP database comes separated. To load the GeoIP use ADD FILE.",
+extended = "Example:\n"
++ " > SELECT _FUNC_(16843009, \"./GeoIPCity.dat\").city FROM table\n"
++ " > SELECT _FUNC_(16843009, \"./GeoIPCity.dat\", \"country_code,latitude,longitude\") FROM table\n"
++ " > SELECT _FUNC_(\"2001:db8::1\", \"./GeoLiteCityv6.dat\").country_code FROM table")
+public class GeoIPStruct extends GenericUDF {
+
+        private static final LinkedHashMap<String, Field> fieldNames = new LinkedHashMap<String, Field>();
+        /**
+         * The IP address argument, read without a converter. The database
+         * name is converted to Text.
+         */
+        private IPAddressArgument address;
+        private ObjectInspectorConverters.Converter[] converters;
+        private RecordView view = new RecordView();
+        private HashMap<String, GeoIPDatabase> databases = new HashMap<String, GeoIPDatabase>();
+        /**
+         * The database name, when it is constant.
+         */
+        private String databaseName;
+        /**
+         * The database named by a constant database name, once acquired.
+         */
+        private GeoIPDatabase database;
+        /**
+         * The fields of the returned struct, in order.
+         */
+        private Field[] fields;
+        /**
+         * The returned struct and the writables of its fields, refilled for
+         * every row.
+         */
+        private Object[] row;
+        private Text[] texts;
+        private FloatWritable[] floats;
+        private IntWritable[] ints;
+
+        static {
+                for (Field f : Field.values()) {
+                        fieldNames.put(f.name().toLowerCase(), f);
+                }
+        }
+
+        /**
+         * Initialize this UDF.
+         *
+         * This will be called once and only once per GenericUDF instance.
+         *
+         * @param arguments The ObjectInspector for the arguments
+         * @throws UDFArgumentException Thrown when arguments have wrong types,
+         * wrong length, etc.
+         * @return The ObjectInspector for the return value
+         */
+        @Override
+        public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+                if (arguments.length != 2 && arguments.length != 3) {
+                        throw new UDFArgumentLengthException("_FUNC_ accepts 2 or 3 arguments. " + arguments.length
+                                + " found.");
+                }
+                for (int i = 0; i < arguments.length; i++) {
+                        if (arguments[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                                throw new UDFArgumentTypeException(i,
+                                        "A string argument was expected but an argument of type " + arguments[i].getTypeName()
+                                        + " was given.");
+                        }
+                }
+                //first argument can be long, int, string or binary
+                if (!IPAddressArgument.isSupported(arguments[0])) {
+                        throw new UDFArgumentTypeException(0,
+                                "A long, int, string or binary for first argument was expected but an argument of type "
+                                + arguments[0].getTypeName() + " was given.");
+                }
+                for (int i = 1; i < arguments.length; i++) {
+                        PrimitiveObjectInspector.PrimitiveCategory primitiveCategory = ((PrimitiveObjectInspector) arguments[i])
+                                .getPrimitiveCategory();
+                        if (primitiveCategory != PrimitiveObjectInspector.PrimitiveCategory.STRING
+                                && primitiveCategory != PrimitiveObjectInspector.PrimitiveCategory.VOID) {
+                                throw new UDFArgumentTypeException(i,
+                                        "A string argument was expected but an argument of type " + arguments[i].getTypeName()
+                                        + " was given.");
+                        }
+                }
+
+                address = new IPAddressArgument((PrimitiveObjectInspector) arguments[0]);
+                converters = new ObjectInspectorConverters.Converter[2];
+                converters[1] = ObjectInspectorConverters.getConverter(arguments[1],
+                        PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+                if (arguments[1] instanceof ConstantObjectInspector) {
+                        Object value = ((ConstantObjectInspector) arguments[1]).getWritableConstantValue();
+                        if (value != null) {
+                                databaseName = value.toString();
+                        }
+                }
+
+                if (arguments.length == 3) {
+                        //The struct type depends on the list, so it has to be known now.
+                        if (!(arguments[2] instanceof ConstantObjectInspector)) {
+                                throw new UDFArgumentTypeException(2, "The field list must be a constant.");
+                        }
+                        Object value = ((ConstantObjectInspector) arguments[2]).getWritableConstantValue();
+                        fields = parseFields(value == null ? "" : value.toString());
+                } else {
+                        fields = Field.values();
+                }
+
+                List<String> names = new ArrayList<String>();
+                List<ObjectInspector> inspectors = new ArrayList<ObjectInspector>();
+                row = new Object[fields.length];
+                texts = new Text[fields.length];
+                floats = new FloatWritable[fields.length];
+                ints = new IntWritable[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                        names.add(fields[i].name().toLowerCase());
+                        switch (fields[i]) {
+                                case LATITUDE:
+                                case LONGITUDE:
+                                        floats[i] = new FloatWritable();
+                                        inspectors.add(PrimitiveObjectInspectorFactory.writableFloatObjectInspector);
+                                        break;
+                                case METRO_CODE:
+                                case AREA_CODE:
+                                        ints[i] = new IntWritable();
+                                        inspectors.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+                                        break;
+                                default:
+                                        texts[i] = new Text();
+                                        inspectors.add(PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+                        }
+                }
+                return ObjectInspectorFactory.getStandardStructObjectInspector(names, inspectors);
+        }
+
+        /**
+         * Parse a comma separated list of field names.
+         *
+         * @param list The list.
+         * @return The fields.
+         * @throws UDFArgumentException Thrown when a field is unknown or the
+         * list is empty.
+         */
+        private static Field[] parseFields(String list) throws UDFArgumentException {
+                List<Field> result = new ArrayList<Field>();
+                for (String name : list.split(",")) {
+                        name = name.trim().toLowerCase();
+                        if (name.length() == 0) {
+                                continue;
+                        }
+                        Field field = fieldNames.get(name);
+                        if (field == null) {
+                                throw new UDFArgumentException("Unknown field " + name + ", expected one of "
+                                        + fieldNames.keySet());
+                        }
+                        result.add(field);
+                }
+                if (result.isEmpty()) {
+                        throw new UDFArgumentException("The field list is empty.");
+                }
+                return result.toArray(new Field[result.size()]);
+        }
+
+        /**
+         * Evaluate the UDF with the arguments.
+         *
+         * @param arguments The arguments as DeferedObject, use
+         * DeferedObject.get() to get the actual argument Object. The Objects
+         * can be inspected by the ObjectInspectors passed in the initialize
+         * call.
+         * @return The return value.
+         */
+        @Override
+        public Object evaluate(GenericUDF.DeferredObject[] arguments) throws HiveException {
+                if (!address.set(arguments[0].get())) {
+                        //Null or not an IP address.
+                        return null;
+                }
+                GeoIPDatabase database = this.database;
+                if (database == null) {
+                        if (databaseName != null) {
+                                database = this.database = getDatabase(databaseName);
+                        } else {
+                                database = getDatabase(((Text) converters[1].convert(arguments[1].get())).toString());
+                        }
+                }
+                if (!database.isV6() && !address.isV4()) {
+                        //IPv4 databases have no IPv6 addresses.
+                        return null;
+                }
+                LookupService lookupService = database.getLookupService();
+                try {
+                        switch (database.getKind()) {
+                                case GeoIPDatabase.CITY:
+                                        boolean found = database.isV6()
+                                                ? lookupService.getRecordViewV6(address.getHigh(), address.getLow(), view)
+                                                : lookupService.getRecordView(address.getV4(), view);
+                                        if (!found) {
+                                                return null;
+                                        }
+                                        fillCity();
+                                        return row;
+                                case GeoIPDatabase.REGION:
+                                        //Region databases are IPv4 only.
+                                        Region region = lookupService.getRegion(address.getV4());
+                                        if (region.countryCode == null || region.countryCode.length() == 0) {
+                                                return null;
+                                        }
+                                        fillCountry(region.countryCode, region.countryName, region.region);
+                                        return row;
+                                case GeoIPDatabase.COUNTRY:
+                                        Country country = database.isV6()
+                                                ? lookupService.getCountryV6(address.getHigh(), address.getLow())
+                                                : lookupService.getCountry(address.getV4());
+                                        if (country.getCode().equals("--")) {
+                                                return null;
+                                        }
+                                        fillCountry(country.getCode(), country.getName(), null);
+                                        return row;
+                                default:
+                                        //Org databases hold no location.
+                                        return null;
+                        }
+                } catch (Exception ex) {
+                        //This will be useful if you don't have a complete database file.
+                        return null;
+                }
+        }
+
+        /**
+         * Fill the struct from a City record. Only the listed fields are
+         * decoded.
+         */
+        private void fillCity() {
+                for (int i = 0; i < fields.length; i++) {
+                        switch (fields[i]) {
+                                case COUNTRY_CODE:
+                                        row[i] = text(i, view.getCountryCode());
+                                        break;
+                                case COUNTRY_NAME:
+                                        row[i] = text(i, view.getCountryName());
+                                        break;
+                                case REGION:
+                                        row[i] = text(i, view.getRegionUTF8());
+                                        break;
+                                case REGION_NAME:
+                                        row[i] = text(i, RegionName.regionNameByCode(view.getCountryCode(), view.getRegion()));
+                                        break;
+                                case CITY:
+                                        row[i] = text(i, view.getCityUTF8());
+                                        break;
+                                case POSTAL_CODE:
+                                        row[i] = text(i, view.getPostalCodeUTF8());
+                                        break;
+                                case LATITUDE:
+                                        floats[i].set(view.getLatitude());
+                                        row[i] = floats[i];
+                                        break;
+                                case LONGITUDE:
+                                        floats[i].set(view.getLongitude());
+                                        row[i] = floats[i];
+                                        break;
+                                case METRO_CODE:
+                                        ints[i].set(view.getMetroCode());
+                                        row[i] = ints[i];
+                                        break;
+                                case AREA_CODE:
+                                        ints[i].set(view.getAreaCode());
+                                        row[i] = ints[i];
+                                        break;
+                                case TIME_ZONE:
+                                        row[i] = text(i, TimeZone.timeZoneByCountryAndRegion(view.getCountryCode(),
+                                                view.getRegion()));
+                                        break;
+                        }
+                }
+        }
+
+        /**
+         * Fill the struct from a Country or Region database, which only know
+         * the country and the region.
+         */
+        private void fillCountry(String countryCode, String countryName, String region) {
+                if (region != null && region.length() == 0) {
+                        region = null;
+                }
+                for (int i = 0; i < fields.length; i++) {
+                        switch (fields[i]) {
+                                case COUNTRY_CODE:
+                                        row[i] = text(i, countryCode);
+                                        break;
+                                case COUNTRY_NAME:
+                                        row[i] = text(i, countryName);
+                                        break;
+                                case REGION:
+                                        row[i] = text(i, region);
+                                        break;
+                                case REGION_NAME:
+                                        row[i] = text(i, RegionName.regionNameByCode(countryCode, region));
+                                        break;
+                                case TIME_ZONE:
+                                        row[i] = text(i, TimeZone.timeZoneByCountryAndRegion(countryCode, region));
+                                        break;
+                                default:
+                                        row[i] = null;
+                        }
+                }
+        }
+
+        private Text text(int i, String value) {
+                if (value == null) {
+                        return null;
+                }
+                texts[i].set(value);
+                return texts[i];
+        }
+
+        private Text text(int i, byte[] utf8) {
+                if (utf8 == null) {
+                        return null;
+                }
+                texts[i].set(utf8);
+                return texts[i];
+        }
+
+        /**
+         * Get the database with the given file name, acquiring it the first
+         * time.
+         *
+         * @param databaseName The database file name.
+         * @return The database.
+         * @throws HiveException Thrown when the database can not be loaded.
+         */
+        private GeoIPDatabase getDatabase(String databaseName) throws HiveException {
+                GeoIPDatabase database = databases.get(databaseName);
+                if (database == null) {
+                        database = GeoIPDatabase.acquire(databaseName);
+                        databases.put(databaseName, database);
+                }
+                return database;
+        }
+
+        /**
+         * Release the databases used by this instance. This is the close
+         * hook of later Hive versions; the GenericUDF of Hive 0.9 has none,
+         * so there the databases stay loaded until the JVM exits.
+         *
+         * @throws IOException Never thrown.
+         */
+        public void close() throws IOException {
+                for (GeoIPDatabase database : databases.values()) {
+                        database.release();
+                }
+                databases.clear();
+                database = null;
+        }
+
+        /**
+         * Get the String to be displayed in explain.
+         *
+         * @return The display string.
+         */
+        @Override
+        public String getDisplayString(String[] children) {
+                StringBuilder sb = new StringBuilder("_FUNC_( ");
+                for (int i = 0; i < children.length; i++) {
+                        if (i > 0) {
+                                sb.append(", ");
+                        }
+                        sb.append(children[i]);
+                }
+                return sb.append(" )").toString();
+        }
+
+        /**
+         * The fields of the struct, named like the field list entries.
+         */
+        private enum Field {
+
+                COUNTRY_CODE, COUNTRY_NAME, REGION, REGION_NAME, CITY, POSTAL_CODE, LATITUDE, LONGITUDE,
+                METRO_CODE, AREA_CODE, TIME_ZONE
+        }
+}
@@ -57,6 +57,7 @@ extended = "Example:\n"
 public class IPToLong extends GenericUDF {
 
         private ObjectInspectorConverters.Converter converter;
+        private final LongWritable result = new LongWritable();
 
         /**
          * Initialize this UDF.
@@ -107,7 +108,8 @@ public class IPToLong extends GenericUDF {
                         return null;
                 }
                 Text t = (Text) converter.convert(arguments[0].get());
-                return new LongWritable(InetAddrHelper.IPToLong(t.toString()));
+                result.set(InetAddrHelper.IPToLong(t.toString()));
+                return result;
         }
 
         /**
@@ -57,6 +57,7 @@ extended = "Example:\n"
 public class LongToIP extends GenericUDF {
 
         private ObjectInspectorConverters.Converter converter;
+        private final Text result = new Text();
 
         /**
          * Initialize this UDF.
@@ -108,8 +109,8 @@ public class LongToIP extends GenericUDF {
                 }
                 LongWritable iplong = (LongWritable) converter.convert(arguments[0].get());
                 long ip = iplong.get();
-                Text t = new Text(InetAddrHelper.longToIP(ip));
-                return t;
+                result.set(InetAddrHelper.longToIP(ip));
+                return result;
         }
 
         /**
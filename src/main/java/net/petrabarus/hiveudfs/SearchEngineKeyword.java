@@ -37,6 +37,7 @@ extended = "Example:\n"
 public class SearchEngineKeyword extends GenericUDF {
 
         private ObjectInspectorConverters.Converter converter;
+        private final Text result = new Text();
 
         /**
          * Initialize this UDF.
@@ -91,7 +92,8 @@ public class SearchEngineKeyword extends GenericUDF {
                 if (!kp.hasKeyword) {
                         return null;
                 } else {
-                        return new Text(kp.getKeyword());
+                        result.set(kp.getKeyword());
+                        return result;
                 }
         }
 
@@ -22,6 +22,7 @@ import org.apache.hadoop.io.Text;
 public class UCWords extends GenericUDF {
 
         private ObjectInspectorConverters.Converter converter;
+        private final Text result = new Text();
 
         /**
          * Initialize this UDF.
@@ -72,7 +73,8 @@ public class UCWords extends GenericUDF {
                         return null;
                 }
                 String str = ((Text) converter.convert(arguments[0].get())).toString();
-                return new Text(WordUtils.capitalize(str));
+                result.set(WordUtils.capitalize(str));
+                return result;
         }
 
         /**
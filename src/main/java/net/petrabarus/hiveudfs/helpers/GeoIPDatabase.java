@@ -0,0 +1,123 @@
+package net.petrabarus.hiveudfs.helpers;
+
+import com.maxmind.geoip.DatabaseInfo;
+import com.maxmind.geoip.LookupService;
+import java.io.File;
+import java.io.IOException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
+/**
+ * This is a GeoIP database used by a UDF and the kind of records it holds.
+ *
+ * Databases are acquired from the LookupServiceRegistry, so all UDF
+ * instances in a JVM share one copy of each file. They are opened with
+ * GEOIP_CHECK_CACHE, so a file replaced while tasks run is reloaded in
+ * place. The kind is taken from the DatabaseInfo of the file when it is
+ * acquired.
+ *
+ * The file is memory-mapped (GEOIP_MMAP_CACHE), so it must only be updated
+ * by writing the new version to another file and renaming it over the old
+ * one. The mapping keeps the old file alive until the reload. A file that
+ * is truncated or rewritten in place changes under the mapping, and a
+ * lookup can then fail with an InternalError or crash the JVM with SIGBUS
+ * before any reload happens.
+ *
+ * @author Petra Barus <petra.barus@gmail.com>
+ */
+public class GeoIPDatabase {
+
+        public static final int COUNTRY = 1;
+        public static final int REGION = 2;
+        public static final int CITY = 3;
+        public static final int ORG = 4;
+        private static final int OPTIONS = LookupService.GEOIP_MMAP_CACHE | LookupService.GEOIP_CHECK_CACHE;
+        private static final int NETMASK_CACHE_SIZE = 8;
+        private final LookupService lookupService;
+        private final int kind;
+        private final boolean v6;
+
+        private GeoIPDatabase(LookupService lookupService) {
+                this.lookupService = lookupService;
+                int type = lookupService.getDatabaseInfo().getType();
+                switch (type) {
+                        case DatabaseInfo.COUNTRY_EDITION:
+                        case DatabaseInfo.COUNTRY_EDITION_V6:
+                        case DatabaseInfo.PROXY_EDITION:
+                        case DatabaseInfo.NETSPEED_EDITION:
+                                kind = COUNTRY;
+                                break;
+                        case DatabaseInfo.REGION_EDITION_REV0:
+                        case DatabaseInfo.REGION_EDITION_REV1:
+                                kind = REGION;
+                                break;
+                        case DatabaseInfo.CITY_EDITION_REV0:
+                        case DatabaseInfo.CITY_EDITION_REV1:
+                        case DatabaseInfo.CITY_EDITION_REV0_V6:
+                        case DatabaseInfo.CITY_EDITION_REV1_V6:
+                                kind = CITY;
+                                break;
+                        default:
+                                kind = ORG;
+                }
+                v6 = type == DatabaseInfo.COUNTRY_EDITION_V6
+                        || type == DatabaseInfo.ASNUM_EDITION_V6
+                        || type == DatabaseInfo.ISP_EDITION_V6
+                        || type == DatabaseInfo.ORG_EDITION_V6
+                        || type == DatabaseInfo.DOMAIN_EDITION_V6
+                        || type == DatabaseInfo.CITY_EDITION_REV1_V6
+                        || type == DatabaseInfo.CITY_EDITION_REV0_V6
+                        || type == DatabaseInfo.NETSPEED_EDITION_REV1_V6;
+        }
+
+        /**
+         * Acquires a database file. Every database acquired must be given
+         * back with release.
+         *
+         * @param databaseName the database file name.
+         * @return the database.
+         * @throws HiveException if the file does not exist or can not be
+         * loaded.
+         */
+        public static GeoIPDatabase acquire(String databaseName) throws HiveException {
+                File file = new File(databaseName);
+                if (!file.exists()) {
+                        throw new HiveException(databaseName + " does not exist");
+                }
+                try {
+                        return new GeoIPDatabase(LookupServiceRegistry.acquire(file, OPTIONS, NETMASK_CACHE_SIZE));
+                } catch (IOException ex) {
+                        throw new HiveException(ex);
+                }
+        }
+
+        /**
+         * Gives the database back to the registry. The UDFs do this from
+         * close, which Hive 0.9 never calls; see LookupServiceRegistry.
+         */
+        public void release() {
+                LookupServiceRegistry.release(lookupService);
+        }
+
+        public LookupService getLookupService() {
+                return lookupService;
+        }
+
+        /**
+         * Returns the kind of records in the database.
+         *
+         * @return COUNTRY, REGION, CITY or ORG.
+         */
+        public int getKind() {
+                return kind;
+        }
+
+        /**
+         * Tells whether the database is an IPv6 edition, which must be
+         * searched with the V6 lookups.
+         *
+         * @return true for an IPv6 edition.
+         */
+        public boolean isV6() {
+                return v6;
+        }
+}
@@ -0,0 +1,179 @@
+package net.petrabarus.hiveudfs.helpers;
+
+import com.maxmind.geoip.IPLiteral;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * This is an IP address argument of a UDF, read straight from the values of
+ * its ObjectInspector without converting them.
+ *
+ * The argument can be <ul> <li>a long between 0 and 2^32 - 1,</li> <li>an
+ * int, read as an unsigned IPv4 address,</li> <li>a string holding an IPv4
+ * or IPv6 literal, parsed from the bytes of the Text,</li> <li>a binary of 4
+ * or 16 bytes in network order.</li> </ul>
+ *
+ * Each value is set into the argument, which then holds the address both as
+ * 128 bits and, for IPv4 addresses and IPv4-mapped IPv6 addresses
+ * (::ffff:a.b.c.d), as a long. As 128 bits an IPv4 address is ::a.b.c.d,
+ * where the IPv6 editions of the GeoIP databases keep the IPv4 space, so
+ * an IPv4-mapped address is stored that way too. Nothing is allocated per
+ * value.
+ *
+ * @author Petra Barus <petra.barus@gmail.com>
+ */
+public class IPAddressArgument {
+
+        private static final long IPV4_MAPPED = 0xFFFF00000000L;
+        private final PrimitiveObjectInspector inspector;
+        private final long[] address = new long[2];
+        private boolean v4;
+
+        /**
+         * Creates an argument.
+         *
+         * @param inspector the ObjectInspector of the argument, which must be
+         * accepted by isSupported.
+         */
+        public IPAddressArgument(PrimitiveObjectInspector inspector) {
+                this.inspector = inspector;
+        }
+
+        /**
+         * Tells whether an argument can be read as an IP address.
+         *
+         * @param inspector the ObjectInspector of the argument.
+         * @return true for a long, int, string or binary argument.
+         */
+        public static boolean isSupported(ObjectInspector inspector) {
+                if (inspector.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                        return false;
+                }
+                switch (((PrimitiveObjectInspector) inspector).getPrimitiveCategory()) {
+                        case LONG:
+                        case INT:
+                        case STRING:
+                        case BINARY:
+                                return true;
+                        default:
+                                return false;
+                }
+        }
+
+        /**
+         * Reads the address from a value of the argument.
+         *
+         * @param value the value, as given by DeferredObject.get().
+         * @return false if the value is null or not a valid address.
+         */
+        public boolean set(Object value) {
+                if (value == null) {
+                        return false;
+                }
+                switch (inspector.getPrimitiveCategory()) {
+                        case LONG:
+                                return setV4(((LongObjectInspector) inspector).get(value));
+                        case INT:
+                                return setV4(((IntObjectInspector) inspector).get(value) & 0xFFFFFFFFL);
+                        case STRING:
+                                Text text = ((StringObjectInspector) inspector).getPrimitiveWritableObject(value);
+                                return text != null && setText(text.getBytes(), text.getLength());
+                        case BINARY:
+                                BytesWritable bytes = ((BinaryObjectInspector) inspector).getPrimitiveWritableObject(value);
+                                return bytes != null && setBytes(bytes.getBytes(), bytes.getLength());
+                        default:
+                                return false;
+                }
+        }
+
+        private boolean setV4(long ip) {
+                if ((ip & ~0xFFFFFFFFL) != 0) {
+                        return false;
+                }
+                address[0] = 0;
+                address[1] = ip;
+                v4 = true;
+                return true;
+        }
+
+        private boolean setV6() {
+                v4 = address[0] == 0 && (address[1] & ~0xFFFFFFFFL) == IPV4_MAPPED;
+                if (v4) {
+                        address[1] &= 0xFFFFFFFFL;
+                }
+                return true;
+        }
+
+        private boolean setText(byte[] b, int len) {
+                long ip = IPLiteral.parseIPv4(b, 0, len);
+                if (ip >= 0) {
+                        return setV4(ip);
+                }
+                return IPLiteral.parseIPv6(b, 0, len, address) && setV6();
+        }
+
+        private boolean setBytes(byte[] b, int len) {
+                if (len == 4) {
+                        return setV4(read(b, 0, 4));
+                }
+                if (len == 16) {
+                        address[0] = read(b, 0, 8);
+                        address[1] = read(b, 8, 8);
+                        return setV6();
+                }
+                return false;
+        }
+
+        private static long read(byte[] b, int off, int len) {
+                long value = 0;
+                for (int i = off; i < off + len; i++) {
+                        value = (value << 8) | (b[i] & 0xFF);
+                }
+                return value;
+        }
+
+        /**
+         * Tells whether the address is an IPv4 address, given as such or
+         * IPv4-mapped.
+         *
+         * @return true if getV4 holds the address.
+         */
+        public boolean isV4() {
+                return v4;
+        }
+
+        /**
+         * Returns the IPv4 address in long format. Only valid if isV4.
+         *
+         * @return the address, between 0 and 2^32 - 1.
+         */
+        public long getV4() {
+                return address[1] & 0xFFFFFFFFL;
+        }
+
+        /**
+         * Returns the first 64 bits of the address as IPv6. IPv4 addresses
+         * are ::a.b.c.d.
+         *
+         * @return the first 64 bits.
+         */
+        public long getHigh() {
+                return address[0];
+        }
+
+        /**
+         * Returns the last 64 bits of the address as IPv6. IPv4 addresses
+         * are ::a.b.c.d.
+         *
+         * @return the last 64 bits.
+         */
+        public long getLow() {
+                return address[1];
+        }
+}
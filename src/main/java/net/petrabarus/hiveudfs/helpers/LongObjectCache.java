@@ -0,0 +1,128 @@
+package net.petrabarus.hiveudfs.helpers;
+
+import java.util.Arrays;
+
+/**
+ * This is a bounded cache from long keys to objects.
+ *
+ * Keys are kept in a primitive array with linear probing, so neither a get
+ * nor a put boxes the key. When the cache holds its maximum number of
+ * entries the next put empties it, which keeps it cheap while the hot keys
+ * come back quickly. Values may not be null.
+ *
+ * A cache is meant for a single UDF instance and is not thread-safe.
+ *
+ * @author Petra Barus <petra.barus@gmail.com>
+ */
+public class LongObjectCache<V> {
+
+        /**
+         * The largest maximum number of entries, which takes about 100 MB
+         * for the table alone.
+         */
+        public static final int MAX_SIZE = 1 << 22;
+        private final long[] keys;
+        private final Object[] values;
+        private final int mask;
+        private final int maxSize;
+        private int size;
+        private long hits;
+        private long misses;
+
+        /**
+         * Creates a cache.
+         *
+         * @param maxSize the maximum number of entries, at least 1. Larger
+         * values than MAX_SIZE are lowered to it.
+         */
+        public LongObjectCache(int maxSize) {
+                if (maxSize < 1) {
+                        throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+                }
+                maxSize = Math.min(maxSize, MAX_SIZE);
+                //At most half of the slots are used, so probes stay short and
+                //always end at an empty slot.
+                int capacity = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+                keys = new long[capacity];
+                values = new Object[capacity];
+                mask = capacity - 1;
+                this.maxSize = maxSize;
+        }
+
+        private int slot(long key) {
+                long h = key * 0x9E3779B97F4A7C15L;
+                return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        /**
+         * Returns the value of a key, counting the hit or miss.
+         *
+         * @param key the key.
+         * @return the value, or null if the key is not cached.
+         */
+        @SuppressWarnings("unchecked")
+        public V get(long key) {
+                for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+                        if (keys[i] == key) {
+                                hits++;
+                                return (V) values[i];
+                        }
+                }
+                misses++;
+                return null;
+        }
+
+        /**
+         * Caches the value of a key.
+         *
+         * @param key the key.
+         * @param value the value, not null.
+         */
+        public void put(long key, V value) {
+                int i = slot(key);
+                while (values[i] != null) {
+                        if (keys[i] == key) {
+                                values[i] = value;
+                                return;
+                        }
+                        i = (i + 1) & mask;
+                }
+                if (size == maxSize) {
+                        clear();
+                        i = slot(key);
+                }
+                keys[i] = key;
+                values[i] = value;
+                size++;
+        }
+
+        /**
+         * Removes all entries. The hit and miss counts are kept.
+         */
+        public void clear() {
+                Arrays.fill(values, null);
+                size = 0;
+        }
+
+        public int size() {
+                return size;
+        }
+
+        public long getHits() {
+                return hits;
+        }
+
+        public long getMisses() {
+                return misses;
+        }
+
+        /**
+         * Returns the share of gets that were hits.
+         *
+         * @return the hit rate between 0 and 1, or 0 if there were no gets.
+         */
+        public double getHitRate() {
+                long total = hits + misses;
+                return total == 0 ? 0 : (double) hits / total;
+        }
+}
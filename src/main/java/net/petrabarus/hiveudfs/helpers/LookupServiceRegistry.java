@@ -0,0 +1,191 @@
+package net.petrabarus.hiveudfs.helpers;
+
+import com.maxmind.geoip.LookupService;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * This is a JVM-wide registry of opened GeoIP databases.
+ *
+ * Databases are keyed by canonical path, length, modification time and
+ * options, so two files with the same name never share a LookupService,
+ * and a file replaced at the same path is loaded again for the users that
+ * acquire it afterwards. The users of the old file keep it; opened with
+ * GEOIP_CHECK_CACHE it reloads the new file in place as well. When several
+ * threads ask for a database that is not loaded yet, one of them loads it
+ * and the others wait for it.
+ *
+ * Every acquire should be paired with a release. A database is closed and
+ * dropped from the registry when its last user releases it. The
+ * GenericUDF of Hive 0.9 has no close hook, so the UDFs never release what
+ * they acquire there, and a database stays loaded until the JVM exits,
+ * one LookupService for every version of the file the JVM has seen.
+ *
+ * @author Petra Barus <petra.barus@gmail.com>
+ */
+public class LookupServiceRegistry {
+
+        private static final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+        private static final ConcurrentHashMap<LookupService, Entry> owners = new ConcurrentHashMap<LookupService, Entry>();
+
+        /**
+         * Returns the LookupService for a database file, loading it if no
+         * other user holds it.
+         *
+         * @param file the database file.
+         * @param options the LookupService options.
+         * @param netmaskCacheSize the size of the netmask cache, 0 for none.
+         * @return the LookupService, to be given back with release.
+         * @throws IOException if the database could not be loaded.
+         */
+        public static LookupService acquire(final File file, final int options, final int netmaskCacheSize)
+                throws IOException {
+                Key key = new Key(file.getCanonicalPath(), file.length(), file.lastModified(), options,
+                        netmaskCacheSize);
+                while (true) {
+                        Entry entry = entries.get(key);
+                        boolean loader = false;
+                        if (entry == null) {
+                                Entry created = new Entry(key, new Callable<LookupService>() {
+                                        public LookupService call() throws IOException {
+                                                LookupService lookupService = new LookupService(file, options);
+                                                if (netmaskCacheSize > 0) {
+                                                        lookupService.setNetmaskCache(netmaskCacheSize);
+                                                }
+                                                return lookupService;
+                                        }
+                                });
+                                entry = entries.putIfAbsent(key, created);
+                                if (entry == null) {
+                                        entry = created;
+                                        loader = true;
+                                }
+                        }
+                        if (!entry.retain()) {
+                                //The last user is releasing it. Drop it here,
+                                //so the next try loads the database again.
+                                entries.remove(key, entry);
+                                continue;
+                        }
+                        if (loader) {
+                                entry.task.run();
+                        }
+                        try {
+                                LookupService lookupService = entry.task.get();
+                                owners.putIfAbsent(lookupService, entry);
+                                return lookupService;
+                        } catch (ExecutionException ex) {
+                                entries.remove(key, entry);
+                                entry.unref();
+                                Throwable cause = ex.getCause();
+                                if (cause instanceof IOException) {
+                                        throw (IOException) cause;
+                                }
+                                throw new IOException("Could not load " + file, cause);
+                        } catch (InterruptedException ex) {
+                                if (entry.unref()) {
+                                        entries.remove(key, entry);
+                                }
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Interrupted while loading " + file);
+                        }
+                }
+        }
+
+        /**
+         * Gives back a LookupService returned by acquire. The last release
+         * closes it.
+         *
+         * @param lookupService the LookupService.
+         */
+        public static void release(LookupService lookupService) {
+                Entry entry = owners.get(lookupService);
+                if (entry == null || !entry.unref()) {
+                        return;
+                }
+                entries.remove(entry.key, entry);
+                owners.remove(lookupService, entry);
+                lookupService.close();
+        }
+
+        /**
+         * A loaded or loading database and the number of its users.
+         */
+        private static final class Entry {
+
+                final Key key;
+                final FutureTask<LookupService> task;
+                private int refs;
+                private boolean released;
+
+                Entry(Key key, Callable<LookupService> loader) {
+                        this.key = key;
+                        this.task = new FutureTask<LookupService>(loader);
+                }
+
+                synchronized boolean retain() {
+                        if (released) {
+                                return false;
+                        }
+                        refs++;
+                        return true;
+                }
+
+                /**
+                 * Drops a user.
+                 *
+                 * @return true if it was the last one.
+                 */
+                synchronized boolean unref() {
+                        if (--refs == 0) {
+                                released = true;
+                                return true;
+                        }
+                        return false;
+                }
+        }
+
+        /**
+         * Identifies a version of a database file opened with given options.
+         */
+        private static final class Key {
+
+                final String path;
+                final long length;
+                final long lastModified;
+                final int options;
+                final int netmaskCacheSize;
+
+                Key(String path, long length, long lastModified, int options, int netmaskCacheSize) {
+                        this.path = path;
+                        this.length = length;
+                        this.lastModified = lastModified;
+                        this.options = options;
+                        this.netmaskCacheSize = netmaskCacheSize;
+                }
+
+                @Override
+                public boolean equals(Object o) {
+                        if (!(o instanceof Key)) {
+                                return false;
+                        }
+                        Key k = (Key) o;
+                        return path.equals(k.path) && length == k.length && lastModified == k.lastModified
+                                && options == k.options && netmaskCacheSize == k.netmaskCacheSize;
+                }
+
+                @Override
+                public int hashCode() {
+                        int h = path.hashCode();
+                        h = 31 * h + (int) (length ^ (length >>> 32));
+                        h = 31 * h + (int) (lastModified ^ (lastModified >>> 32));
+                        h = 31 * h + options;
+                        return 31 * h + netmaskCacheSize;
+                }
+        }
+}
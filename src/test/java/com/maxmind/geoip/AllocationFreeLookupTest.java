@@ -0,0 +1,165 @@
+/**
+ * AllocationFreeLookupTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks getLocation(long, Location): it fills the caller's Location with
+ * the same fields as getLocation(long), allocates nothing when the records
+ * come from GEOIP_STRING_DICT, and allocates only on record cache misses
+ * otherwise.
+ */
+public class AllocationFreeLookupTest extends TestCase {
+
+    private static final int ADDRESSES = 4096;
+    private static final int LOOKUPS = 200000;
+    /**
+     * A decoded Location and its strings, with room to spare.
+     */
+    private static final int MAX_BYTES_PER_MISS = 512;
+
+    public void testSameFieldsAsGetLocation() throws Exception {
+        File file = TestDatabases.create(TestDatabases.CITY, 21);
+        int[] options = {LookupService.GEOIP_STANDARD, LookupService.GEOIP_MEMORY_CACHE,
+            LookupService.GEOIP_MMAP_CACHE, LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRING_DICT};
+        for (int o : options) {
+            LookupService lookupService = new LookupService(file, o);
+            lookupService.setRecordCache(256, LookupService.RECORD_CACHE_DIRECT);
+            Location location = new Location();
+            Random random = new Random(o);
+            for (int i = 0; i < 20000; i++) {
+                long ipnum = random.nextInt() & 0xFFFFFFFFL;
+                Location expected = lookupService.getLocation(ipnum);
+                String before = describe(location);
+                boolean found = lookupService.getLocation(ipnum, location);
+                assertEquals(expected != null, found);
+                if (found) {
+                    assertEquals("options " + o + " at " + ipnum, describe(expected), describe(location));
+                } else {
+                    assertEquals("untouched when not found", before, describe(location));
+                }
+            }
+            lookupService.close();
+        }
+    }
+
+    public void testNoAllocationWithDictionary() throws Exception {
+        Method allocated = allocatedBytes();
+        if (allocated == null) {
+            return;
+        }
+        LookupService lookupService = new LookupService(TestDatabases.create(TestDatabases.CITY, 22),
+                LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRING_DICT);
+        long[] ipnums = addresses();
+        Location location = new Location();
+        for (int round = 0; round < 5; round++) {
+            long before = allocated(allocated);
+            lookups(lookupService, ipnums, location);
+            long bytes = allocated(allocated) - before;
+            // a Location per lookup would be megabytes; what is left is the
+            // boxing of the measurement itself
+            if (round > 0 && bytes < 1024) {
+                lookupService.close();
+                return;
+            }
+        }
+        lookupService.close();
+        fail("getLocation(long, Location) allocates with GEOIP_STRING_DICT");
+    }
+
+    public void testOnlyCacheMissesAllocate() throws Exception {
+        Method allocated = allocatedBytes();
+        if (allocated == null) {
+            return;
+        }
+        LookupService lookupService = new LookupService(TestDatabases.create(TestDatabases.CITY, 23),
+                LookupService.GEOIP_MEMORY_CACHE);
+        lookupService.setRecordCache(4096, LookupService.RECORD_CACHE_DIRECT);
+        long[] ipnums = addresses();
+        Location location = new Location();
+        for (int round = 0; round < 5; round++) {
+            long misses = lookupService.getRecordCacheMisses();
+            long before = allocated(allocated);
+            lookups(lookupService, ipnums, location);
+            long bytes = allocated(allocated) - before;
+            misses = lookupService.getRecordCacheMisses() - misses;
+            // records that share a slot of the direct-mapped cache keep
+            // replacing each other; each such miss decodes one record, and
+            // the hits allocate nothing
+            if (round > 0 && bytes < 1024 + misses * MAX_BYTES_PER_MISS) {
+                assertTrue(misses < LOOKUPS / 100);
+                lookupService.close();
+                return;
+            }
+        }
+        lookupService.close();
+        fail("getLocation(long, Location) allocates on record cache hits");
+    }
+
+    /**
+     * Returns com.sun.management.ThreadMXBean.getThreadAllocatedBytes, or
+     * null if this JVM does not count allocations.
+     */
+    private static Method allocatedBytes() throws Exception {
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            if (c.isInstance(ManagementFactory.getThreadMXBean())) {
+                return c.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (ClassNotFoundException e) {
+        }
+        return null;
+    }
+
+    private static long allocated(Method allocatedBytes) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return (Long) allocatedBytes.invoke(threads, Thread.currentThread().getId());
+    }
+
+    private static long[] addresses() {
+        long[] ipnums = new long[ADDRESSES];
+        Random random = new Random(ADDRESSES);
+        for (int i = 0; i < ipnums.length; i++) {
+            ipnums[i] = random.nextInt() & 0xFFFFFFFFL;
+        }
+        return ipnums;
+    }
+
+    private static void lookups(LookupService lookupService, long[] ipnums, Location location) {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (lookupService.getLocation(ipnums[i & (ADDRESSES - 1)], location)) {
+                found++;
+            }
+        }
+        assertTrue(found > 0);
+    }
+
+    private static String describe(Location l) {
+        StringBuilder b = new StringBuilder();
+        TestDatabases.append(b, l);
+        return b.toString();
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * BatchLookupTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks that getLocations answers every address of a batch like
+ * getLocation, with the interleaved walks of the decoded trie and with the
+ * other storage modes and indexes.
+ */
+public class BatchLookupTest extends TestCase {
+
+    private static final int ADDRESSES = 5000;
+    private static final int[] OPTIONS = {
+        LookupService.GEOIP_STANDARD,
+        LookupService.GEOIP_MEMORY_CACHE,
+        LookupService.GEOIP_MMAP_CACHE,
+        LookupService.GEOIP_INDEX_CACHE,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DECODE_INDEX,
+        LookupService.GEOIP_STANDARD | LookupService.GEOIP_DECODE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DECODE_INDEX | LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_RANGE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRING_DICT,
+        LookupService.GEOIP_HYBRID_CACHE | LookupService.GEOIP_DECODE_INDEX
+    };
+
+    private File file;
+    private LookupService expected;
+
+    protected void setUp() throws Exception {
+        file = TestDatabases.create(TestDatabases.CITY, 91);
+        expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+    }
+
+    protected void tearDown() {
+        expected.close();
+    }
+
+    public void testRandomAddresses() throws Exception {
+        Random random = new Random(ADDRESSES);
+        long[] ipnums = new long[ADDRESSES];
+        for (int i = 0; i < ipnums.length; i++) {
+            ipnums[i] = random.nextInt() & 0xFFFFFFFFL;
+        }
+        ipnums[0] = 0;
+        ipnums[1] = 0xFFFFFFFFL;
+        check(ipnums);
+    }
+
+    /**
+     * Addresses close to each other, so many of them share a network
+     * block, with duplicates and in no particular order.
+     */
+    public void testClusteredAddresses() throws Exception {
+        Random random = new Random(ADDRESSES);
+        long[] ipnums = new long[ADDRESSES];
+        long base = 0;
+        for (int i = 0; i < ipnums.length; i++) {
+            if (i % 50 == 0) {
+                base = random.nextInt() & 0xFFFF0000L;
+            }
+            ipnums[i] = base + random.nextInt(1 << 16);
+        }
+        for (int i = 0; i < ipnums.length; i += 7) {
+            ipnums[i] = ipnums[random.nextInt(ipnums.length)];
+        }
+        check(ipnums);
+    }
+
+    /**
+     * Batches shorter than, equal to and just longer than the number of
+     * interleaved walks, and an empty batch.
+     */
+    public void testSmallBatches() throws Exception {
+        Random random = new Random(ADDRESSES);
+        for (int length = 0; length <= 9; length++) {
+            long[] ipnums = new long[length];
+            for (int i = 0; i < length; i++) {
+                ipnums[i] = random.nextInt() & 0xFFFFFFFFL;
+            }
+            check(ipnums);
+        }
+    }
+
+    /**
+     * An address that is not a valid IPv4 address is looked up on its
+     * own, like getLocation does.
+     */
+    public void testAddressOutOfRange() throws Exception {
+        check(new long[]{0x01020304L, 1L << 32, -1L, 0x01020305L});
+    }
+
+    public void testSharedLocations() throws Exception {
+        LookupService actual = new LookupService(file, LookupService.GEOIP_MEMORY_CACHE);
+        Random random = new Random(ADDRESSES);
+        long ipnum;
+        do {
+            ipnum = random.nextInt() & 0xFFFFFFFFL;
+        } while (expected.getLocation(ipnum) == null);
+        Location[] locations = new Location[3];
+        actual.getLocations(new long[]{ipnum, 0, ipnum}, locations);
+        assertSame(locations[0], locations[2]);
+        actual.close();
+    }
+
+    public void testLocationsTooShort() throws Exception {
+        LookupService actual = new LookupService(file, LookupService.GEOIP_STANDARD);
+        try {
+            actual.getLocations(new long[2], new Location[1]);
+            fail("a short locations array was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        actual.close();
+    }
+
+    private void check(long[] ipnums) throws Exception {
+        String[] e = new String[ipnums.length];
+        int found = 0;
+        for (int i = 0; i < ipnums.length; i++) {
+            Location l = expected.getLocation(ipnums[i]);
+            e[i] = describe(l);
+            if (l != null) {
+                found++;
+            }
+        }
+        for (int options : OPTIONS) {
+            LookupService actual = new LookupService(file, options);
+            long[] copy = ipnums.clone();
+            Location[] locations = new Location[ipnums.length + 1];
+            assertEquals("options " + options, found, actual.getLocations(copy, locations));
+            for (int i = 0; i < ipnums.length; i++) {
+                assertEquals("options " + options + " at " + ipnums[i], e[i], describe(locations[i]));
+            }
+            assertNull(locations[ipnums.length]);
+            // the addresses are sorted in a copy
+            assertTrue(Arrays.equals(ipnums, copy));
+            actual.close();
+        }
+    }
+
+    private static String describe(Location l) {
+        StringBuilder b = new StringBuilder();
+        TestDatabases.append(b, l);
+        return b.toString();
+    }
+}
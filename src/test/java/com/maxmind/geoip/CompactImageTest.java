@@ -0,0 +1,91 @@
+/**
+ * CompactImageTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Converts City, Country and Org databases to compact images and checks
+ * that the images answer every lookup like the .dat files they came from.
+ */
+public class CompactImageTest extends TestCase {
+
+    private static final int ADDRESSES = 20000;
+    private static final int[] OPTIONS = {
+        LookupService.GEOIP_STANDARD,
+        LookupService.GEOIP_MEMORY_CACHE,
+        LookupService.GEOIP_MMAP_CACHE
+    };
+
+    public void testCity() throws Exception {
+        check(TestDatabases.create(TestDatabases.CITY, 31));
+    }
+
+    public void testCountry() throws Exception {
+        check(TestDatabases.create(TestDatabases.COUNTRY, 32));
+    }
+
+    public void testOrg() throws Exception {
+        check(TestDatabases.create(TestDatabases.ORG, 33));
+    }
+
+    public void testIPv6EditionIsRejected() throws Exception {
+        File dat = TestDatabases.create(TestDatabases.COUNTRY_V6, 34);
+        File image = imageFile();
+        try {
+            CompactImageConverter.convert(dat, image);
+            fail("an IPv6 edition was converted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void check(File dat) throws Exception {
+        File image = imageFile();
+        CompactImageConverter.convert(dat, image);
+        assertEquals(0, CompactImageConverter.verify(dat, image, ADDRESSES));
+
+        LookupService expected = new LookupService(dat, LookupService.GEOIP_STANDARD);
+        for (int options : OPTIONS) {
+            LookupService actual = new LookupService(image, options);
+            assertNotNull(actual.current().compact);
+            // the lookups only read the mapping, so the file is not kept open
+            assertNull(actual.current().file);
+            assertEquals(expected.getDatabaseInfo().getType(), actual.getDatabaseInfo().getType());
+            Random random = new Random(ADDRESSES);
+            for (int i = 0; i < ADDRESSES; i++) {
+                long ipnum = i == 0 ? 0 : i == 1 ? 0xFFFFFFFFL : random.nextInt() & 0xFFFFFFFFL;
+                String e = TestDatabases.describe(expected, ipnum) + "/" + expected.last_netmask();
+                String a = TestDatabases.describe(actual, ipnum) + "/" + actual.last_netmask();
+                assertEquals("options " + options + " at " + ipnum, e, a);
+            }
+            actual.close();
+        }
+        expected.close();
+    }
+
+    private static File imageFile() throws IOException {
+        File image = File.createTempFile("geoip-test-", ".img");
+        image.deleteOnExit();
+        return image;
+    }
+}
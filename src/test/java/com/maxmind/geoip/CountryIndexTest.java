@@ -0,0 +1,160 @@
+/**
+ * CountryIndexTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks that GEOIP_COUNTRY_INDEX answers getCountry and getID like the
+ * trie walk, at random addresses and at the edges of the country ranges and
+ * of the first-level prefixes.
+ */
+public class CountryIndexTest extends TestCase {
+
+    private static final int ADDRESSES = 5000;
+    private static final int[] OPTIONS = {
+        LookupService.GEOIP_STANDARD,
+        LookupService.GEOIP_MEMORY_CACHE,
+        LookupService.GEOIP_MMAP_CACHE,
+        LookupService.GEOIP_INDEX_CACHE | LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_RANGE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_RANGE_INDEX | LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DECODE_INDEX
+    };
+
+    private File file;
+    private LookupService expected;
+
+    protected void setUp() throws Exception {
+        file = TestDatabases.create(TestDatabases.COUNTRY, 121);
+        expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+    }
+
+    protected void tearDown() {
+        expected.close();
+    }
+
+    public void testLookups() throws Exception {
+        for (int storage : OPTIONS) {
+            int options = storage | LookupService.GEOIP_COUNTRY_INDEX;
+            LookupService actual = new LookupService(file, options);
+            DatabaseImage img = actual.current();
+            assertNotNull(img.country_ids);
+            assertEquals((options & LookupService.GEOIP_STRIDE_INDEX) != 0, img.country_first != null);
+            for (long ipnum : addresses(img.country_starts)) {
+                String message = "options " + options + " at " + ipnum;
+                assertSame(message, expected.getCountry(ipnum), actual.getCountry(ipnum));
+                assertEquals(message, expected.getID(ipnum), actual.getID(ipnum));
+            }
+            actual.close();
+        }
+    }
+
+    /**
+     * The table has one range per run of a country: the starts increase
+     * and adjacent ranges have different countries.
+     */
+    public void testRangesAreMerged() throws Exception {
+        LookupService actual = new LookupService(file, LookupService.GEOIP_COUNTRY_INDEX);
+        DatabaseImage img = actual.current();
+        int[] starts = img.country_starts;
+        assertEquals(starts.length, img.country_ids.length);
+        assertEquals(Integer.MIN_VALUE, starts[0]);
+        for (int i = 1; i < starts.length; i++) {
+            assertTrue(starts[i - 1] < starts[i]);
+            assertTrue(img.country_ids[i - 1] != img.country_ids[i]);
+            // the range starts where the walk finds another country
+            long start = (starts[i] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+            assertTrue(expected.getID(start - 1) != expected.getID(start));
+        }
+        actual.close();
+    }
+
+    /**
+     * Only IPv4 Country editions get the table; the others are looked up
+     * as before.
+     */
+    public void testOtherEditions() throws Exception {
+        File v6 = TestDatabases.create(TestDatabases.COUNTRY_V6, 122);
+        LookupService lookupService = new LookupService(v6, LookupService.GEOIP_COUNTRY_INDEX);
+        assertNull(lookupService.current().country_ids);
+        lookupService.close();
+
+        File city = TestDatabases.create(TestDatabases.CITY, 123);
+        LookupService standard = new LookupService(city, LookupService.GEOIP_STANDARD);
+        lookupService = new LookupService(city, LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_COUNTRY_INDEX);
+        assertNull(lookupService.current().country_ids);
+        Random random = new Random(ADDRESSES);
+        for (int i = 0; i < 1000; i++) {
+            long ipnum = random.nextInt() & 0xFFFFFFFFL;
+            assertEquals(TestDatabases.describe(standard, ipnum), TestDatabases.describe(lookupService, ipnum));
+        }
+        lookupService.close();
+        standard.close();
+    }
+
+    public void testSharedCountries() throws Exception {
+        LookupService a = new LookupService(file, LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_COUNTRY_INDEX);
+        LookupService b = new LookupService(file, LookupService.GEOIP_MEMORY_CACHE);
+        Random random = new Random(ADDRESSES);
+        for (int i = 0; i < 1000; i++) {
+            long ipnum = random.nextInt() & 0xFFFFFFFFL;
+            Country c = a.getCountry(ipnum);
+            assertSame(c, a.getCountry(ipnum));
+            assertSame(c, b.getCountry(ipnum));
+            String literal = ((ipnum >> 24) & 0xFF) + "." + ((ipnum >> 16) & 0xFF) + "." + ((ipnum >> 8) & 0xFF)
+                    + "." + (ipnum & 0xFF);
+            assertSame(c, a.getCountry(literal));
+        }
+        a.close();
+        b.close();
+    }
+
+    /**
+     * Random addresses, the first and last address of every range and of
+     * every 2^16 prefix, and addresses that are not IPv4 addresses.
+     */
+    private static List<Long> addresses(int[] starts) {
+        List<Long> addresses = new ArrayList<Long>();
+        Random random = new Random(ADDRESSES);
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses.add(random.nextInt() & 0xFFFFFFFFL);
+        }
+        for (int start : starts) {
+            long ipnum = (start ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+            addresses.add(ipnum);
+            if (ipnum > 0) {
+                addresses.add(ipnum - 1);
+            }
+        }
+        for (long p = 0; p < 1 << 16; p += 1 + random.nextInt(16)) {
+            addresses.add(p << 16);
+            addresses.add((p << 16) + 0xFFFF);
+        }
+        addresses.add(0xFFFFFFFFL);
+        addresses.add(1L << 32);
+        addresses.add(-1L);
+        return addresses;
+    }
+}
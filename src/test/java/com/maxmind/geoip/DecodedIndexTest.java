@@ -0,0 +1,100 @@
+/**
+ * DecodedIndexTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks that GEOIP_DECODE_INDEX answers every lookup, netmask included,
+ * exactly like the byte-by-byte walk of the trie, on IPv4 and IPv6
+ * editions and with every storage mode.
+ */
+public class DecodedIndexTest extends TestCase {
+
+    private static final int ADDRESSES = 20000;
+    private static final int[] STORAGE = {
+        LookupService.GEOIP_STANDARD,
+        LookupService.GEOIP_MEMORY_CACHE,
+        LookupService.GEOIP_INDEX_CACHE,
+        LookupService.GEOIP_MMAP_CACHE,
+        LookupService.GEOIP_HYBRID_CACHE
+    };
+
+    public void testCity() throws Exception {
+        checkV4(TestDatabases.create(TestDatabases.CITY, 11));
+    }
+
+    public void testCountry() throws Exception {
+        checkV4(TestDatabases.create(TestDatabases.COUNTRY, 12));
+    }
+
+    public void testOrg() throws Exception {
+        checkV4(TestDatabases.create(TestDatabases.ORG, 13));
+    }
+
+    public void testCityV6() throws Exception {
+        checkV6(TestDatabases.create(TestDatabases.CITY_V6, 14));
+    }
+
+    public void testCountryV6() throws Exception {
+        checkV6(TestDatabases.create(TestDatabases.COUNTRY_V6, 15));
+    }
+
+    public void testOrgV6() throws Exception {
+        checkV6(TestDatabases.create(TestDatabases.ORG_V6, 16));
+    }
+
+    private void checkV4(File file) throws Exception {
+        LookupService expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+        for (int storage : STORAGE) {
+            LookupService actual = new LookupService(file, storage | LookupService.GEOIP_DECODE_INDEX);
+            assertNotNull(actual.current().index_nodes);
+            Random random = new Random(ADDRESSES);
+            for (int i = 0; i < ADDRESSES; i++) {
+                long ipnum = i == 0 ? 0 : i == 1 ? 0xFFFFFFFFL : random.nextInt() & 0xFFFFFFFFL;
+                String e = TestDatabases.describe(expected, ipnum) + "/" + expected.last_netmask();
+                String a = TestDatabases.describe(actual, ipnum) + "/" + actual.last_netmask();
+                assertEquals("options " + storage + " at " + ipnum, e, a);
+            }
+            actual.close();
+        }
+        expected.close();
+    }
+
+    private void checkV6(File file) throws Exception {
+        LookupService expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+        for (int storage : STORAGE) {
+            LookupService actual = new LookupService(file, storage | LookupService.GEOIP_DECODE_INDEX);
+            assertNotNull(actual.current().index_nodes);
+            Random random = new Random(ADDRESSES);
+            for (int i = 0; i < ADDRESSES; i++) {
+                // a third of the addresses are in ::/96, where the networks are dense
+                long high = i % 3 == 0 ? 0 : random.nextLong();
+                long low = i % 3 == 0 ? random.nextInt() & 0xFFFFFFFFL : random.nextLong();
+                String e = TestDatabases.describeV6(expected, high, low) + "/" + expected.last_netmask();
+                String a = TestDatabases.describeV6(actual, high, low) + "/" + actual.last_netmask();
+                assertEquals("options " + storage + " at " + high + ":" + low, e, a);
+            }
+            actual.close();
+        }
+        expected.close();
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * HybridCacheTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks that GEOIP_HYBRID_CACHE answers like GEOIP_STANDARD with each of
+ * the index options, including after the stride index is rebuilt with
+ * setStrideBits.
+ */
+public class HybridCacheTest extends TestCase {
+
+    private static final int ADDRESSES = 10000;
+    private static final int[] INDEXES = {
+        0,
+        LookupService.GEOIP_DECODE_INDEX,
+        LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_DECODE_INDEX | LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_RANGE_INDEX,
+        LookupService.GEOIP_COUNTRY_INDEX,
+        LookupService.GEOIP_COUNTRY_INDEX | LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_STRING_DICT,
+        LookupService.GEOIP_DECODE_INDEX | LookupService.GEOIP_STRING_DICT
+    };
+
+    public void testCity() throws Exception {
+        checkV4(TestDatabases.create(TestDatabases.CITY, 41));
+    }
+
+    public void testCountry() throws Exception {
+        checkV4(TestDatabases.create(TestDatabases.COUNTRY, 42));
+    }
+
+    public void testOrg() throws Exception {
+        checkV4(TestDatabases.create(TestDatabases.ORG, 43));
+    }
+
+    public void testCityV6() throws Exception {
+        checkV6(TestDatabases.create(TestDatabases.CITY_V6, 44));
+    }
+
+    public void testCountryV6() throws Exception {
+        checkV6(TestDatabases.create(TestDatabases.COUNTRY_V6, 45));
+    }
+
+    private void checkV4(File file) throws Exception {
+        LookupService expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+        for (int index : INDEXES) {
+            int options = LookupService.GEOIP_HYBRID_CACHE | index;
+            LookupService actual = new LookupService(file, options);
+            compareV4(expected, actual, options);
+            actual.setStrideBits(8);
+            compareV4(expected, actual, options);
+            actual.close();
+        }
+        expected.close();
+    }
+
+    private void compareV4(LookupService expected, LookupService actual, int options) {
+        // the country index merges ranges and leaves last_netmask alone
+        boolean netmask = (options & LookupService.GEOIP_COUNTRY_INDEX) == 0;
+        Random random = new Random(ADDRESSES);
+        for (int i = 0; i < ADDRESSES; i++) {
+            long ipnum = i == 0 ? 0 : i == 1 ? 0xFFFFFFFFL : random.nextInt() & 0xFFFFFFFFL;
+            String e = TestDatabases.describe(expected, ipnum);
+            String a = TestDatabases.describe(actual, ipnum);
+            if (netmask) {
+                e += "/" + expected.last_netmask();
+                a += "/" + actual.last_netmask();
+            }
+            assertEquals("options " + options + " at " + ipnum, e, a);
+        }
+    }
+
+    private void checkV6(File file) throws Exception {
+        LookupService expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+        for (int index : INDEXES) {
+            int options = LookupService.GEOIP_HYBRID_CACHE | index;
+            LookupService actual = new LookupService(file, options);
+            Random random = new Random(ADDRESSES);
+            for (int i = 0; i < ADDRESSES; i++) {
+                long high = i % 3 == 0 ? 0 : random.nextLong();
+                long low = i % 3 == 0 ? random.nextInt() & 0xFFFFFFFFL : random.nextLong();
+                String e = TestDatabases.describeV6(expected, high, low) + "/" + expected.last_netmask();
+                String a = TestDatabases.describeV6(actual, high, low) + "/" + actual.last_netmask();
+                assertEquals("options " + options + " at " + high + ":" + low, e, a);
+            }
+            actual.close();
+        }
+        expected.close();
+    }
+}
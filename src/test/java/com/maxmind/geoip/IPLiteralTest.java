@@ -0,0 +1,205 @@
+/**
+ * IPLiteralTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.net.InetAddress;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks IPLiteral against the addresses the literals were written from
+ * and against InetAddress, for text given as a string and as bytes.
+ */
+public class IPLiteralTest extends TestCase {
+
+    private static final int ADDRESSES = 5000;
+
+    private static final String[] BAD_IPV4 = {
+        "", ".", "1", "1.2", "1.2.3", "1.2.3.4.5", "1.2.3.256", "256.1.1.1", "1.2.3.1000",
+        ".1.2.3.4", "1.2.3.4.", "1..2.3", "1.2.3.-4", "1.2.3.4 ", " 1.2.3.4", "a.b.c.d",
+        "1.2.3.0x4", "1.2.3.4/24", "::1", "1.2.3.4\u0000"
+    };
+
+    private static final String[] BAD_IPV6 = {
+        "", ":", ":::", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3", ":1:2:3:4:5:6:7:8",
+        "1:2:3:4:5:6:7:8:", "1:2:3:4:5:6:7:8::", "::1:2:3:4:5:6:7:8", "12345::", "g::",
+        "1:2:3:4:5:6:7:1.2.3.4", "::1.2.3", "::1.2.3.256", "::1.2.3.4:5", "1.2.3.4", "[::1]",
+        "fe80::1%eth0", "::1 ", " ::1", "1:::2", "::ffff:1.2.3.4.5"
+    };
+
+    public void testIPv4() throws Exception {
+        Random random = new Random(ADDRESSES);
+        for (int i = 0; i < ADDRESSES; i++) {
+            long ip = random.nextInt() & 0xFFFFFFFFL;
+            if (i == 0) {
+                ip = 0;
+            } else if (i == 1) {
+                ip = 0xFFFFFFFFL;
+            }
+            String literal = dottedQuad(ip);
+            assertEquals(literal, ip, IPLiteral.parseIPv4(literal));
+            assertEquals(literal, ip, parseIPv4Bytes(literal));
+            assertEquals(literal, ip, toLong(InetAddress.getByName(literal).getAddress()));
+        }
+    }
+
+    public void testIPv6() throws Exception {
+        Random random = new Random(ADDRESSES);
+        long[] address = new long[2];
+        for (int i = 0; i < ADDRESSES; i++) {
+            int[] groups = new int[8];
+            for (int g = 0; g < 8; g++) {
+                // many zero groups, so literals can be compressed
+                groups[g] = random.nextInt(3) == 0 ? 0 : random.nextInt(1 << (1 + random.nextInt(16)));
+            }
+            long high = 0, low = 0;
+            for (int g = 0; g < 4; g++) {
+                high = (high << 16) | groups[g];
+                low = (low << 16) | groups[g + 4];
+            }
+            String[] literals = {
+                format(groups, -1, 0, false, random),
+                format(groups, -1, 0, true, random),
+                format(groups, random.nextInt(8), 1 + random.nextInt(8), false, random),
+                format(groups, random.nextInt(8), 1 + random.nextInt(8), true, random)
+            };
+            for (String literal : literals) {
+                assertTrue(literal, IPLiteral.parseIPv6(literal, address));
+                assertEquals(literal, high, address[0]);
+                assertEquals(literal, low, address[1]);
+                assertTrue(literal, parseIPv6Bytes(literal, address));
+                assertEquals(literal, high, address[0]);
+                assertEquals(literal, low, address[1]);
+                byte[] b = InetAddress.getByName(literal).getAddress();
+                if (b.length == 16) {
+                    // InetAddress turns ::ffff:a.b.c.d into an IPv4 address
+                    assertEquals(literal, high, toLong(b, 0));
+                    assertEquals(literal, low, toLong(b, 8));
+                } else {
+                    assertEquals(literal, 0, high);
+                    assertEquals(literal, 0xFFFF00000000L, low & 0xFFFFFFFF00000000L);
+                }
+            }
+        }
+    }
+
+    public void testIPv6Examples() throws Exception {
+        assertIPv6("::", 0, 0);
+        assertIPv6("::1", 0, 1);
+        assertIPv6("1::", 0x0001000000000000L, 0);
+        assertIPv6("1:2:3:4:5:6:7::", 0x0001000200030004L, 0x0005000600070000L);
+        assertIPv6("::2:3:4:5:6:7:8", 0x0000000200030004L, 0x0005000600070008L);
+        assertIPv6("2001:DB8::aB:cD", 0x20010DB800000000L, 0x0000000000AB00CDL);
+        assertIPv6("::ffff:1.2.3.4", 0, 0xFFFF01020304L);
+        assertIPv6("::1.2.3.4", 0, 0x01020304L);
+        assertIPv6("1:2:3:4:5:6:255.255.255.255", 0x0001000200030004L, 0x00050006FFFFFFFFL);
+        assertIPv6("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff", -1L, -1L);
+    }
+
+    public void testRejected() throws Exception {
+        long[] address = new long[2];
+        for (String literal : BAD_IPV4) {
+            assertEquals("\"" + literal + "\"", -1, IPLiteral.parseIPv4(literal));
+            assertEquals("\"" + literal + "\"", -1, parseIPv4Bytes(literal));
+        }
+        for (String literal : BAD_IPV6) {
+            assertFalse("\"" + literal + "\"", IPLiteral.parseIPv6(literal, address));
+            assertFalse("\"" + literal + "\"", parseIPv6Bytes(literal, address));
+        }
+        assertEquals(-1, IPLiteral.parseIPv4(null));
+        assertFalse(IPLiteral.parseIPv6(null, address));
+    }
+
+    private static void assertIPv6(String literal, long high, long low) {
+        long[] address = new long[2];
+        assertTrue(literal, IPLiteral.parseIPv6(literal, address));
+        assertEquals(literal, high, address[0]);
+        assertEquals(literal, low, address[1]);
+    }
+
+    /**
+     * Parses the literal from the middle of a larger buffer, so the offset
+     * and length are used.
+     */
+    private static long parseIPv4Bytes(String literal) throws Exception {
+        byte[] b = ("1." + literal + ".1").getBytes("ISO-8859-1");
+        return IPLiteral.parseIPv4(b, 2, b.length - 4);
+    }
+
+    private static boolean parseIPv6Bytes(String literal, long[] address) throws Exception {
+        byte[] b = ("1:" + literal + ":1").getBytes("ISO-8859-1");
+        return IPLiteral.parseIPv6(b, 2, b.length - 4, address);
+    }
+
+    /**
+     * Writes the groups as a literal, with the zero groups from start on
+     * compressed to "::" if there are any, in upper case if asked, and
+     * sometimes with the last 32 bits as a dotted quad.
+     */
+    private static String format(int[] groups, int start, int length, boolean upper, Random random) {
+        int from = -1, to = -1;
+        if (start >= 0) {
+            int end = start;
+            while (end < 8 && end - start < length && groups[end] == 0) {
+                end++;
+            }
+            if (end > start) {
+                from = start;
+                to = end;
+            }
+        }
+        boolean quad = random.nextBoolean() && to <= 6;
+        int last = quad ? 6 : 8;
+        StringBuilder b = new StringBuilder();
+        for (int g = 0; g < last; g++) {
+            if (g == from) {
+                b.append("::");
+                g = to - 1;
+                continue;
+            }
+            if (b.length() > 0 && b.charAt(b.length() - 1) != ':') {
+                b.append(':');
+            }
+            b.append(Integer.toHexString(groups[g]));
+        }
+        if (quad) {
+            if (b.length() > 0 && b.charAt(b.length() - 1) != ':') {
+                b.append(':');
+            }
+            b.append(dottedQuad(((long) groups[6] << 16) | groups[7]));
+        }
+        return upper ? b.toString().toUpperCase() : b.toString();
+    }
+
+    private static String dottedQuad(long ip) {
+        return ((ip >> 24) & 0xFF) + "." + ((ip >> 16) & 0xFF) + "." + ((ip >> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    private static long toLong(byte[] b) {
+        return toLong(b, 0) >>> 32;
+    }
+
+    private static long toLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (off + i < b.length ? b[off + i] & 0xFF : 0);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * LookupBenchmark.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+/**
+ * Times lookups under several options. It is not a test and is run by
+ * hand from the test classpath:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes com.maxmind.geoip.LookupBenchmark [database]
+ * </pre>
+ *
+ * Without a database file a synthetic City database is used. Each case is
+ * warmed up, then timed over several rounds, and the fastest round is
+ * reported. Bytes allocated per lookup are counted where the JVM provides
+ * com.sun.management.ThreadMXBean.
+ */
+public class LookupBenchmark {
+
+    private static final int ADDRESSES = 1 << 16;
+    private static final int LOOKUPS = 1 << 22;
+    private static final int ROUNDS = 7;
+
+    private static final int[] TRIE_OPTIONS = {
+        LookupService.GEOIP_STANDARD,
+        LookupService.GEOIP_STANDARD | LookupService.GEOIP_DECODE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DECODE_INDEX,
+        LookupService.GEOIP_MMAP_CACHE,
+        LookupService.GEOIP_MMAP_CACHE | LookupService.GEOIP_DECODE_INDEX
+    };
+
+    /**
+     * The options, record cache size and record cache policy of the
+     * getLocation cases. The caches can hold every record of the synthetic
+     * database; the dictionary answers before the record cache.
+     */
+    private static final int[][] CACHES = {
+        {LookupService.GEOIP_MEMORY_CACHE, 0, LookupService.RECORD_CACHE_DIRECT},
+        {LookupService.GEOIP_MEMORY_CACHE, 1 << 14, LookupService.RECORD_CACHE_DIRECT},
+        {LookupService.GEOIP_MEMORY_CACHE, 1024, LookupService.RECORD_CACHE_LRU},
+        {LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRING_DICT, 0, LookupService.RECORD_CACHE_DIRECT}
+    };
+    private static final String[] CACHE_NAMES = {
+        "MEMORY", "MEMORY + direct record cache", "MEMORY + LRU record cache", "MEMORY|STRING_DICT"
+    };
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        File file = args.length > 0 ? new File(args[0]) : TestDatabases.create(TestDatabases.CITY, 1);
+        long[] ips = addresses();
+        System.out.println("Trie walk, getID, ns per lookup:");
+        for (int options : TRIE_OPTIONS) {
+            LookupService lookupService = new LookupService(file, options);
+            System.out.printf("  %-28s %8.1f%n", name(options), timeTrie(lookupService, ips, lookups(options)));
+            lookupService.close();
+        }
+
+        Method allocatedBytes = allocatedBytes();
+        System.out.println("getLocation, ns and bytes allocated per lookup:");
+        for (int c = 0; c < CACHES.length; c++) {
+            int options = CACHES[c][0];
+            LookupService lookupService = new LookupService(file, options);
+            lookupService.setRecordCache(CACHES[c][1], CACHES[c][2]);
+            for (int reuse = 0; reuse < 2; reuse++) {
+                double[] result = timeLocation(lookupService, ips, reuse == 1, allocatedBytes);
+                System.out.printf("  %-46s %8.1f %8.1f%n", CACHE_NAMES[c] + (reuse == 1 ? " (long, Location)" : " (long)"),
+                        result[0], result[1]);
+            }
+            lookupService.close();
+        }
+    }
+
+    private static long[] addresses() {
+        Random random = new Random(ADDRESSES);
+        long[] ips = new long[ADDRESSES];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = random.nextInt() & 0xFFFFFFFFL;
+        }
+        return ips;
+    }
+
+    /**
+     * Fewer lookups for reads from the file, which are much slower.
+     */
+    private static int lookups(int options) {
+        int inMemory = LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_MMAP_CACHE
+                | LookupService.GEOIP_DECODE_INDEX;
+        return (options & inMemory) != 0 ? LOOKUPS : LOOKUPS >> 6;
+    }
+
+    private static double timeTrie(LookupService lookupService, long[] ips, int lookups) {
+        double best = Double.MAX_VALUE;
+        for (int round = -2; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < lookups; i++) {
+                sum += lookupService.getID(ips[i & (ADDRESSES - 1)]);
+            }
+            long time = System.nanoTime() - start;
+            sink += sum;
+            if (round >= 0) {
+                best = Math.min(best, (double) time / lookups);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Times getLocation, returning a new Location or filling one.
+     *
+     * @return the ns and the bytes allocated per lookup, -1 if allocations
+     * are not counted.
+     */
+    private static double[] timeLocation(LookupService lookupService, long[] ips, boolean reuse,
+            Method allocatedBytes) throws Exception {
+        double bestTime = Double.MAX_VALUE;
+        double bestBytes = Double.MAX_VALUE;
+        Location location = new Location();
+        for (int round = -2; round < ROUNDS; round++) {
+            long bytes = allocated(allocatedBytes);
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                long ip = ips[i & (ADDRESSES - 1)];
+                if (reuse) {
+                    if (lookupService.getLocation(ip, location)) {
+                        sum += location.area_code;
+                    }
+                } else {
+                    Location l = lookupService.getLocation(ip);
+                    if (l != null) {
+                        sum += l.area_code;
+                    }
+                }
+            }
+            long time = System.nanoTime() - start;
+            bytes = allocated(allocatedBytes) - bytes;
+            sink += sum;
+            if (round >= 0) {
+                bestTime = Math.min(bestTime, (double) time / LOOKUPS);
+                bestBytes = Math.min(bestBytes, (double) bytes / LOOKUPS);
+            }
+        }
+        return new double[]{bestTime, allocatedBytes == null ? -1 : bestBytes};
+    }
+
+    /**
+     * Returns com.sun.management.ThreadMXBean.getThreadAllocatedBytes, or
+     * null if this JVM does not count allocations.
+     */
+    private static Method allocatedBytes() throws Exception {
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            if (c.isInstance(ManagementFactory.getThreadMXBean())) {
+                return c.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (ClassNotFoundException e) {
+        }
+        return null;
+    }
+
+    private static long allocated(Method allocatedBytes) throws Exception {
+        if (allocatedBytes == null) {
+            return 0;
+        }
+        return (Long) allocatedBytes.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+    }
+
+    private static String name(int options) {
+        StringBuilder b = new StringBuilder();
+        if ((options & LookupService.GEOIP_MEMORY_CACHE) != 0) {
+            b.append("MEMORY");
+        } else if ((options & LookupService.GEOIP_MMAP_CACHE) != 0) {
+            b.append("MMAP");
+        } else {
+            b.append("STANDARD");
+        }
+        if ((options & LookupService.GEOIP_DECODE_INDEX) != 0) {
+            b.append("|DECODE_INDEX");
+        }
+        if ((options & LookupService.GEOIP_STRING_DICT) != 0) {
+            b.append("|STRING_DICT");
+        }
+        return b.toString();
+    }
+}
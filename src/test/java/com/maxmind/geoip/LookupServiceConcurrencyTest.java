@@ -0,0 +1,106 @@
+/**
+ * LookupServiceConcurrencyTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/**
+ * Runs lookups on one LookupService from several threads at once and checks
+ * every result against the same lookup run on a single thread, one at a
+ * time, as the synchronized lookups did.
+ */
+public class LookupServiceConcurrencyTest extends TestCase {
+
+    private static final int THREADS = 8;
+    private static final int ADDRESSES = 20000;
+    private static final int[] OPTIONS = {
+        LookupService.GEOIP_STANDARD,
+        LookupService.GEOIP_MEMORY_CACHE,
+        LookupService.GEOIP_INDEX_CACHE,
+        LookupService.GEOIP_MMAP_CACHE,
+        LookupService.GEOIP_HYBRID_CACHE | LookupService.GEOIP_DECODE_INDEX | LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_RANGE_INDEX | LookupService.GEOIP_STRING_DICT
+    };
+
+    public void testCity() throws Exception {
+        check(TestDatabases.create(TestDatabases.CITY, 1));
+    }
+
+    public void testCountry() throws Exception {
+        check(TestDatabases.create(TestDatabases.COUNTRY, 2));
+    }
+
+    public void testOrg() throws Exception {
+        check(TestDatabases.create(TestDatabases.ORG, 3));
+    }
+
+    private void check(File file) throws Exception {
+        final long[] addresses = new long[ADDRESSES];
+        Random random = new Random(ADDRESSES);
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = random.nextInt() & 0xFFFFFFFFL;
+        }
+        for (int options : OPTIONS) {
+            final LookupService lookupService = new LookupService(file, options);
+            // the shared caches are exercised too
+            lookupService.setRecordCache(256, LookupService.RECORD_CACHE_DIRECT);
+            lookupService.setNetmaskCache(4);
+            final String[] expected = new String[addresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                expected[i] = TestDatabases.describe(lookupService, addresses[i]);
+            }
+            final AtomicInteger mismatches = new AtomicInteger();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread[] threads = new Thread[THREADS];
+            for (int t = 0; t < threads.length; t++) {
+                final int stride = 2 * t + 1;
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int k = 0; k < addresses.length; k++) {
+                                // every thread visits the addresses in its own order
+                                int i = (int) ((long) k * stride % addresses.length);
+                                if (!expected[i].equals(TestDatabases.describe(lookupService, addresses[i]))) {
+                                    mismatches.incrementAndGet();
+                                }
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            lookupService.close();
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertEquals("mismatches with options " + options, 0, mismatches.get());
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * LookupServiceReloadTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/**
+ * Replaces the database file under a GEOIP_CHECK_CACHE service while
+ * several threads run lookups, and checks that every lookup answers from
+ * either the old or the new database, never from a closed file.
+ */
+public class LookupServiceReloadTest extends TestCase {
+
+    private static final int THREADS = 4;
+    private static final int ADDRESSES = 2000;
+    private static final int SWAPS = 20;
+    private static final int[] OPTIONS = {
+        LookupService.GEOIP_STANDARD,
+        LookupService.GEOIP_INDEX_CACHE,
+        LookupService.GEOIP_MEMORY_CACHE,
+        LookupService.GEOIP_MMAP_CACHE
+    };
+
+    private File dir;
+    private File[] sources;
+    private long[] addresses;
+    private String[][] expected;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("geoip-reload-", "");
+        dir.delete();
+        dir.mkdir();
+        sources = new File[2];
+        expected = new String[2][ADDRESSES];
+        addresses = new long[ADDRESSES];
+        Random random = new Random(ADDRESSES);
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = random.nextInt() & 0xFFFFFFFFL;
+        }
+        for (int v = 0; v < 2; v++) {
+            sources[v] = new File(dir, "source" + v + ".dat");
+            TestDatabases.write(TestDatabases.CITY, 51 + v, sources[v]);
+            LookupService lookupService = new LookupService(sources[v], LookupService.GEOIP_MEMORY_CACHE);
+            for (int i = 0; i < addresses.length; i++) {
+                expected[v][i] = describe(lookupService, addresses[i]);
+            }
+            lookupService.close();
+        }
+    }
+
+    protected void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    public void testLookupsDuringReload() throws Exception {
+        for (int options : OPTIONS) {
+            File database = new File(dir, "GeoIPCity.dat");
+            replace(database, sources[0], 0);
+            final LookupService lookupService = new LookupService(database, options | LookupService.GEOIP_CHECK_CACHE);
+            lookupService.setCheckInterval(0);
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicInteger mismatches = new AtomicInteger();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread[] threads = new Thread[THREADS];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int k = 0; !done.get(); k = (k + 1) % addresses.length) {
+                                String a = describe(lookupService, addresses[k]);
+                                if (!a.equals(expected[0][k]) && !a.equals(expected[1][k])) {
+                                    mismatches.incrementAndGet();
+                                }
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (int swap = 1; swap <= SWAPS; swap++) {
+                replace(database, sources[swap % 2], swap);
+                Thread.sleep(20);
+            }
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertEquals("mismatches with options " + options, 0, mismatches.get());
+            awaitDatabase(lookupService, SWAPS % 2);
+            lookupService.close();
+        }
+    }
+
+    public void testFailedReloadKeepsDatabase() throws Exception {
+        for (int options : OPTIONS) {
+            File database = new File(dir, "GeoIPCity.dat");
+            replace(database, sources[0], 0);
+            LookupService lookupService = new LookupService(database, options | LookupService.GEOIP_CHECK_CACHE);
+            lookupService.setCheckInterval(0);
+
+            File broken = new File(dir, "broken.dat");
+            FileOutputStream os = new FileOutputStream(broken);
+            os.write(new byte[]{1});
+            os.close();
+            replace(database, broken, 1);
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < addresses.length; i++) {
+                    assertEquals("options " + options, expected[0][i], describe(lookupService, addresses[i]));
+                }
+                Thread.sleep(10);
+            }
+
+            // the load is tried again once the file is fixed
+            replace(database, sources[1], 2);
+            awaitDatabase(lookupService, 1);
+            lookupService.close();
+        }
+    }
+
+    public void testClose() throws Exception {
+        LookupService lookupService = new LookupService(sources[0], LookupService.GEOIP_STANDARD);
+        lookupService.close();
+        lookupService.close();
+        try {
+            lookupService.getLocation(addresses[0]);
+            fail("lookup on a closed database");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        lookupService = new LookupService(sources[0], LookupService.GEOIP_MEMORY_CACHE);
+        lookupService.close();
+        assertEquals(expected[0][0], describe(lookupService, addresses[0]));
+    }
+
+    /**
+     * Waits for the service to answer from one of the databases.
+     */
+    private void awaitDatabase(LookupService lookupService, int v) throws InterruptedException {
+        for (int wait = 0; wait < 500; wait++) {
+            boolean same = true;
+            for (int i = 0; i < addresses.length && same; i++) {
+                same = expected[v][i].equals(describe(lookupService, addresses[i]));
+            }
+            if (same) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("database " + v + " was not loaded");
+    }
+
+    /**
+     * Replaces the database the way an update does, by renaming a complete
+     * file over it, with a modification time that differs on every call.
+     */
+    private void replace(File database, File source, int version) throws IOException {
+        File tmp = new File(dir, "update.tmp");
+        FileInputStream is = new FileInputStream(source);
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            byte[] buf = new byte[8192];
+            for (int n; (n = is.read(buf)) > 0;) {
+                os.write(buf, 0, n);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+        tmp.setLastModified(1000000000000L + version * 1000L);
+        assertTrue(tmp.renameTo(database));
+    }
+
+    /**
+     * Describes a single lookup, so a reload cannot fall between two parts
+     * of the answer.
+     */
+    private static String describe(LookupService lookupService, long ipnum) {
+        StringBuilder b = new StringBuilder();
+        TestDatabases.append(b, lookupService.getLocation(ipnum));
+        return b.toString();
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * StringDictTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks that GEOIP_STRING_DICT answers the City and Org lookups, the
+ * record views included, like the records decoded from the database, and
+ * that equal strings are shared.
+ */
+public class StringDictTest extends TestCase {
+
+    private static final int ADDRESSES = 5000;
+    private static final int[] STORAGE = {
+        LookupService.GEOIP_STANDARD,
+        LookupService.GEOIP_MEMORY_CACHE,
+        LookupService.GEOIP_INDEX_CACHE,
+        LookupService.GEOIP_MMAP_CACHE,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DECODE_INDEX
+    };
+
+    public void testCity() throws Exception {
+        File file = TestDatabases.create(TestDatabases.CITY, 101);
+        LookupService expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+        for (int storage : STORAGE) {
+            int options = storage | LookupService.GEOIP_STRING_DICT;
+            LookupService actual = new LookupService(file, options);
+            assertNotNull(actual.current().dictionary);
+            assertTrue(actual.getStringDictionarySize() > 0);
+            assertTrue(actual.getStringDictionaryBytes() > 0);
+            RecordView e = new RecordView();
+            RecordView a = new RecordView();
+            Location into = new Location();
+            Map<String, String> cities = new HashMap<String, String>();
+            Map<String, byte[]> cityBytes = new HashMap<String, byte[]>();
+            Random random = new Random(ADDRESSES);
+            for (int i = 0; i < ADDRESSES; i++) {
+                long ipnum = random.nextInt() & 0xFFFFFFFFL;
+                String message = "options " + options + " at " + ipnum;
+                assertEquals(message, TestDatabases.describe(expected, ipnum), TestDatabases.describe(actual, ipnum));
+                boolean found = expected.getRecordView(ipnum, e);
+                assertEquals(message, found, actual.getRecordView(ipnum, a));
+                assertEquals(message, found, actual.getLocation(ipnum, into));
+                if (!found) {
+                    continue;
+                }
+                assertEquals(message, describe(e), describe(a));
+                assertEquals(message, location(expected.getLocation(ipnum)), location(into));
+
+                // equal strings are one instance, and so are their bytes
+                String city = actual.getLocation(ipnum).city;
+                if (city != null) {
+                    String first = cities.get(city);
+                    if (first == null) {
+                        cities.put(city, city);
+                        cityBytes.put(city, a.getCityUTF8());
+                    } else {
+                        assertSame(message, first, city);
+                        assertSame(message, cityBytes.get(city), a.getCityUTF8());
+                    }
+                }
+            }
+            actual.close();
+        }
+        expected.close();
+    }
+
+    public void testCityV6() throws Exception {
+        File file = TestDatabases.create(TestDatabases.CITY_V6, 102);
+        LookupService expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+        for (int storage : STORAGE) {
+            int options = storage | LookupService.GEOIP_STRING_DICT;
+            LookupService actual = new LookupService(file, options);
+            assertNotNull(actual.current().dictionary);
+            RecordView e = new RecordView();
+            RecordView a = new RecordView();
+            Random random = new Random(ADDRESSES);
+            for (int i = 0; i < ADDRESSES; i++) {
+                long high = i % 3 == 0 ? 0 : random.nextLong();
+                long low = i % 3 == 0 ? random.nextInt() & 0xFFFFFFFFL : random.nextLong();
+                String message = "options " + options + " at " + high + ":" + low;
+                assertEquals(message, TestDatabases.describeV6(expected, high, low),
+                        TestDatabases.describeV6(actual, high, low));
+                boolean found = expected.getRecordViewV6(high, low, e);
+                assertEquals(message, found, actual.getRecordViewV6(high, low, a));
+                if (found) {
+                    assertEquals(message, describe(e), describe(a));
+                }
+            }
+            actual.close();
+        }
+        expected.close();
+    }
+
+    public void testOrg() throws Exception {
+        checkOrg(TestDatabases.create(TestDatabases.ORG, 103), false);
+    }
+
+    public void testOrgV6() throws Exception {
+        checkOrg(TestDatabases.create(TestDatabases.ORG_V6, 104), true);
+    }
+
+    /**
+     * A Country database has no record strings, so the option is ignored.
+     */
+    public void testCountry() throws Exception {
+        File file = TestDatabases.create(TestDatabases.COUNTRY, 105);
+        LookupService expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+        LookupService actual = new LookupService(file, LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRING_DICT);
+        assertNull(actual.current().dictionary);
+        assertEquals(0, actual.getStringDictionarySize());
+        Random random = new Random(ADDRESSES);
+        for (int i = 0; i < ADDRESSES; i++) {
+            long ipnum = random.nextInt() & 0xFFFFFFFFL;
+            assertEquals(TestDatabases.describe(expected, ipnum), TestDatabases.describe(actual, ipnum));
+        }
+        actual.close();
+        expected.close();
+    }
+
+    private void checkOrg(File file, boolean v6) throws Exception {
+        LookupService expected = new LookupService(file, LookupService.GEOIP_STANDARD);
+        for (int storage : STORAGE) {
+            int options = storage | LookupService.GEOIP_STRING_DICT;
+            LookupService actual = new LookupService(file, options);
+            RecordDictionary dict = actual.current().dictionary;
+            assertNotNull(dict);
+            assertNull(dict.locations);
+            Random random = new Random(ADDRESSES);
+            for (int i = 0; i < ADDRESSES; i++) {
+                long high = v6 && i % 3 != 0 ? random.nextLong() : 0;
+                long low = v6 && i % 3 != 0 ? random.nextLong() : random.nextInt() & 0xFFFFFFFFL;
+                String message = "options " + options + " at " + high + ":" + low;
+                if (v6) {
+                    assertEquals(message, TestDatabases.describeV6(expected, high, low),
+                            TestDatabases.describeV6(actual, high, low));
+                } else {
+                    assertEquals(message, TestDatabases.describe(expected, low), TestDatabases.describe(actual, low));
+                    String org = actual.getOrg(low);
+                    if (org != null) {
+                        // the dictionary hands out its own instance
+                        assertSame(message, org, actual.getOrg(low));
+                    }
+                }
+            }
+            actual.close();
+        }
+        expected.close();
+    }
+
+    /**
+     * Describes every getter of a view, the UTF-8 ones decoded.
+     */
+    private static String describe(RecordView v) throws Exception {
+        return v.getCountryCode() + "|" + v.getCountryName() + "|" + v.getRegion() + "|" + v.getCity() + "|"
+                + v.getPostalCode() + "|" + utf8(v.getRegionUTF8()) + "|" + utf8(v.getCityUTF8()) + "|"
+                + utf8(v.getPostalCodeUTF8()) + "|" + v.getLatitude() + "|" + v.getLongitude() + "|"
+                + v.getMetroCode() + "|" + v.getDmaCode() + "|" + v.getAreaCode();
+    }
+
+    private static String utf8(byte[] b) throws Exception {
+        return b == null ? null : new String(b, "UTF-8");
+    }
+
+    private static String location(Location l) {
+        StringBuilder b = new StringBuilder();
+        TestDatabases.append(b, l);
+        return b.toString();
+    }
+}
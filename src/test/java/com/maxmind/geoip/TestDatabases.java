@@ -0,0 +1,289 @@
+/**
+ * TestDatabases.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes small synthetic databases in the legacy .dat format, so the tests
+ * do not depend on the MaxMind files.
+ *
+ * A database holds a few thousand random networks of random length. In the
+ * IPv6 editions part of them are in ::/96, where the IPv6 editions keep the
+ * IPv4 space. City records have random strings, including a non-ASCII
+ * character, and US records have metro and area codes.
+ */
+public final class TestDatabases {
+
+    public static final int COUNTRY = DatabaseInfo.COUNTRY_EDITION;
+    public static final int CITY = DatabaseInfo.CITY_EDITION_REV1;
+    public static final int ORG = DatabaseInfo.ORG_EDITION;
+    public static final int COUNTRY_V6 = DatabaseInfo.COUNTRY_EDITION_V6;
+    public static final int CITY_V6 = DatabaseInfo.CITY_EDITION_REV1_V6;
+    public static final int ORG_V6 = DatabaseInfo.ORG_EDITION_V6;
+    private static final int COUNTRY_BEGIN = 16776960;
+    private static final int NETWORKS = 3000;
+    private static final int RECORDS = 700;
+    private static final int US = 225;
+
+    private final Random random;
+    private final boolean v6;
+    private final int bits;
+    /**
+     * The children of each node: 0 for none, n > 0 for node n and -v - 1
+     * for value v.
+     */
+    private final List<int[]> nodes = new ArrayList<int[]>();
+
+    private TestDatabases(long seed, boolean v6) {
+        this.random = new Random(seed);
+        this.v6 = v6;
+        this.bits = v6 ? 128 : 32;
+        nodes.add(new int[2]);
+    }
+
+    /**
+     * Writes a database to a temporary file that is deleted when the JVM
+     * exits.
+     *
+     * @param type the edition, one of the constants of this class.
+     * @param seed the seed of the random content.
+     * @return the file.
+     * @throws IOException if the file could not be written.
+     */
+    public static File create(int type, long seed) throws IOException {
+        File file = File.createTempFile("geoip-test-" + type + "-", ".dat");
+        file.deleteOnExit();
+        write(type, seed, file);
+        return file;
+    }
+
+    /**
+     * Writes a database to a file.
+     *
+     * @param type the edition, one of the constants of this class.
+     * @param seed the seed of the random content.
+     * @param file the file to write.
+     * @throws IOException if the file could not be written.
+     */
+    public static void write(int type, long seed, File file) throws IOException {
+        boolean v6 = type == COUNTRY_V6 || type == CITY_V6 || type == ORG_V6;
+        byte[] data = new TestDatabases(seed, v6).build(type);
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    private byte[] build(int type) throws IOException {
+        boolean country = type == COUNTRY || type == COUNTRY_V6;
+        for (int i = 0; i < NETWORKS; i++) {
+            long high = random.nextLong();
+            long low = random.nextLong();
+            int length = 4 + random.nextInt(bits - 5);
+            if (v6 && random.nextInt(10) < 3) {
+                // an IPv4 network, in ::/96
+                high = 0;
+                low &= 0xFFFFFFFFL;
+                length = 97 + random.nextInt(30);
+            }
+            insert(high, low, length, country ? random.nextInt(253) : i % RECORDS);
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int[] offsets = new int[RECORDS];
+        if (!country) {
+            for (int i = 0; i < RECORDS; i++) {
+                offsets[i] = records.size();
+                byte[] record = type == CITY || type == CITY_V6 ? cityRecord(i) : orgRecord(i);
+                records.write(record, 0, record.length);
+            }
+        }
+
+        int segment = nodes.size();
+        int recordLength = type == ORG || type == ORG_V6 ? 4 : 3;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int[] node : nodes) {
+            for (int c = 0; c < 2; c++) {
+                int child = node[c];
+                int value;
+                if (child == 0) {
+                    value = country ? COUNTRY_BEGIN : segment;
+                } else if (child > 0) {
+                    value = child;
+                } else if (country) {
+                    value = COUNTRY_BEGIN + (-child - 1);
+                } else {
+                    value = segment + offsets[-child - 1];
+                }
+                writeLittle(out, value, recordLength);
+            }
+        }
+        records.writeTo(out);
+        out.write(new byte[3]);
+        // the edition is also read from the info string, as type + 105
+        byte[] info = ("GEO-" + (type + 105) + "FREE 20130101 Build 1 test").getBytes("ISO-8859-1");
+        out.write(info, 0, info.length);
+        out.write(0xFF);
+        out.write(0xFF);
+        out.write(0xFF);
+        out.write(type);
+        if (!country) {
+            writeLittle(out, segment, 3);
+        }
+        return out.toByteArray();
+    }
+
+    private int bit(long high, long low, int depth) {
+        int p = bits - 1 - depth;
+        return (int) ((p >= 64 ? high >>> (p - 64) : low >>> p) & 1);
+    }
+
+    /**
+     * Gives the network of an address with the given prefix length a value,
+     * splitting any shorter network it is in.
+     */
+    private void insert(long high, long low, int length, int value) {
+        int n = 0;
+        for (int depth = 0; depth < length; depth++) {
+            int b = bit(high, low, depth);
+            int child = nodes.get(n)[b];
+            if (depth == length - 1) {
+                if (child <= 0) {
+                    nodes.get(n)[b] = -value - 1;
+                }
+                return;
+            }
+            if (child <= 0) {
+                nodes.add(new int[]{child, child});
+                child = nodes.size() - 1;
+                nodes.get(n)[b] = child;
+            }
+            n = child;
+        }
+    }
+
+    private byte[] cityRecord(int i) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        int country = i % 5 == 0 ? US : 1 + random.nextInt(250);
+        b.write(country);
+        writeString(b, i % 3 == 0 ? "" : randomString("ABCDEFGHIJ", 2, 2));
+        writeString(b, randomString("abcdefgh\u00e9", 0, 12));
+        writeString(b, i % 2 == 0 ? "" : String.valueOf(10000 + random.nextInt(90000)));
+        writeLittle(b, (int) ((random.nextDouble() * 180 - 90 + 180) * 10000), 3);
+        writeLittle(b, (int) ((random.nextDouble() * 360 - 180 + 180) * 10000), 3);
+        if (country == US) {
+            writeLittle(b, random.nextInt(1000000), 3);
+        }
+        return b.toByteArray();
+    }
+
+    private byte[] orgRecord(int i) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        StringBuilder name = new StringBuilder("Org ").append(i).append(' ');
+        for (int k = random.nextInt(40); k > 0; k--) {
+            name.append('x');
+        }
+        writeString(b, name.toString());
+        return b.toByteArray();
+    }
+
+    private String randomString(String chars, int min, int max) {
+        StringBuilder s = new StringBuilder();
+        for (int k = min + random.nextInt(max - min + 1); k > 0; k--) {
+            s.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return s.toString();
+    }
+
+    private static void writeString(ByteArrayOutputStream b, String s) throws IOException {
+        byte[] bytes = s.getBytes("ISO-8859-1");
+        b.write(bytes, 0, bytes.length);
+        b.write(0);
+    }
+
+    private static void writeLittle(ByteArrayOutputStream b, int value, int length) {
+        for (int j = 0; j < length; j++) {
+            b.write(value >>> (8 * j));
+        }
+    }
+
+    /**
+     * Describes everything the lookups of a database's edition give for an
+     * IPv4 address, so results of two services can be compared.
+     *
+     * @param lookupService the service.
+     * @param ipnum the address.
+     * @return the description.
+     */
+    public static String describe(LookupService lookupService, long ipnum) {
+        int type = lookupService.getDatabaseInfo().getType();
+        StringBuilder b = new StringBuilder();
+        if (type == CITY) {
+            append(b, lookupService.getLocation(ipnum));
+        } else if (type == COUNTRY) {
+            Country c = lookupService.getCountry(ipnum);
+            b.append(c.getCode()).append('|').append(c.getName());
+        } else {
+            b.append(lookupService.getOrg(ipnum));
+        }
+        return b.append('|').append(lookupService.getID(ipnum)).toString();
+    }
+
+    /**
+     * Describes what the lookups of an IPv6 edition give for an address.
+     *
+     * @param lookupService the service.
+     * @param high the first 64 bits of the address.
+     * @param low the last 64 bits of the address.
+     * @return the description.
+     */
+    public static String describeV6(LookupService lookupService, long high, long low) {
+        int type = lookupService.getDatabaseInfo().getType();
+        StringBuilder b = new StringBuilder();
+        if (type == CITY_V6) {
+            append(b, lookupService.getLocationV6(high, low));
+        } else if (type == COUNTRY_V6) {
+            Country c = lookupService.getCountryV6(high, low);
+            b.append(c.getCode()).append('|').append(c.getName());
+        } else {
+            b.append(lookupService.getOrgV6(high, low));
+        }
+        return b.toString();
+    }
+
+    static void append(StringBuilder b, Location l) {
+        if (l == null) {
+            b.append("null");
+            return;
+        }
+        b.append(l.countryCode).append('|').append(l.countryName).append('|').append(l.region)
+                .append('|').append(l.city).append('|').append(l.postalCode).append('|')
+                .append(l.latitude).append('|').append(l.longitude).append('|')
+                .append(l.dma_code).append('|').append(l.metro_code).append('|').append(l.area_code);
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * V6LookupTest.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.maxmind.geoip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks the IPv6 lookups keyed by two longs against a walk of the trie
+ * one address byte at a time, as the lookups did on the address bytes,
+ * and checks that the String and InetAddress overloads agree with them.
+ */
+public class V6LookupTest extends TestCase {
+
+    private static final int ADDRESSES = 3000;
+    private static final int[] OPTIONS = {
+        LookupService.GEOIP_STANDARD,
+        LookupService.GEOIP_MEMORY_CACHE,
+        LookupService.GEOIP_MMAP_CACHE,
+        LookupService.GEOIP_INDEX_CACHE,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DECODE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_STRIDE_INDEX,
+        LookupService.GEOIP_MEMORY_CACHE | LookupService.GEOIP_DECODE_INDEX | LookupService.GEOIP_STRIDE_INDEX
+    };
+
+    public void testCountry() throws Exception {
+        check(TestDatabases.COUNTRY_V6, 3, 111);
+    }
+
+    public void testCity() throws Exception {
+        check(TestDatabases.CITY_V6, 3, 112);
+    }
+
+    public void testOrg() throws Exception {
+        check(TestDatabases.ORG_V6, 4, 113);
+    }
+
+    private void check(int type, int recordLength, long seed) throws Exception {
+        File file = TestDatabases.create(type, seed);
+        byte[] data = read(file);
+        long[][] addresses = addresses();
+        for (int options : OPTIONS) {
+            LookupService lookupService = new LookupService(file, options);
+            int segment = lookupService.current().databaseSegments[0];
+            int found = 0;
+            for (long[] address : addresses) {
+                long high = address[0];
+                long low = address[1];
+                String literal = literal(high, low);
+                String message = "options " + options + " at " + literal;
+                int expected = walk(data, recordLength, segment, high, low) - segment;
+                assertEquals(message, expected, lookupService.getIDV6(high, low));
+                if (expected != 0) {
+                    found++;
+                }
+
+                InetAddress inet = InetAddress.getByName(literal);
+                if (type == TestDatabases.COUNTRY_V6) {
+                    Country country = lookupService.getCountryV6(high, low);
+                    assertSame(message, country, lookupService.getCountryV6(literal));
+                    assertSame(message, country, lookupService.getCountryV6(inet));
+                } else if (type == TestDatabases.CITY_V6) {
+                    String location = location(lookupService.getLocationV6(high, low));
+                    assertEquals(message, expected == 0, location.equals("null"));
+                    assertEquals(message, location, location(lookupService.getLocationV6(literal)));
+                    assertEquals(message, location, location(lookupService.getLocationV6(inet)));
+                } else {
+                    String org = lookupService.getOrgV6(high, low);
+                    assertEquals(message, expected == 0, org == null);
+                    assertEquals(message, org, lookupService.getOrgV6(literal));
+                    assertEquals(message, org, lookupService.getOrgV6(inet));
+                }
+            }
+            assertTrue(found > 0 && found < addresses.length);
+            lookupService.close();
+        }
+    }
+
+    /**
+     * Random addresses, addresses in the IPv4 space at ::/96 and the first
+     * and last address.
+     */
+    private static long[][] addresses() {
+        Random random = new Random(ADDRESSES);
+        long[][] addresses = new long[ADDRESSES][];
+        for (int i = 0; i < ADDRESSES; i++) {
+            if (i % 3 == 0) {
+                addresses[i] = new long[]{0, random.nextInt() & 0xFFFFFFFFL};
+            } else {
+                addresses[i] = new long[]{random.nextLong(), random.nextLong()};
+            }
+        }
+        addresses[1] = new long[]{0, 0};
+        addresses[2] = new long[]{-1L, -1L};
+        addresses[4] = new long[]{Long.MIN_VALUE, 0};
+        addresses[5] = new long[]{Long.MAX_VALUE, -1L};
+        return addresses;
+    }
+
+    /**
+     * Walks the trie in the file bit by bit over the address bytes.
+     *
+     * @return the value the walk ends on.
+     */
+    private static int walk(byte[] data, int recordLength, int segment, long high, long low) {
+        byte[] v6vec = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            v6vec[i] = (byte) (high >>> (56 - 8 * i));
+            v6vec[8 + i] = (byte) (low >>> (56 - 8 * i));
+        }
+        int offset = 0;
+        for (int depth = 127; depth >= 0; depth--) {
+            int bnum = 127 - depth;
+            int b_mask = 1 << (bnum & 7 ^ 7);
+            int child = (v6vec[bnum >> 3] & b_mask) > 0 ? 1 : 0;
+            int pos = (2 * offset + child) * recordLength;
+            int x = 0;
+            for (int j = recordLength - 1; j >= 0; j--) {
+                x = (x << 8) | (data[pos + j] & 0xFF);
+            }
+            if (x >= segment) {
+                return x;
+            }
+            offset = x;
+        }
+        throw new AssertionError("the walk did not end");
+    }
+
+    private static String literal(long high, long low) {
+        StringBuilder b = new StringBuilder();
+        for (int g = 0; g < 8; g++) {
+            long v = g < 4 ? high >>> (48 - 16 * g) : low >>> (48 - 16 * (g - 4));
+            if (g > 0) {
+                b.append(':');
+            }
+            b.append(Long.toHexString(v & 0xFFFF));
+        }
+        return b.toString();
+    }
+
+    private static String location(Location l) {
+        StringBuilder b = new StringBuilder();
+        TestDatabases.append(b, l);
+        return b.toString();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                int r = in.read(data, n, data.length - n);
+                if (r < 0) {
+                    throw new IOException("short read of " + file);
+                }
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2013 Petra Barus.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.petrabarus.hiveudfs;
+
+import com.maxmind.geoip.Country;
+import com.maxmind.geoip.Location;
+import com.maxmind.geoip.LookupService;
+import com.maxmind.geoip.RegionName;
+import com.maxmind.geoip.TestDatabases;
+import com.maxmind.geoip.TimeZone;
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Checks the structs of GeoIPStruct against the lookups of LookupService
+ * on synthetic databases.
+ */
+public class GeoIPStructTest extends TestCase {
+
+        private static final int ADDRESSES = 5000;
+        private static final String ALL_FIELDS = "country_code,country_name,region,region_name,city,postal_code,"
+                + "latitude,longitude,metro_code,area_code,time_zone";
+
+        public void testAllFields() throws Exception {
+                File file = TestDatabases.create(TestDatabases.CITY, 131);
+                LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                GeoIPStruct udf = new GeoIPStruct();
+                StructObjectInspector output = (StructObjectInspector) udf.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+                assertEquals(ALL_FIELDS, fieldNames(output));
+
+                Random random = new Random(ADDRESSES);
+                int found = 0;
+                for (int i = 0; i < ADDRESSES; i++) {
+                        long ip = random.nextInt() & 0xFFFFFFFFL;
+                        Location l = lookupService.getLocation(ip);
+                        if (l != null) {
+                                found++;
+                        }
+                        assertEquals("at " + ip, describe(l, ALL_FIELDS),
+                                describe(output, evaluate(udf, new LongWritable(ip), new Text(file.getPath()))));
+                }
+                assertTrue(found > 0 && found < ADDRESSES);
+                udf.close();
+                lookupService.close();
+        }
+
+        /**
+         * The listed fields are returned in the order of the list, whatever
+         * their case and the spaces around them.
+         */
+        public void testFieldList() throws Exception {
+                File file = TestDatabases.create(TestDatabases.CITY, 132);
+                LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                GeoIPStruct udf = new GeoIPStruct();
+                StructObjectInspector output = (StructObjectInspector) udf.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                constant(file.getPath()), constant(" LATITUDE, city ,,area_code,country_code")});
+                String fields = "latitude,city,area_code,country_code";
+                assertEquals(fields, fieldNames(output));
+
+                Random random = new Random(ADDRESSES);
+                for (int i = 0; i < ADDRESSES; i++) {
+                        long ip = random.nextInt() & 0xFFFFFFFFL;
+                        assertEquals("at " + ip, describe(lookupService.getLocation(ip), fields),
+                                describe(output, evaluate(udf, new LongWritable(ip), new Text(file.getPath()))));
+                }
+                udf.close();
+                lookupService.close();
+        }
+
+        /**
+         * A Country database fills the country and the time zone, IPv6
+         * addresses and IPv4 ones alike in its IPv6 edition.
+         */
+        public void testCountryEditions() throws Exception {
+                for (int type : new int[]{TestDatabases.COUNTRY, TestDatabases.COUNTRY_V6}) {
+                        boolean v6 = type == TestDatabases.COUNTRY_V6;
+                        File file = TestDatabases.create(type, 133);
+                        LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                        GeoIPStruct udf = new GeoIPStruct();
+                        StructObjectInspector output = (StructObjectInspector) udf.initialize(new ObjectInspector[]{
+                                        PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                        constant(file.getPath())});
+
+                        Random random = new Random(ADDRESSES);
+                        int found = 0;
+                        for (int i = 0; i < ADDRESSES; i++) {
+                                long high = v6 && i % 2 == 0 ? random.nextLong() : 0;
+                                long low = v6 && i % 2 == 0 ? random.nextLong() : random.nextInt() & 0xFFFFFFFFL;
+                                String literal = high == 0 ? dottedQuad(low) : literal(high, low);
+                                Country country = v6 ? lookupService.getCountryV6(high, low)
+                                        : lookupService.getCountry(low);
+                                String expected = "null";
+                                if (!country.getCode().equals("--")) {
+                                        found++;
+                                        expected = country.getCode() + "|" + country.getName() + "|null|null|null|null|"
+                                                + "null|null|null|null|"
+                                                + TimeZone.timeZoneByCountryAndRegion(country.getCode(), null);
+                                }
+                                assertEquals(literal, expected, describe(output, evaluate(udf, new Text(literal), null)));
+                        }
+                        assertTrue(found > 0);
+                        udf.close();
+                        lookupService.close();
+                }
+        }
+
+        public void testCityV6Edition() throws Exception {
+                File file = TestDatabases.create(TestDatabases.CITY_V6, 134);
+                LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                GeoIPStruct udf = new GeoIPStruct();
+                StructObjectInspector output = (StructObjectInspector) udf.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector, constant(file.getPath())});
+
+                Random random = new Random(ADDRESSES);
+                for (int i = 0; i < ADDRESSES; i++) {
+                        long high = i % 2 == 0 ? random.nextLong() : 0;
+                        long low = i % 2 == 0 ? random.nextLong() : random.nextInt() & 0xFFFFFFFFL;
+                        String literal = high == 0 ? dottedQuad(low) : literal(high, low);
+                        assertEquals(literal, describe(lookupService.getLocationV6(high, low), ALL_FIELDS),
+                                describe(output, evaluate(udf, new Text(literal), null)));
+                }
+                udf.close();
+                lookupService.close();
+        }
+
+        /**
+         * Org databases hold no location, and IPv4 editions no IPv6
+         * addresses.
+         */
+        public void testNoLocation() throws Exception {
+                File org = TestDatabases.create(TestDatabases.ORG, 135);
+                File city = TestDatabases.create(TestDatabases.CITY, 136);
+                GeoIPStruct udf = new GeoIPStruct();
+                udf.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+                Random random = new Random(ADDRESSES);
+                for (int i = 0; i < 100; i++) {
+                        String literal = dottedQuad(random.nextInt() & 0xFFFFFFFFL);
+                        assertNull(evaluate(udf, new Text(literal), new Text(org.getPath())));
+                }
+                assertNull(evaluate(udf, new Text("2001:db8::1"), new Text(city.getPath())));
+                assertNull(evaluate(udf, new Text("not an address"), new Text(city.getPath())));
+                assertNull(evaluate(udf, null, new Text(city.getPath())));
+                udf.close();
+        }
+
+        public void testBadFieldLists() throws Exception {
+                String[] lists = {"unknown", "city,unknown", "", " , ", "org"};
+                for (String list : lists) {
+                        try {
+                                new GeoIPStruct().initialize(new ObjectInspector[]{
+                                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                                constant(list)});
+                                fail("\"" + list + "\" was accepted");
+                        } catch (UDFArgumentException e) {
+                                //expected
+                        }
+                }
+                try {
+                        new GeoIPStruct().initialize(new ObjectInspector[]{
+                                        PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                        PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                        PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+                        fail("a field list that is not a constant was accepted");
+                } catch (UDFArgumentException e) {
+                        //expected
+                }
+        }
+
+        /**
+         * Describes the listed fields of a City record as GeoIPStruct should
+         * return them.
+         */
+        private static String describe(Location l, String fields) {
+                if (l == null) {
+                        return "null";
+                }
+                StringBuilder b = new StringBuilder();
+                for (String field : fields.split(",")) {
+                        if (b.length() > 0) {
+                                b.append('|');
+                        }
+                        if (field.equals("country_code")) {
+                                b.append(l.countryCode);
+                        } else if (field.equals("country_name")) {
+                                b.append(l.countryName);
+                        } else if (field.equals("region")) {
+                                b.append(l.region);
+                        } else if (field.equals("region_name")) {
+                                b.append(RegionName.regionNameByCode(l.countryCode, l.region));
+                        } else if (field.equals("city")) {
+                                b.append(l.city);
+                        } else if (field.equals("postal_code")) {
+                                b.append(l.postalCode);
+                        } else if (field.equals("latitude")) {
+                                b.append(l.latitude);
+                        } else if (field.equals("longitude")) {
+                                b.append(l.longitude);
+                        } else if (field.equals("metro_code")) {
+                                b.append(l.metro_code);
+                        } else if (field.equals("area_code")) {
+                                b.append(l.area_code);
+                        } else {
+                                b.append(TimeZone.timeZoneByCountryAndRegion(l.countryCode, l.region));
+                        }
+                }
+                return b.toString();
+        }
+
+        /**
+         * Describes the fields of a returned struct.
+         */
+        private static String describe(StructObjectInspector output, Object struct) {
+                if (struct == null) {
+                        return "null";
+                }
+                StringBuilder b = new StringBuilder();
+                for (StructField field : output.getAllStructFieldRefs()) {
+                        if (b.length() > 0) {
+                                b.append('|');
+                        }
+                        b.append(output.getStructFieldData(struct, field));
+                }
+                return b.toString();
+        }
+
+        private static String fieldNames(StructObjectInspector output) {
+                StringBuilder b = new StringBuilder();
+                List<? extends StructField> fields = output.getAllStructFieldRefs();
+                for (StructField field : fields) {
+                        if (b.length() > 0) {
+                                b.append(',');
+                        }
+                        b.append(field.getFieldName());
+                }
+                return b.toString();
+        }
+
+        private static String dottedQuad(long ip) {
+                return ((ip >> 24) & 0xFF) + "." + ((ip >> 16) & 0xFF) + "." + ((ip >> 8) & 0xFF) + "." + (ip & 0xFF);
+        }
+
+        private static String literal(long high, long low) {
+                StringBuilder b = new StringBuilder();
+                for (int g = 0; g < 8; g++) {
+                        long v = g < 4 ? high >>> (48 - 16 * g) : low >>> (48 - 16 * (g - 4));
+                        if (g > 0) {
+                                b.append(':');
+                        }
+                        b.append(Long.toHexString(v & 0xFFFF));
+                }
+                return b.toString();
+        }
+
+        private static ObjectInspector constant(String value) {
+                return PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                        PrimitiveObjectInspector.PrimitiveCategory.STRING, new Text(value));
+        }
+
+        private static Object evaluate(GeoIPStruct udf, final Object address, final Object databaseName)
+                throws HiveException {
+                return udf.evaluate(new GenericUDF.DeferredObject[]{
+                                new GenericUDF.DeferredObject() {
+                                        public Object get() {
+                                                return address;
+                                        }
+                                },
+                                new GenericUDF.DeferredObject() {
+                                        public Object get() {
+                                                return databaseName;
+                                        }
+                                }});
+        }
+}
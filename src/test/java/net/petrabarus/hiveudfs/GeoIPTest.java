@@ -0,0 +1,462 @@
+/**
+ * Copyright (C) 2013 Petra Barus.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.petrabarus.hiveudfs;
+
+import com.maxmind.geoip.Country;
+import com.maxmind.geoip.Location;
+import com.maxmind.geoip.LookupService;
+import com.maxmind.geoip.RegionName;
+import com.maxmind.geoip.TestDatabases;
+import java.io.File;
+import java.util.Random;
+import junit.framework.TestCase;
+import net.petrabarus.hiveudfs.helpers.LongObjectCache;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Checks the results of GeoIP against the lookups of LookupService on
+ * synthetic databases.
+ */
+public class GeoIPTest extends TestCase {
+
+        private static final int ADDRESSES = 5000;
+        private static final String[] CITY_ATTRIBUTES = {
+                GeoIP.COUNTRY_NAME, GeoIP.COUNTRY_CODE, GeoIP.AREA_CODE, GeoIP.CITY, GeoIP.DMA_CODE,
+                GeoIP.LATITUDE, GeoIP.LONGITUDE, GeoIP.METRO_CODE, GeoIP.POSTAL_CODE, GeoIP.REGION,
+                GeoIP.REGION_NAME, GeoIP.ORG, GeoIP.ID
+        };
+
+        /**
+         * Every attribute of a City database, given per row, is returned as
+         * a string, and as null where the record has no value.
+         */
+        public void testCityAttributes() throws Exception {
+                File file = TestDatabases.create(TestDatabases.CITY, 62);
+                Text databaseName = new Text(file.getPath());
+                LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                GeoIP udf = new GeoIP();
+                udf.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+
+                Random random = new Random(ADDRESSES);
+                int found = 0;
+                int noCity = 0;
+                for (int i = 0; i < ADDRESSES; i++) {
+                        long ip = random.nextInt() & 0xFFFFFFFFL;
+                        Location l = lookupService.getLocation(ip);
+                        if (l != null) {
+                                found++;
+                                if (l.city == null) {
+                                        noCity++;
+                                }
+                        }
+                        for (String attribute : CITY_ATTRIBUTES) {
+                                assertEquals(attribute + " of " + ip, cityAttribute(lookupService, l, ip, attribute),
+                                        evaluate(udf, new LongWritable(ip), new Text(attribute), databaseName));
+                        }
+                }
+                assertTrue(found > 0 && found < ADDRESSES);
+                assertTrue(noCity > 0);
+                assertEquals("", evaluate(udf, new LongWritable(1), new Text("UNKNOWN"), databaseName));
+                udf.close();
+                lookupService.close();
+        }
+
+        /**
+         * A Country database only knows the country and the ID, whatever
+         * the attribute of the row.
+         */
+        public void testCountryAttributes() throws Exception {
+                File file = TestDatabases.create(TestDatabases.COUNTRY, 63);
+                Text databaseName = new Text(file.getPath());
+                LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                GeoIP udf = new GeoIP();
+                udf.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+
+                Random random = new Random(ADDRESSES);
+                int found = 0;
+                for (int i = 0; i < ADDRESSES; i++) {
+                        long ip = random.nextInt() & 0xFFFFFFFFL;
+                        Country country = lookupService.getCountry(ip);
+                        boolean known = !country.getCode().equals("--");
+                        if (known) {
+                                found++;
+                        }
+                        for (String attribute : CITY_ATTRIBUTES) {
+                                String expected = null;
+                                if (attribute.equals(GeoIP.ID)) {
+                                        expected = String.valueOf(lookupService.getID(ip));
+                                } else if (known && attribute.equals(GeoIP.COUNTRY_CODE)) {
+                                        expected = country.getCode();
+                                } else if (known && attribute.equals(GeoIP.COUNTRY_NAME)) {
+                                        expected = country.getName();
+                                }
+                                assertEquals(attribute + " of " + ip, expected,
+                                        evaluate(udf, new LongWritable(ip), new Text(attribute), databaseName));
+                        }
+                }
+                assertTrue(found > 0 && found < ADDRESSES);
+                udf.close();
+                lookupService.close();
+        }
+
+        /**
+         * An Org database only knows the organization and the ID.
+         */
+        public void testOrgAttributes() throws Exception {
+                File file = TestDatabases.create(TestDatabases.ORG, 64);
+                Text databaseName = new Text(file.getPath());
+                LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                GeoIP udf = new GeoIP();
+                udf.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+
+                Random random = new Random(ADDRESSES);
+                for (int i = 0; i < ADDRESSES; i++) {
+                        long ip = random.nextInt() & 0xFFFFFFFFL;
+                        for (String attribute : CITY_ATTRIBUTES) {
+                                String expected = null;
+                                if (attribute.equals(GeoIP.ID)) {
+                                        expected = String.valueOf(lookupService.getID(ip));
+                                } else if (attribute.equals(GeoIP.ORG)) {
+                                        expected = lookupService.getOrg(ip);
+                                }
+                                assertEquals(attribute + " of " + ip, expected,
+                                        evaluate(udf, new LongWritable(ip), new Text(attribute), databaseName));
+                        }
+                }
+                udf.close();
+                lookupService.close();
+        }
+
+        /**
+         * Constant numeric attributes are returned as FloatWritable and
+         * IntWritable with the values of the string results.
+         */
+        public void testTypedAttributes() throws Exception {
+                File city = TestDatabases.create(TestDatabases.CITY, 65);
+                File country = TestDatabases.create(TestDatabases.COUNTRY, 66);
+                GeoIP byRow = new GeoIP();
+                byRow.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+                String[] floats = {GeoIP.LATITUDE, GeoIP.LONGITUDE};
+                String[] ints = {GeoIP.AREA_CODE, GeoIP.DMA_CODE, GeoIP.METRO_CODE, GeoIP.ID};
+                for (File file : new File[]{city, country}) {
+                        for (String attribute : floats) {
+                                checkTyped(byRow, file, file == city, attribute, FloatWritable.class,
+                                        PrimitiveObjectInspectorFactory.writableFloatObjectInspector);
+                        }
+                        for (String attribute : ints) {
+                                checkTyped(byRow, file, file == city, attribute, IntWritable.class,
+                                        PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+                        }
+                }
+                byRow.close();
+        }
+
+        /**
+         * String attributes given as constants give the results of the same
+         * attributes given per row.
+         */
+        public void testConstantAttributes() throws Exception {
+                File file = TestDatabases.create(TestDatabases.CITY, 67);
+                Text databaseName = new Text(file.getPath());
+                GeoIP byRow = new GeoIP();
+                byRow.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+                String[] attributes = {GeoIP.COUNTRY_CODE, GeoIP.CITY, GeoIP.REGION_NAME, GeoIP.ORG, "UNKNOWN"};
+                for (String attribute : attributes) {
+                        GeoIP constant = new GeoIP();
+                        ObjectInspector output = constant.initialize(new ObjectInspector[]{
+                                        PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                        constant(new Text(attribute)), constant(databaseName)});
+                        assertSame(PrimitiveObjectInspectorFactory.writableStringObjectInspector, output);
+                        Random random = new Random(ADDRESSES);
+                        for (int i = 0; i < ADDRESSES; i++) {
+                                LongWritable ip = new LongWritable(random.nextInt() & 0xFFFFFFFFL);
+                                assertEquals(attribute + " of " + ip,
+                                        evaluate(byRow, ip, new Text(attribute), databaseName),
+                                        evaluate(constant, ip, new Text(attribute), databaseName));
+                        }
+                        constant.close();
+                }
+                byRow.close();
+        }
+
+        /**
+         * The database can change from row to row.
+         */
+        public void testDatabasePerRow() throws Exception {
+                File[] files = {
+                        TestDatabases.create(TestDatabases.CITY, 68),
+                        TestDatabases.create(TestDatabases.COUNTRY, 69),
+                        TestDatabases.create(TestDatabases.CITY, 70)
+                };
+                LookupService[] lookupServices = new LookupService[files.length];
+                for (int f = 0; f < files.length; f++) {
+                        lookupServices[f] = new LookupService(files[f], LookupService.GEOIP_STANDARD);
+                }
+                GeoIP udf = new GeoIP();
+                udf.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                constant(new Text(GeoIP.COUNTRY_CODE)),
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+                Random random = new Random(ADDRESSES);
+                for (int i = 0; i < ADDRESSES; i++) {
+                        int f = random.nextInt(files.length);
+                        long ip = random.nextInt() & 0xFFFFFFFFL;
+                        String expected;
+                        if (f == 1) {
+                                Country country = lookupServices[f].getCountry(ip);
+                                expected = country.getCode().equals("--") ? null : country.getCode();
+                        } else {
+                                Location l = lookupServices[f].getLocation(ip);
+                                expected = l == null ? null : l.countryCode;
+                        }
+                        assertEquals(files[f] + " at " + ip, expected, evaluate(udf, new LongWritable(ip),
+                                new Text(GeoIP.COUNTRY_CODE), new Text(files[f].getPath())));
+                }
+                udf.close();
+                for (LookupService lookupService : lookupServices) {
+                        lookupService.close();
+                }
+        }
+
+        public void testIPv6InIPv4Edition() throws Exception {
+                File file = TestDatabases.create(TestDatabases.CITY, 71);
+                GeoIP udf = new GeoIP();
+                udf.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                constant(new Text(GeoIP.COUNTRY_CODE)), constant(new Text(file.getPath()))});
+                assertNull(evaluate(udf, new Text("2001:db8::1"), null, null));
+                assertNull(evaluate(udf, new Text("not an address"), null, null));
+                assertNull(evaluate(udf, null, null, null));
+                udf.close();
+        }
+
+        /**
+         * The cache size must be a constant between 0 and the largest size
+         * of the cache, and a cache gives the results of the lookups.
+         */
+        public void testCacheSize() throws Exception {
+                File file = TestDatabases.create(TestDatabases.CITY, 72);
+                Text databaseName = new Text(file.getPath());
+                Object[] sizes = {new IntWritable(-1), new IntWritable(LongObjectCache.MAX_SIZE + 1),
+                        new LongWritable(Long.MAX_VALUE)};
+                for (Object size : sizes) {
+                        try {
+                                new GeoIP().initialize(new ObjectInspector[]{
+                                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                                constant(new Text(GeoIP.CITY)), constant(databaseName), constant(size)});
+                                fail(size + " was accepted");
+                        } catch (UDFArgumentException e) {
+                                //expected
+                        }
+                }
+                try {
+                        new GeoIP().initialize(new ObjectInspector[]{
+                                        PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                        constant(new Text(GeoIP.CITY)), constant(databaseName),
+                                        PrimitiveObjectInspectorFactory.writableIntObjectInspector});
+                        fail("a cache size that is not a constant was accepted");
+                } catch (UDFArgumentException e) {
+                        //expected
+                }
+
+                GeoIP byRow = new GeoIP();
+                byRow.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+                for (int cacheSize : new int[]{0, 1, 100}) {
+                        GeoIP cached = new GeoIP();
+                        cached.initialize(new ObjectInspector[]{
+                                        PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                        constant(new Text(GeoIP.CITY)), constant(databaseName),
+                                        constant(new IntWritable(cacheSize))});
+                        Random random = new Random(ADDRESSES);
+                        long[] ips = new long[200];
+                        for (int i = 0; i < ips.length; i++) {
+                                ips[i] = random.nextInt() & 0xFFFFFFFFL;
+                        }
+                        for (int i = 0; i < ADDRESSES; i++) {
+                                //Repeat addresses, so some rows come from the cache.
+                                LongWritable ip = new LongWritable(ips[random.nextInt(ips.length)]);
+                                assertEquals(cacheSize + " at " + ip, evaluate(byRow, ip, new Text(GeoIP.CITY), databaseName),
+                                        evaluate(cached, ip, null, null));
+                        }
+                        cached.close();
+                }
+                byRow.close();
+        }
+
+        public void testIPv4InIPv6Edition() throws Exception {
+                File file = TestDatabases.create(TestDatabases.COUNTRY_V6, 61);
+                Text databaseName = new Text(file.getPath());
+                Text attribute = new Text(GeoIP.COUNTRY_CODE);
+                LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                GeoIP byString = new GeoIP();
+                byString.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+                GeoIP byLong = new GeoIP();
+                byLong.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                                PrimitiveObjectInspectorFactory.writableStringObjectInspector});
+
+                Random random = new Random(ADDRESSES);
+                int found = 0;
+                for (int i = 0; i < ADDRESSES; i++) {
+                        long ip = random.nextInt() & 0xFFFFFFFFL;
+                        String literal = ((ip >> 24) & 0xFF) + "." + ((ip >> 16) & 0xFF) + "."
+                                + ((ip >> 8) & 0xFF) + "." + (ip & 0xFF);
+                        Country country = lookupService.getCountryV6(literal);
+                        String expected = country.getCode().equals("--") ? null : country.getCode();
+                        if (expected != null) {
+                                found++;
+                        }
+                        assertEquals(literal, expected, evaluate(byString, new Text(literal), attribute, databaseName));
+                        assertEquals(literal, expected, evaluate(byString, new Text("::ffff:" + literal), attribute,
+                                databaseName));
+                        assertEquals(literal, expected, evaluate(byLong, new LongWritable(ip), attribute, databaseName));
+                }
+                //Some of the addresses must be in the IPv4 space of the edition.
+                assertTrue(found > 0);
+                byString.close();
+                byLong.close();
+                lookupService.close();
+        }
+
+        /**
+         * Returns what GeoIP should give for an attribute of a City record.
+         */
+        private static String cityAttribute(LookupService lookupService, Location l, long ip, String attribute) {
+                if (attribute.equals(GeoIP.ID)) {
+                        return String.valueOf(lookupService.getID(ip));
+                }
+                if (l == null || attribute.equals(GeoIP.ORG)) {
+                        return null;
+                }
+                if (attribute.equals(GeoIP.COUNTRY_NAME)) {
+                        return l.countryName;
+                } else if (attribute.equals(GeoIP.COUNTRY_CODE)) {
+                        return l.countryCode;
+                } else if (attribute.equals(GeoIP.AREA_CODE)) {
+                        return String.valueOf(l.area_code);
+                } else if (attribute.equals(GeoIP.CITY)) {
+                        return l.city;
+                } else if (attribute.equals(GeoIP.DMA_CODE)) {
+                        return String.valueOf(l.dma_code);
+                } else if (attribute.equals(GeoIP.LATITUDE)) {
+                        return String.valueOf(l.latitude);
+                } else if (attribute.equals(GeoIP.LONGITUDE)) {
+                        return String.valueOf(l.longitude);
+                } else if (attribute.equals(GeoIP.METRO_CODE)) {
+                        return String.valueOf(l.metro_code);
+                } else if (attribute.equals(GeoIP.POSTAL_CODE)) {
+                        return l.postalCode;
+                } else if (attribute.equals(GeoIP.REGION)) {
+                        return l.region;
+                } else {
+                        return RegionName.regionNameByCode(l.countryCode, l.region);
+                }
+        }
+
+        /**
+         * Checks a constant numeric attribute against the same attribute
+         * given per row.
+         */
+        private static void checkTyped(GeoIP byRow, File file, boolean city, String attribute, Class<?> type,
+                ObjectInspector expectedOutput) throws Exception {
+                Text databaseName = new Text(file.getPath());
+                GeoIP typed = new GeoIP();
+                ObjectInspector output = typed.initialize(new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                constant(new Text(attribute)), constant(databaseName)});
+                assertSame(attribute, expectedOutput, output);
+                Random random = new Random(ADDRESSES);
+                int found = 0;
+                for (int i = 0; i < ADDRESSES; i++) {
+                        LongWritable ip = new LongWritable(random.nextInt() & 0xFFFFFFFFL);
+                        String expected = evaluate(byRow, ip, new Text(attribute), databaseName);
+                        Object value = typed.evaluate(new GenericUDF.DeferredObject[]{
+                                        deferred(ip), deferred(new Text(attribute)), deferred(databaseName)});
+                        if (expected == null) {
+                                assertNull(attribute + " of " + ip, value);
+                        } else {
+                                found++;
+                                assertTrue(attribute + " of " + ip, type.isInstance(value));
+                                assertEquals(attribute + " of " + ip, expected, value.toString());
+                        }
+                }
+                //Every address has an ID, and only a City database has coordinates and codes.
+                assertEquals(attribute + " in " + file, attribute.equals(GeoIP.ID) || city, found > 0);
+                typed.close();
+        }
+
+        private static ObjectInspector constant(Object value) {
+                PrimitiveObjectInspector.PrimitiveCategory category = PrimitiveObjectInspector.PrimitiveCategory.STRING;
+                if (value instanceof IntWritable) {
+                        category = PrimitiveObjectInspector.PrimitiveCategory.INT;
+                } else if (value instanceof LongWritable) {
+                        category = PrimitiveObjectInspector.PrimitiveCategory.LONG;
+                }
+                return PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(category, value);
+        }
+
+        private static String evaluate(GeoIP udf, Object address, Object attribute, Object databaseName)
+                throws HiveException {
+                Object value = udf.evaluate(new GenericUDF.DeferredObject[]{
+                                deferred(address), deferred(attribute), deferred(databaseName)});
+                return value == null ? null : value.toString();
+        }
+
+        private static GenericUDF.DeferredObject deferred(final Object value) {
+                return new GenericUDF.DeferredObject() {
+                        public Object get() {
+                                return value;
+                        }
+                };
+        }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2013 Petra Barus.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.petrabarus.hiveudfs;
+
+import com.maxmind.geoip.Location;
+import com.maxmind.geoip.LookupService;
+import com.maxmind.geoip.TestDatabases;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Runs several rows through the UDFs that refill their result writables,
+ * and checks that every row gets the same instances with that row's value,
+ * and that a row copied the way Hive collects it keeps its value when the
+ * next rows are evaluated.
+ */
+public class ResultReuseTest extends TestCase {
+
+        private static final int ADDRESSES = 200;
+
+        public void testIPToLong() throws Exception {
+                check(new IPToLong(), PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                        new Object[]{new Text("1.1.1.1"), new Text("255.255.255.255"), null, new Text("10.0.0.1")},
+                        new String[]{"16843009", "4294967295", null, "167772161"});
+        }
+
+        public void testLongToIP() throws Exception {
+                check(new LongToIP(), PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                        new Object[]{new LongWritable(16843009L), new LongWritable(4294967295L), null,
+                                new LongWritable(167772161L)},
+                        new String[]{"1.1.1.1", "255.255.255.255", null, "10.0.0.1"});
+        }
+
+        public void testUCWords() throws Exception {
+                check(new UCWords(), PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                        new Object[]{new Text("hello world"), new Text("a"), null, new Text("")},
+                        new String[]{"Hello World", "A", null, ""});
+        }
+
+        public void testSearchEngineKeyword() throws Exception {
+                check(new SearchEngineKeyword(), PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                        new Object[]{new Text("http://www.google.com/search?q=keyword+keyword"),
+                                new Text("http://www.example.com/?q=keyword"), null,
+                                new Text("http://search.yahoo.com/search?p=other")},
+                        new String[]{"keyword keyword", null, null, "other"});
+        }
+
+        /**
+         * The typed results of constant attributes, with and without the
+         * result cache.
+         */
+        public void testGeoIP() throws Exception {
+                File file = TestDatabases.create(TestDatabases.CITY, 81);
+                LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                Object[] addresses = new Object[ADDRESSES];
+                String[] latitudes = new String[ADDRESSES];
+                String[] areaCodes = new String[ADDRESSES];
+                String[] cities = new String[ADDRESSES];
+                Random random = new Random(ADDRESSES);
+                for (int i = 0; i < ADDRESSES; i++) {
+                        //Repeat addresses, so some rows come from the cache.
+                        long ip = i % 4 == 3 ? ((LongWritable) addresses[i / 2]).get() : random.nextInt() & 0xFFFFFFFFL;
+                        addresses[i] = new LongWritable(ip);
+                        Location l = lookupService.getLocation(ip);
+                        latitudes[i] = l == null ? null : String.valueOf(l.latitude);
+                        areaCodes[i] = l == null ? null : String.valueOf(l.area_code);
+                        cities[i] = l == null ? null : l.city;
+                }
+                lookupService.close();
+
+                for (int cacheSize = 0; cacheSize <= 64; cacheSize += 64) {
+                        check(new GeoIP(), geoIPArguments(GeoIP.LATITUDE, file, cacheSize), addresses, latitudes);
+                        check(new GeoIP(), geoIPArguments(GeoIP.AREA_CODE, file, cacheSize), addresses, areaCodes);
+                        check(new GeoIP(), geoIPArguments(GeoIP.CITY, file, cacheSize), addresses, cities);
+                }
+        }
+
+        public void testGeoIPStruct() throws Exception {
+                File file = TestDatabases.create(TestDatabases.CITY, 82);
+                LookupService lookupService = new LookupService(file, LookupService.GEOIP_STANDARD);
+                Object[] addresses = new Object[ADDRESSES];
+                String[] expected = new String[ADDRESSES];
+                Random random = new Random(ADDRESSES);
+                for (int i = 0; i < ADDRESSES; i++) {
+                        long ip = random.nextInt() & 0xFFFFFFFFL;
+                        addresses[i] = new LongWritable(ip);
+                        Location l = lookupService.getLocation(ip);
+                        expected[i] = l == null ? null : "[" + l.countryCode + ", " + l.city + ", " + l.latitude + ", "
+                                + l.area_code + "]";
+                }
+                lookupService.close();
+
+                check(new GeoIPStruct(), new ObjectInspector[]{
+                                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                                constant(new Text(file.getPath())),
+                                constant(new Text("country_code,city,latitude,area_code"))},
+                        addresses, expected);
+        }
+
+        private static void check(GenericUDF udf, ObjectInspector argument, Object[] rows, String[] expected)
+                throws Exception {
+                check(udf, new ObjectInspector[]{argument}, rows, expected);
+        }
+
+        /**
+         * Evaluates each row, checks that all rows with a value share one
+         * result object, and that the copies of all rows still hold the
+         * expected values once every row was evaluated. The arguments after
+         * the first are constants.
+         */
+        private static void check(GenericUDF udf, ObjectInspector[] arguments, Object[] rows, String[] expected)
+                throws Exception {
+                ObjectInspector output = udf.initialize(arguments);
+                Object first = null;
+                List<Object> copies = new ArrayList<Object>();
+                for (int row = 0; row < rows.length; row++) {
+                        Object[] values = new Object[arguments.length];
+                        values[0] = rows[row];
+                        Object result = evaluate(udf, values);
+                        Object copy = ObjectInspectorUtils.copyToStandardObject(result, output);
+                        if (expected[row] == null) {
+                                assertNull("row " + row, result);
+                        } else {
+                                assertNotNull("row " + row, result);
+                                if (first == null) {
+                                        first = result;
+                                }
+                                assertSame("row " + row, first, result);
+                                assertEquals("row " + row, expected[row], copy.toString());
+                        }
+                        copies.add(copy);
+                }
+                assertNotNull("no row had a value", first);
+                for (int row = 0; row < rows.length; row++) {
+                        Object copy = copies.get(row);
+                        assertEquals("copy of row " + row, expected[row], copy == null ? null : copy.toString());
+                }
+        }
+
+        private static ObjectInspector[] geoIPArguments(String attribute, File file, int cacheSize) {
+                ObjectInspector[] arguments = new ObjectInspector[cacheSize > 0 ? 4 : 3];
+                arguments[0] = PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+                arguments[1] = constant(new Text(attribute));
+                arguments[2] = constant(new Text(file.getPath()));
+                if (cacheSize > 0) {
+                        arguments[3] = constant(new IntWritable(cacheSize));
+                }
+                return arguments;
+        }
+
+        private static ObjectInspector constant(Object value) {
+                return PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                        value instanceof Text ? PrimitiveObjectInspector.PrimitiveCategory.STRING
+                        : PrimitiveObjectInspector.PrimitiveCategory.INT, value);
+        }
+
+        private static Object evaluate(GenericUDF udf, Object[] values) throws HiveException {
+                GenericUDF.DeferredObject[] arguments = new GenericUDF.DeferredObject[values.length];
+                for (int i = 0; i < values.length; i++) {
+                        final Object value = values[i];
+                        arguments[i] = new GenericUDF.DeferredObject() {
+                                public Object get() {
+                                        return value;
+                                }
+                        };
+                }
+                return udf.evaluate(arguments);
+        }
+}
@@ -0,0 +1,135 @@
+package net.petrabarus.hiveudfs.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Checks LongObjectCache against a HashMap that is emptied when the cache
+ * should be.
+ */
+public class LongObjectCacheTest extends TestCase {
+
+        private static final int OPERATIONS = 20000;
+
+        public void testGetAndPut() {
+                LongObjectCache<String> cache = new LongObjectCache<String>(4);
+                assertNull(cache.get(1));
+                cache.put(1, "a");
+                cache.put(-1, "b");
+                cache.put(0, "c");
+                assertEquals("a", cache.get(1));
+                assertEquals("b", cache.get(-1));
+                assertEquals("c", cache.get(0));
+                assertNull(cache.get(2));
+                assertEquals(3, cache.size());
+                //A put of a cached key replaces the value.
+                cache.put(1, "d");
+                assertEquals("d", cache.get(1));
+                assertEquals(3, cache.size());
+                assertEquals(4, cache.getHits());
+                assertEquals(2, cache.getMisses());
+                assertEquals(4.0 / 6, cache.getHitRate(), 1e-9);
+        }
+
+        public void testClearWhenFull() {
+                LongObjectCache<String> cache = new LongObjectCache<String>(3);
+                cache.put(1, "a");
+                cache.put(2, "b");
+                cache.put(3, "c");
+                assertEquals(3, cache.size());
+                cache.put(4, "d");
+                assertEquals(1, cache.size());
+                assertNull(cache.get(1));
+                assertNull(cache.get(2));
+                assertNull(cache.get(3));
+                assertEquals("d", cache.get(4));
+
+                //The counts are kept.
+                long gets = cache.getHits() + cache.getMisses();
+                cache.clear();
+                assertEquals(0, cache.size());
+                assertNull(cache.get(4));
+                assertEquals(gets + 1, cache.getHits() + cache.getMisses());
+        }
+
+        /**
+         * Keys whose probes run past the end of the table wrap around to
+         * its start.
+         */
+        public void testProbeWrapsAround() {
+                LongObjectCache<Long> cache = new LongObjectCache<Long>(4);
+                //A cache of 4 entries has 8 slots; find keys of the last slot.
+                long[] keys = new long[3];
+                int n = 0;
+                for (long key = 0; n < keys.length; key++) {
+                        if (slot(key, 7) == 7) {
+                                keys[n++] = key;
+                        }
+                }
+                for (long key : keys) {
+                        cache.put(key, key);
+                }
+                for (long key : keys) {
+                        assertEquals(Long.valueOf(key), cache.get(key));
+                }
+                assertNull(cache.get(keys[2] + 1));
+        }
+
+        /**
+         * Random operations on small caches, so keys collide, probes wrap
+         * and the caches fill up often.
+         */
+        public void testRandomOperations() {
+                Random random = new Random(OPERATIONS);
+                for (int maxSize = 1; maxSize <= 33; maxSize += 4) {
+                        LongObjectCache<Long> cache = new LongObjectCache<Long>(maxSize);
+                        Map<Long, Long> expected = new HashMap<Long, Long>();
+                        long hits = 0;
+                        for (int i = 0; i < OPERATIONS; i++) {
+                                long key = random.nextInt(3 * maxSize) - maxSize;
+                                if (random.nextBoolean()) {
+                                        Long value = expected.get(key);
+                                        if (value != null) {
+                                                hits++;
+                                        }
+                                        assertEquals("get " + key, value, cache.get(key));
+                                } else {
+                                        long value = random.nextLong();
+                                        if (!expected.containsKey(key) && expected.size() == maxSize) {
+                                                expected.clear();
+                                        }
+                                        expected.put(key, value);
+                                        cache.put(key, value);
+                                }
+                                assertEquals(expected.size(), cache.size());
+                        }
+                        assertEquals(hits, cache.getHits());
+                }
+        }
+
+        public void testInvalidSize() {
+                for (int maxSize : new int[]{0, -1, Integer.MIN_VALUE}) {
+                        try {
+                                new LongObjectCache<String>(maxSize);
+                                fail(maxSize + " was accepted");
+                        } catch (IllegalArgumentException e) {
+                                //expected
+                        }
+                }
+        }
+
+        public void testEmptyHitRate() {
+                assertEquals(0.0, new LongObjectCache<String>(1).getHitRate(), 0);
+        }
+
+        /**
+         * The slot of a key in a table of mask + 1 slots, as the cache
+         * computes it.
+         */
+        private static int slot(long key, int mask) {
+                long h = key * 0x9E3779B97F4A7C15L;
+                return (int) (h ^ (h >>> 32)) & mask;
+        }
+}
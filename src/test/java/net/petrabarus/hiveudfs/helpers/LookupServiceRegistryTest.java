@@ -0,0 +1,148 @@
+package net.petrabarus.hiveudfs.helpers;
+
+import com.maxmind.geoip.LookupService;
+import com.maxmind.geoip.TestDatabases;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/**
+ * Checks that the registry loads a database once for concurrent users,
+ * closes it on the last release and loads a replaced file again.
+ */
+public class LookupServiceRegistryTest extends TestCase {
+
+        private static final int THREADS = 8;
+        private static final long ADDRESS = 0x01020304L;
+        private File file;
+
+        @Override
+        protected void setUp() throws Exception {
+                file = File.createTempFile("geoip-registry-", ".dat");
+                file.deleteOnExit();
+                TestDatabases.write(TestDatabases.CITY, 71, file);
+        }
+
+        @Override
+        protected void tearDown() {
+                file.delete();
+        }
+
+        public void testConcurrentAcquireLoadsOnce() throws Exception {
+                final CountDownLatch start = new CountDownLatch(1);
+                final LookupService[] acquired = new LookupService[THREADS];
+                final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+                Thread[] threads = new Thread[THREADS];
+                for (int t = 0; t < threads.length; t++) {
+                        final int n = t;
+                        threads[t] = new Thread() {
+                                @Override
+                                public void run() {
+                                        try {
+                                                start.await();
+                                                acquired[n] = LookupServiceRegistry.acquire(file,
+                                                        LookupService.GEOIP_STANDARD, 0);
+                                        } catch (Throwable e) {
+                                                failure.compareAndSet(null, e);
+                                        }
+                                }
+                        };
+                        threads[t].start();
+                }
+                start.countDown();
+                for (Thread thread : threads) {
+                        thread.join();
+                }
+                if (failure.get() != null) {
+                        throw new AssertionError(failure.get());
+                }
+                for (int t = 1; t < THREADS; t++) {
+                        assertSame(acquired[0], acquired[t]);
+                }
+
+                //Every release but the last leaves the database open.
+                String expected = TestDatabases.describe(acquired[0], ADDRESS);
+                for (int t = 0; t < THREADS - 1; t++) {
+                        LookupServiceRegistry.release(acquired[t]);
+                        assertEquals(expected, TestDatabases.describe(acquired[0], ADDRESS));
+                }
+                LookupServiceRegistry.release(acquired[THREADS - 1]);
+                assertClosed(acquired[0]);
+        }
+
+        public void testAcquireAfterLastRelease() throws Exception {
+                LookupService first = LookupServiceRegistry.acquire(file, LookupService.GEOIP_STANDARD, 0);
+                String expected = TestDatabases.describe(first, ADDRESS);
+                LookupServiceRegistry.release(first);
+                assertClosed(first);
+
+                LookupService second = LookupServiceRegistry.acquire(file, LookupService.GEOIP_STANDARD, 0);
+                assertNotSame(first, second);
+                assertEquals(expected, TestDatabases.describe(second, ADDRESS));
+                //A release of a service that is already closed does nothing.
+                LookupServiceRegistry.release(first);
+                assertEquals(expected, TestDatabases.describe(second, ADDRESS));
+                LookupServiceRegistry.release(second);
+        }
+
+        public void testOptionsAreSeparate() throws Exception {
+                LookupService standard = LookupServiceRegistry.acquire(file, LookupService.GEOIP_STANDARD, 0);
+                LookupService memory = LookupServiceRegistry.acquire(file, LookupService.GEOIP_MEMORY_CACHE, 0);
+                assertNotSame(standard, memory);
+                LookupServiceRegistry.release(standard);
+                LookupServiceRegistry.release(memory);
+        }
+
+        public void testReplacedFileIsLoadedAgain() throws Exception {
+                LookupService old = LookupServiceRegistry.acquire(file, LookupService.GEOIP_STANDARD, 0);
+                String oldDescription = TestDatabases.describe(old, ADDRESS);
+
+                File replacement = File.createTempFile("geoip-registry-", ".dat");
+                TestDatabases.write(TestDatabases.CITY, 72, replacement);
+                LookupService expected = new LookupService(replacement, LookupService.GEOIP_MEMORY_CACHE);
+                replacement.setLastModified(file.lastModified() + 10000);
+                assertTrue(replacement.renameTo(file));
+
+                LookupService current = LookupServiceRegistry.acquire(file, LookupService.GEOIP_STANDARD, 0);
+                assertNotSame(old, current);
+                assertEquals(TestDatabases.describe(expected, ADDRESS), TestDatabases.describe(current, ADDRESS));
+                //The users of the old file keep it.
+                assertEquals(oldDescription, TestDatabases.describe(old, ADDRESS));
+                assertSame(current, LookupServiceRegistry.acquire(file, LookupService.GEOIP_STANDARD, 0));
+
+                LookupServiceRegistry.release(old);
+                LookupServiceRegistry.release(current);
+                LookupServiceRegistry.release(current);
+                expected.close();
+        }
+
+        public void testFailedLoadIsNotKept() throws Exception {
+                FileOutputStream os = new FileOutputStream(file);
+                os.write(new byte[]{1});
+                os.close();
+                try {
+                        LookupServiceRegistry.acquire(file, LookupService.GEOIP_STANDARD, 0);
+                        fail("a broken file was loaded");
+                } catch (IOException e) {
+                        //expected
+                }
+
+                TestDatabases.write(TestDatabases.CITY, 71, file);
+                file.setLastModified(file.lastModified() + 10000);
+                LookupService lookupService = LookupServiceRegistry.acquire(file, LookupService.GEOIP_STANDARD, 0);
+                TestDatabases.describe(lookupService, ADDRESS);
+                LookupServiceRegistry.release(lookupService);
+        }
+
+        private static void assertClosed(LookupService lookupService) {
+                try {
+                        lookupService.getLocation(ADDRESS);
+                        fail("the database is still open");
+                } catch (IllegalStateException e) {
+                        //expected
+                }
+        }
+}